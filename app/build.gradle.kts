@@ -14,6 +14,13 @@ android {
         versionName = "1.0"
 
         testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+
+        // Room writes each database version's schema here, see AppDatabase
+        javaCompileOptions {
+            annotationProcessorOptions {
+                arguments += mapOf("room.schemaLocation" to "$projectDir/schemas")
+            }
+        }
     }
 
     buildTypes {
@@ -29,6 +36,18 @@ android {
         sourceCompatibility = JavaVersion.VERSION_1_8
         targetCompatibility = JavaVersion.VERSION_1_8
     }
+    testOptions {
+        // Let JVM tests touch android.util.Log and friends without Robolectric
+        unitTests.isReturnDefaultValues = true
+        // LinkServiceTest runs the service under Robolectric and reads its strings
+        unitTests.isIncludeAndroidResources = true
+        // Benchmarks are skipped unless asked for: ./gradlew testDebugUnitTest -Pbenchmarks
+        unitTests.all {
+            if (project.hasProperty("benchmarks")) {
+                it.systemProperty("benchmarks", "true")
+            }
+        }
+    }
 }
 
 dependencies {
@@ -39,6 +58,7 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     implementation("androidx.room:room-runtime:2.6.1")
@@ -2,7 +2,6 @@ package com.example.iotapp;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Handler;
@@ -12,39 +11,174 @@ import android.widget.Toast;
 
 import androidx.core.app.ActivityCompat;
 
+import com.example.iotapp.codec.BinaryMessageCodec;
+import com.example.iotapp.codec.MessageFrame;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.transport.FrameDecoder;
+import com.example.iotapp.transport.FrameWriter;
+import com.example.iotapp.transport.ReconnectSupervisor;
+import com.example.iotapp.transport.RfcommTransport;
+import com.example.iotapp.transport.Transport;
+import com.example.iotapp.utils.EventBus;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class BluetoothManager {
     private static final String TAG = "BluetoothManager";
     private static final UUID DEFAULT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // Control frames start with '@', which never begins a message frame in either format (text
+    // frames start with a decimal node id, binary ones with BinaryMessageCodec.HEADER), so they
+    // are told apart by their first byte before and after the switch. After connecting we
+    // offer the binary format; a node that supports it answers and both sides switch to
+    // length prefixed binary frames, anything else keeps the newline delimited text format.
+    private static final byte CONTROL_MARKER = '@';
+    private static final String FORMAT_QUERY = "@FMT?B" + BinaryMessageCodec.VERSION;
+    private static final String FORMAT_ACCEPT = "@FMT:B" + BinaryMessageCodec.VERSION;
+    // A node that reports transmissions answers "@ACK:<id>,<timestamp>,<type>" once a message
+    // of ours went on air. On a binary link it only knows the timestamp to the second.
+    private static final String ACK_PREFIX = "@ACK:";
+    // A node announces its radio settings with "@CFG:SF<n>", e.g. on connect or when changed
+    private static final String SPREADING_FACTOR_PREFIX = "@CFG:SF";
+
+    // How long a user disconnect waits for frames already queued to go out
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+
+    // Encoding used for outgoing messages on the current connection
+    public enum WireFormat {
+        TEXT,
+        BINARY
+    }
+
+    // Lifecycle of a connection. Every connection starts CONNECTING and ends CLOSED, moving
+    // only forward: CONNECTING -> CONNECTED -> DRAINING -> CLOSED, or CONNECTING -> CLOSED
+    // when opening fails or is cancelled. Each move is a compare-and-set, so of a disconnect,
+    // a remote close and a read error racing each other exactly one wins and reports it.
+    // IDLE is what the manager reports while it has no connection at all.
+    public enum ConnectionState {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        DRAINING, // Closing: no new sends, the reader stops, queued frames may still go out
+        CLOSED
+    }
+
+    // One attempt to connect over one transport
+    private static final class Connection {
+        final Transport transport;
+        final TransportFactory factory; // Reopens the link when it drops, null for one-shot
+        final AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.CONNECTING);
+        volatile FrameWriter writer; // Set before the connection becomes CONNECTED
+        // Counted down once onConnectionSuccess is posted
+        final CountDownLatch announced = new CountDownLatch(1);
+
+        Connection(Transport transport, TransportFactory factory) {
+            this.transport = transport;
+            this.factory = factory;
+        }
+
+        boolean moveTo(ConnectionState from, ConnectionState to) {
+            return state.compareAndSet(from, to);
+        }
+    }
 
     // Singleton instance
     private static BluetoothManager instance;
 
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothSocket bluetoothSocket;
-    private InputStream inputStream;
-    private OutputStream outputStream;
-    private boolean isConnected = false;
+    private final Executor callbackExecutor;
+    private final ReconnectSupervisor reconnectSupervisor;
+    // The connection we want, swapped without locks. Null when idle. While reconnecting it is
+    // the last closed connection, an attempt only takes over if it is still the current one.
+    private final AtomicReference<Connection> current = new AtomicReference<>();
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+    // Starts the reader of a reconnected link once the supervisor has closed the outage
+    private final AtomicReference<Runnable> pendingReader = new AtomicReference<>();
 
     // Listener interface for Bluetooth events
     public interface BluetoothConnectionListener {
         void onConnectionSuccess(String deviceName);
         void onConnectionFailed(String errorMessage);
         void onDisconnected();
-        void onMessageReceived(String message);
+
+        // The link dropped and the next attempt to bring it back is due in delayMillis.
+        // onConnectionSuccess follows once it is back, there is no onDisconnected meanwhile.
+        default void onReconnecting(int attempt, long delayMillis) {
+        }
     }
 
-    private BluetoothConnectionListener connectionListener;
+    // A fresh transport for every connection attempt, a closed socket can't be reopened
+    public interface TransportFactory {
+        Transport create();
+    }
+
+    // Receives every complete inbound frame on the reader thread. The slice is only valid
+    // for the duration of the call.
+    public interface InboundFrameHandler {
+        void onFrame(byte[] frame, int offset, int length);
+    }
+
+    // Delivery events for the outbox, called on connection and reader threads
+    public interface DeliveryListener {
+        void onConnected();
+        // wholeSeconds is set on a binary link, where the timestamp was truncated to seconds
+        void onAcknowledged(String id, long timestamp, String type, boolean wholeSeconds);
+    }
+
+    private final EventBus<BluetoothConnectionListener> connectionEvents = new EventBus<>();
+    private volatile InboundFrameHandler inboundFrameHandler;
+    private volatile DeliveryListener deliveryListener;
+    private volatile IntConsumer spreadingFactorListener;
 
     // Private constructor for singleton pattern
     private BluetoothManager() {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(BluetoothAdapter.getDefaultAdapter(), new Handler(Looper.getMainLooper())::post);
+    }
+
+    // Used by JVM tests to run without an adapter and deliver callbacks without a Looper
+    BluetoothManager(BluetoothAdapter bluetoothAdapter, Executor callbackExecutor) {
+        this(bluetoothAdapter, callbackExecutor, ReconnectSupervisor.DEFAULT_BASE_DELAY_MS,
+                ReconnectSupervisor.DEFAULT_MAX_DELAY_MS);
+    }
+
+    BluetoothManager(BluetoothAdapter bluetoothAdapter, Executor callbackExecutor,
+                     long reconnectBaseDelayMillis, long reconnectMaxDelayMillis) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.callbackExecutor = callbackExecutor;
+        this.reconnectSupervisor = new ReconnectSupervisor(reconnectBaseDelayMillis, reconnectMaxDelayMillis,
+                new Random(), System::currentTimeMillis,
+                Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "ReconnectSupervisor")),
+                new ReconnectSupervisor.Listener() {
+                    @Override
+                    public void onReconnecting(int attempt, long delayMillis) {
+                        notifyListener(listener -> listener.onReconnecting(attempt, delayMillis));
+                    }
+
+                    @Override
+                    public void onReconnected(int attempts, long downtimeMillis) {
+                        Log.i(TAG, "Reconnected after " + attempts + " attempts, " + downtimeMillis + " ms down");
+                        // The outage is over, a drop seen by this reader is a new one
+                        Runnable reader = pendingReader.getAndSet(null);
+                        if (reader != null) {
+                            reader.run();
+                        }
+                    }
+                });
     }
 
     // Singleton getInstance method
@@ -55,9 +189,32 @@ public class BluetoothManager {
         return instance;
     }
 
-    // Set connection listener
-    public void setConnectionListener(BluetoothConnectionListener listener) {
-        this.connectionListener = listener;
+    // Connection events on the main thread until the subscription is cancelled. Any number
+    // of screens and services may listen at the same time.
+    public EventBus.Subscription subscribe(BluetoothConnectionListener listener) {
+        return connectionEvents.subscribe(listener, callbackExecutor);
+    }
+
+    // Connection events on the given executor, e.g. a background thread for listeners that
+    // do I/O
+    public EventBus.Subscription subscribe(BluetoothConnectionListener listener, Executor executor) {
+        return connectionEvents.subscribe(listener, executor);
+    }
+
+    // Set the consumer of inbound frames (the ingest pipeline)
+    public void setInboundFrameHandler(InboundFrameHandler handler) {
+        this.inboundFrameHandler = handler;
+    }
+
+    // Set the consumer of delivery events (the outbox)
+    public void setDeliveryListener(DeliveryListener listener) {
+        this.deliveryListener = listener;
+    }
+
+    // Set the consumer of the spreading factor the node reports (the transmit scheduler),
+    // called on the reader thread
+    public void setSpreadingFactorListener(IntConsumer listener) {
+        this.spreadingFactorListener = listener;
     }
 
     // Check if Bluetooth is available and enabled
@@ -93,92 +250,379 @@ public class BluetoothManager {
 
     // Connect to a specific Bluetooth device
     public void connectToDevice(Context context, BluetoothDevice device) {
-        new Thread(() -> {
-            try {
-                if (!checkBluetoothPermission(context)) {
-                    return;
-                }
+        if (!checkBluetoothPermission(context)) {
+            notifyListener(listener -> listener.onConnectionFailed("Bluetooth permission not granted"));
+            return;
+        }
+        // The device is remembered, a dropped link is brought back without the user
+        connect(() -> new RfcommTransport(device, DEFAULT_UUID));
+    }
 
-                bluetoothSocket = device.createRfcommSocketToServiceRecord(DEFAULT_UUID);
-                bluetoothSocket.connect();
+    // Bring back the link to a device we were connected to before, e.g. once the process was
+    // restarted. Failures are retried with backoff like after a drop, not reported.
+    public void restoreDevice(Context context, BluetoothDevice device) {
+        if (!checkBluetoothPermission(context)) {
+            notifyListener(listener -> listener.onConnectionFailed("Bluetooth permission not granted"));
+            return;
+        }
+        restore(() -> new RfcommTransport(device, DEFAULT_UUID));
+    }
 
-                inputStream = bluetoothSocket.getInputStream();
-                outputStream = bluetoothSocket.getOutputStream();
-                isConnected = true;
+    // Connect once over the given transport, a dropped link stays down
+    public void connect(Transport transport) {
+        startConnection(transport, null);
+    }
 
-                // Notify successful connection
-                if (connectionListener != null) {
-                    runOnMainThread(() -> connectionListener.onConnectionSuccess(device.getName()));
-                }
+    // Connect and keep the link up: whenever it drops, transports from the factory are
+    // opened with backoff until one connects
+    public void connect(TransportFactory factory) {
+        startConnection(factory.create(), factory);
+    }
 
-                // Start listening for messages
-                startMessageListener();
+    // Keep the link up like connect(factory), treating it as one that was up and just
+    // dropped: the first attempt already goes through the reconnect backoff
+    public void restore(TransportFactory factory) {
+        reconnectSupervisor.cancel();
+        // Stands for the link that was up before, it is never opened
+        Connection lost = new Connection(null, factory);
+        lost.state.set(ConnectionState.CLOSED);
+        Connection replaced = current.getAndSet(lost);
+        if (replaced != null) {
+            new Thread(() -> close(replaced, false)).start();
+        }
+        reconnect(lost);
+    }
 
+    private void startConnection(Transport first, TransportFactory factory) {
+        reconnectSupervisor.cancel();
+        Connection connection = new Connection(first, factory);
+        Connection replaced = current.getAndSet(connection);
+        if (replaced != null) {
+            new Thread(() -> close(replaced, false)).start();
+        }
+        new Thread(() -> {
+            try {
+                InputStream input = establish(connection);
+                if (input != null) {
+                    startMessageListener(input, connection);
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Connection failed", e);
-                if (connectionListener != null) {
-                    runOnMainThread(() -> connectionListener.onConnectionFailed(e.getMessage()));
+                // Only a link that was up once is retried, a first failure goes back to the
+                // user. Nothing to report if it was cancelled or replaced meanwhile.
+                if (current.compareAndSet(connection, null)) {
+                    notifyListener(listener -> listener.onConnectionFailed(e.getMessage()));
                 }
             }
         }).start();
     }
 
+    // Open the transport and start the writer on it, returns the stream for the reader. Used
+    // for the first connection and every reconnection. Throws if the link could not be
+    // opened; if the connection was closed while opening, the link is dropped again without
+    // a word and null is returned.
+    private InputStream establish(Connection connection) throws IOException {
+        Transport next = connection.transport;
+        InputStream input;
+        OutputStream output;
+        try {
+            next.open();
+            input = next.getInputStream();
+            output = next.getOutputStream();
+        } catch (IOException | RuntimeException e) {
+            closeTransport(next);
+            if (connection.moveTo(ConnectionState.CONNECTING, ConnectionState.CLOSED)) {
+                throw e;
+            }
+            return null;
+        }
+        FrameWriter writer = new FrameWriter(output);
+        connection.writer = writer;
+        wireFormat = WireFormat.TEXT;
+        if (!connection.moveTo(ConnectionState.CONNECTING, ConnectionState.CONNECTED)) {
+            writer.close();
+            closeTransport(next);
+            return null;
+        }
+        writer.submit(encodeTextFrame(FORMAT_QUERY), FrameWriter.Priority.NORMAL);
+        try {
+            // Resumes the outbound queue
+            DeliveryListener delivery = deliveryListener;
+            if (delivery != null) {
+                delivery.onConnected();
+            }
+
+            // Notify successful connection
+            String deviceName = next.getName();
+            notifyListener(listener -> listener.onConnectionSuccess(deviceName));
+        } finally {
+            connection.announced.countDown();
+        }
+        return input;
+    }
+
+    // Outages and reconnections since the app started
+    public ReconnectSupervisor.Metrics getReconnectMetrics() {
+        return reconnectSupervisor.getMetrics();
+    }
+
+    public boolean isReconnecting() {
+        return reconnectSupervisor.isReconnecting();
+    }
+
     // Send a message via Bluetooth
-    public void sendMessage(String message) {
-        if (!isConnected || outputStream == null) {
+    public CompletableFuture<Void> sendMessage(Message message) {
+        return sendMessage(message, FrameWriter.Priority.NORMAL);
+    }
+
+    // Queue a message on the connection's writer. The future completes once the frame is
+    // flushed and fails if we are not connected or the send queue is full.
+    public CompletableFuture<Void> sendMessage(Message message, FrameWriter.Priority priority) {
+        Connection connection = current.get();
+        if (connection == null || connection.state.get() != ConnectionState.CONNECTED) {
             Log.e(TAG, "Cannot send message: Not connected");
-            return;
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Not connected"));
+            return failed;
         }
 
-        new Thread(() -> {
-            try {
-                outputStream.write(message.getBytes());
-                outputStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "Error sending message", e);
+        byte[] frame = null;
+        if (wireFormat == WireFormat.BINARY) {
+            frame = encodeBinaryFrame(message);
+        }
+        if (frame == null) {
+            frame = encodeTextFrame(message.toBluetoothMessage());
+        }
+        // Once closing, the writer itself refuses the frame
+        return connection.writer.submit(frame, priority);
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    // Bytes the node puts on air for this message in the current wire format, i.e. the frame
+    // without the Bluetooth framing
+    public int getRadioPayloadLength(Message message) {
+        if (wireFormat == WireFormat.BINARY) {
+            MessageFrame holder = new MessageFrame();
+            if (holder.fromMessage(message)) {
+                return BinaryMessageCodec.encode(holder, new byte[BinaryMessageCodec.MAX_FRAME_LENGTH], 0);
             }
-        }).start();
+        }
+        return message.toBluetoothMessage().getBytes(StandardCharsets.UTF_8).length;
     }
 
-    // Internal method to listen for incoming messages
-    private void startMessageListener() {
+    // Frames are newline delimited so the receiver can split bursts
+    private static byte[] encodeTextFrame(String text) {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = Arrays.copyOf(body, body.length + 1);
+        frame[body.length] = FrameDecoder.DEFAULT_DELIMITER;
+        return frame;
+    }
+
+    // 16-bit length prefix followed by the binary encoding, null if the message cannot be
+    // represented in binary
+    private static byte[] encodeBinaryFrame(Message message) {
+        MessageFrame holder = new MessageFrame();
+        if (!holder.fromMessage(message)) {
+            return null;
+        }
+        byte[] buffer = new byte[2 + BinaryMessageCodec.MAX_FRAME_LENGTH];
+        int length = BinaryMessageCodec.encode(holder, buffer, 2);
+        buffer[0] = (byte) (length >>> 8);
+        buffer[1] = (byte) length;
+        return Arrays.copyOf(buffer, length + 2);
+    }
+
+    private void handleControlFrame(String control, FrameDecoder frameDecoder) {
+        if (control.equals(FORMAT_ACCEPT) && !frameDecoder.isLengthPrefixed()) {
+            Log.i(TAG, "Node accepted binary format v" + BinaryMessageCodec.VERSION);
+            frameDecoder.switchToLengthPrefixed();
+            wireFormat = WireFormat.BINARY;
+        } else if (control.startsWith(ACK_PREFIX)) {
+            handleAck(control.substring(ACK_PREFIX.length()));
+        } else if (control.startsWith(SPREADING_FACTOR_PREFIX)) {
+            handleSpreadingFactor(control.substring(SPREADING_FACTOR_PREFIX.length()));
+        }
+    }
+
+    private void handleAck(String ack) {
+        DeliveryListener delivery = deliveryListener;
+        String[] fields = ack.trim().split(",");
+        if (delivery == null || fields.length != 3) {
+            return;
+        }
+        try {
+            delivery.onAcknowledged(fields[0], Long.parseLong(fields[1]), fields[2],
+                    wireFormat == WireFormat.BINARY);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Malformed ack: " + ack);
+        }
+    }
+
+    private void handleSpreadingFactor(String value) {
+        IntConsumer listener = spreadingFactorListener;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.accept(Integer.parseInt(value.trim()));
+        } catch (IllegalArgumentException e) {
+            // Also a factor outside the LoRa range
+            Log.w(TAG, "Bad spreading factor: " + value);
+        }
+    }
+
+    // Internal method to listen for incoming messages on one connection
+    private void startMessageListener(InputStream input, Connection connection) {
         new Thread(() -> {
             byte[] buffer = new byte[1024];
             int bytes;
+            // A read may hold several frames or only part of one, the decoder reassembles them
+            FrameDecoder frameDecoder = FrameDecoder.delimited();
+            FrameDecoder.FrameListener frameListener = (frame, offset, length) -> {
+                if (length > 0 && frame[offset] == CONTROL_MARKER) {
+                    handleControlFrame(new String(frame, offset, length, StandardCharsets.UTF_8), frameDecoder);
+                    return;
+                }
+                InboundFrameHandler handler = inboundFrameHandler;
+                if (handler != null) {
+                    handler.onFrame(frame, offset, length);
+                }
+            };
 
-            while (isConnected) {
-                try {
-                    bytes = inputStream.read(buffer);
-                    String message = new String(buffer, 0, bytes);
-
-                    if (!message.isEmpty() && connectionListener != null) {
-                        runOnMainThread(() -> connectionListener.onMessageReceived(message));
+            try {
+                while (connection.state.get() == ConnectionState.CONNECTED) {
+                    bytes = input.read(buffer);
+                    if (bytes == -1) {
+                        Log.i(TAG, "Stream closed by remote device");
+                        break;
                     }
-                } catch (Exception e) {
+                    frameDecoder.feed(buffer, 0, bytes, frameListener);
+                }
+            } catch (Exception e) {
+                // Also how a read blocked on a link we close ourselves ends
+                if (connection.state.get() == ConnectionState.CONNECTED) {
                     Log.e(TAG, "Error reading from Bluetooth", e);
-                    disconnect();
-                    break;
                 }
             }
+            onLinkLost(connection);
         }).start();
     }
 
-    // Disconnect from the current device
+    // The link dropped under us. If we are asked to stay connected the supervisor brings it
+    // back and the screens stay as they are, otherwise it is a plain disconnect. Nothing to do
+    // if the connection is already being closed on purpose.
+    private void onLinkLost(Connection lost) {
+        if (!lost.moveTo(ConnectionState.CONNECTED, ConnectionState.DRAINING)) {
+            return;
+        }
+        closeLink(lost);
+        TransportFactory factory = lost.factory;
+        if (factory == null || current.get() != lost) {
+            if (current.compareAndSet(lost, null)) {
+                notifyListener(BluetoothConnectionListener::onDisconnected);
+            }
+            return;
+        }
+        reconnect(lost);
+    }
+
+    // Open transports from the lost connection's factory with backoff until one connects
+    private void reconnect(Connection lost) {
+        TransportFactory factory = lost.factory;
+        AtomicReference<Connection> previous = new AtomicReference<>(lost);
+        reconnectSupervisor.linkLost(() -> {
+            Connection next = new Connection(factory.create(), factory);
+            // Disconnected or connected elsewhere by the user meanwhile
+            if (!current.compareAndSet(previous.get(), next)) {
+                return;
+            }
+            previous.set(next);
+            InputStream input = establish(next);
+            if (input != null) {
+                pendingReader.set(() -> startMessageListener(input, next));
+            }
+        });
+    }
+
+    // Disconnect from the current device, and stop reconnecting
     public void disconnect() {
-        new Thread(() -> {
-            try {
-                if (bluetoothSocket != null) {
-                    bluetoothSocket.close();
-                }
-                isConnected = false;
+        Connection connection = current.getAndSet(null);
+        reconnectSupervisor.cancel();
+        if (connection == null) {
+            return;
+        }
+        new Thread(() -> close(connection, true)).start();
+    }
 
-                if (connectionListener != null) {
-                    runOnMainThread(() -> connectionListener.onDisconnected());
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error disconnecting device", e);
+    // Close a connection the user no longer wants, whatever state it is in. Reports the
+    // disconnect unless the connection was replaced by a new one.
+    private void close(Connection connection, boolean report) {
+        while (true) {
+            ConnectionState state = connection.state.get();
+            if (state == ConnectionState.CONNECTED
+                    && connection.moveTo(ConnectionState.CONNECTED, ConnectionState.DRAINING)) {
+                drain(connection.writer);
+                closeLink(connection);
+                // Keep the callbacks in order, the connection may have come up just now
+                awaitUninterruptibly(connection.announced);
+                break;
             }
-        }).start();
+            // Still opening: establish drops the link once open
+            if (state == ConnectionState.CONNECTING
+                    && connection.moveTo(ConnectionState.CONNECTING, ConnectionState.CLOSED)) {
+                break;
+            }
+            // Already lost and waiting for a reconnect, or closing anyway
+            if (state == ConnectionState.DRAINING || state == ConnectionState.CLOSED) {
+                break;
+            }
+        }
+        if (report) {
+            notifyListener(BluetoothConnectionListener::onDisconnected);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Give frames queued before the disconnect, e.g. a last status, a moment to go out. An
+    // empty frame completes once everything ahead of it is flushed.
+    private static void drain(FrameWriter writer) {
+        try {
+            writer.submit(new byte[0], FrameWriter.Priority.NORMAL).get(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.w(TAG, "Disconnecting with frames still queued: " + e.getMessage());
+        }
+    }
+
+    // DRAINING -> CLOSED. Closing the transport unblocks the reader.
+    private void closeLink(Connection connection) {
+        connection.writer.close();
+        closeTransport(connection.transport);
+        connection.state.set(ConnectionState.CLOSED);
+    }
+
+    private static void closeTransport(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error disconnecting device", e);
+        }
     }
 
     // Check Bluetooth connection permission
@@ -187,13 +631,18 @@ public class BluetoothManager {
                 == PackageManager.PERMISSION_GRANTED;
     }
 
-    // Utility method to run code on main thread
-    private void runOnMainThread(Runnable runnable) {
-        new Handler(Looper.getMainLooper()).post(runnable);
+    // Queues the event for every subscriber, never blocks the calling (reader) thread
+    private void notifyListener(Consumer<BluetoothConnectionListener> event) {
+        connectionEvents.publish(event);
+    }
+
+    public ConnectionState getConnectionState() {
+        Connection connection = current.get();
+        return connection == null ? ConnectionState.IDLE : connection.state.get();
     }
 
     // Getter for connection status
     public boolean isConnected() {
-        return isConnected;
+        return getConnectionState() == ConnectionState.CONNECTED;
     }
 }
\ No newline at end of file
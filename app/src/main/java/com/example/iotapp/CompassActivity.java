@@ -6,9 +6,6 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
-import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Gravity;
@@ -26,22 +23,26 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
-import com.example.iotapp.database.AppDatabase;
-import com.example.iotapp.models.Coordinates;
-import com.example.iotapp.models.Message;
+import com.example.iotapp.location.LocationFix;
+import com.example.iotapp.location.LocationProvider;
+import com.example.iotapp.peers.PeerIndex;
+import com.example.iotapp.peers.PeerRegistry;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class CompassActivity extends AppCompatActivity implements BluetoothManager.BluetoothConnectionListener{
+public class CompassActivity extends AppCompatActivity implements BluetoothManager.BluetoothConnectionListener, PeerRegistry.PeerListener {
     private CompassView compassView;
     private SensorManager sensorManager;
-    private LocationManager locationManager;
+    private LocationProvider locationProvider;
     private CompassView.UserLocation userLocation;
     private Button usersListButton;
-    private List<CompassView.UserLocation> userLocations;
+    private PeerRegistry peerRegistry;
+    private PopupWindow usersPopup;
+    private UserAdapter usersPopupAdapter;
     private static final String PREFS_NAME = "signals_prefs";
     private static final String KEY_UNIQUE_ID = "unique_id";
+    private static final int POPUP_PEERS = 50;
     private String ID;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -70,23 +71,15 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
         // Initialize sensor manager
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         
-        // Initialize location manager
-        locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
+        // Shared location provider, fixes arrive while the screen is resumed
+        locationProvider = LocationProvider.getInstance(this);
         userLocation = new CompassView.UserLocation(ID,0,0);
         // Fetch current GPS coordinates
         fetchCurrentLocation();
 
-        //Set initial position
-        compassView.setCurrentLat(userLocation.getLatitude());
-        compassView.setCurrentLon(userLocation.getLongitude());
-
-        // Generate fake user locations near the current location for testing
-        //userLocations = generateNearbyLocations(userLocation, 3); // Generate 3 test locations
-        userLocations = getUsersCoordinates();
-        compassView.updateUserLocations(userLocations);
-
-        // Request location updates
-        requestLocationUpdates();
+        // Peers come from the registry, current snapshot now and changes as they arrive
+        peerRegistry = PeerRegistry.getInstance(this);
+        compassView.applyPeerChanges(peerRegistry.getSnapshot().getPeers());
     }
     private void showUserPopup() {
         // Inflate the popup layout
@@ -103,8 +96,14 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
 
         // Set the user list
         ListView userListView = popupView.findViewById(R.id.userListView);
-        UserAdapter adapter = new UserAdapter(this, userLocations);
+        UserAdapter adapter = new UserAdapter(this, nearestUsers());
         userListView.setAdapter(adapter);
+        usersPopup = popupWindow;
+        usersPopupAdapter = adapter;
+        popupWindow.setOnDismissListener(() -> {
+            usersPopup = null;
+            usersPopupAdapter = null;
+        });
 
         // Close button
         Button closePopupButton = popupView.findViewById(R.id.closePopupButton);
@@ -115,9 +114,38 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
         popupWindow.showAtLocation(findViewById(R.id.compass), Gravity.CENTER, 0, 0);
     }
 
+    // Nearest peers first once we have a fix, straight from the peer index
+    private List<CompassView.UserLocation> nearestUsers() {
+        double lat = compassView.getCurrentLat();
+        double lon = compassView.getCurrentLon();
+        if (lat == 0 || lon == 0) {
+            return compassView.getUserLocations();
+        }
+        List<CompassView.UserLocation> nearest = new ArrayList<>();
+        for (PeerIndex.Neighbor neighbor : peerRegistry.getIndex().nearest(lat, lon, POPUP_PEERS, ID)) {
+            // The index can be ahead of the last published snapshot
+            CompassView.UserLocation user = compassView.getUserLocation(neighbor.id);
+            if (user != null) {
+                nearest.add(user);
+            }
+        }
+        return nearest;
+    }
+
+    @Override
+    public void onPeersChanged(PeerRegistry.Snapshot snapshot, List<PeerRegistry.Peer> changed) {
+        compassView.applyPeerChanges(changed);
+        if (usersPopup != null && usersPopup.isShowing()) {
+            usersPopupAdapter.setUsers(nearestUsers());
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
+        // Catch up on changes missed while paused, then follow the registry
+        peerRegistry.addListener(this);
+        compassView.applyPeerChanges(peerRegistry.getSnapshot().getPeers());
         // Register the sensor listener
         if (sensorManager != null) {
             Sensor orientationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ORIENTATION);
@@ -127,7 +155,7 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
         }
 
         // Resume location updates
-        requestLocationUpdates();
+        locationProvider.addListener(fixListener);
     }
 
     @Override
@@ -143,15 +171,14 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
     @Override
     protected void onPause() {
         super.onPause();
+        peerRegistry.removeListener(this);
         // Unregister the sensor listener
         if (sensorManager != null) {
             sensorManager.unregisterListener(compassView);
         }
 
         // Stop location updates
-        if (locationManager != null) {
-            locationManager.removeUpdates(locationListener);
-        }
+        locationProvider.removeListener(fixListener);
     }
 
     private void fetchCurrentLocation() {
@@ -162,57 +189,18 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
             return;
         }
 
-        Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-        if (location != null) {
-            userLocation.setLatitude(location.getLatitude());
-            userLocation.setLongitude(location.getLongitude());
-            compassView.setUserLocation(location.getLatitude(), location.getLongitude());
+        LocationFix fix = locationProvider.getLastFix();
+        if (fix != null) {
+            fixListener.onFix(fix);
         }
     }
 
-    private void requestLocationUpdates() {
-        try {
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 1, locationListener);
-        } catch (SecurityException e) {
-            e.printStackTrace(); // Handle permission issues
-        }
-    }
-
-    private final LocationListener locationListener = new LocationListener() {
-        @Override
-        public void onLocationChanged(@NonNull Location location) {
-
-            if (userLocation != null) {
-                // Call setUserLocation with latitude and longitude
-                compassView.setUserLocation(location.getLatitude(), location.getLongitude());
-            }
-        }
-
-        @Override
-        public void onStatusChanged(String provider, int status, Bundle extras) {}
-
-        @Override
-        public void onProviderEnabled(String provider) {}
-
-        @Override
-        public void onProviderDisabled(String provider) {}
+    private final LocationProvider.FixListener fixListener = fix -> {
+        userLocation.setLatitude(fix.latitude);
+        userLocation.setLongitude(fix.longitude);
+        compassView.setUserLocation(fix.latitude, fix.longitude);
     };
 
-    private List<CompassView.UserLocation> getUsersCoordinates(){
-        List<CompassView.UserLocation> locations = new ArrayList<>();
-
-        new Thread(() -> {
-            List<Coordinates> allCoordinates = AppDatabase.getInstance(this).coordinateDao().getAllCoordinates();
-            for (Coordinates coordinates : allCoordinates) {
-                CompassView.UserLocation loc = new CompassView.UserLocation(coordinates.getId(), coordinates.getLatitude(), coordinates.getLongitude());
-                locations.add(loc);
-            }
-        }).start();
-
-        return locations;
-    }
-
-
     @Override
     public void onConnectionSuccess(String deviceName) {
 
@@ -228,32 +216,4 @@ public class CompassActivity extends AppCompatActivity implements BluetoothManag
         Toast.makeText(this, "Disconnected from device", Toast.LENGTH_SHORT).show();
         finish();
     }
-
-    @Override
-    public void onMessageReceived(String message) {
-        Message receivedMessage = Message.fromBluetoothMessage(message);
-        if (receivedMessage != null) {
-            runOnUiThread(() -> {
-                // Add it to the database
-                new Thread(() -> {
-                    AppDatabase.getInstance(this).messageDao().insert(receivedMessage);
-                    if(receivedMessage.getType().equals("1")){
-                        String coords[] = receivedMessage.getPayload().split("-");
-                        String latitude = coords[0];
-                        String longitude = coords[1];
-                        Coordinates coordinates = AppDatabase.getInstance(this).coordinateDao().getCoordinatesById(receivedMessage.getId());
-                        if(coordinates != null){
-                            // Id already exists so update them
-                            AppDatabase.getInstance(this).coordinateDao().updateCoordinatesById(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-
-                        }else{
-                            // Create them
-                            Coordinates newCoordinates = new Coordinates(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-                            AppDatabase.getInstance(this).coordinateDao().insert(newCoordinates);
-                        }
-                    }
-                }).start();
-            });
-        }
-    }
-}
+}
\ No newline at end of file
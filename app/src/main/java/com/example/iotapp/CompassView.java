@@ -1,6 +1,7 @@
 package com.example.iotapp;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -16,13 +17,27 @@ import android.view.View;
 import androidx.annotation.NonNull;
 
 import com.example.iotapp.models.Coordinates;
+import com.example.iotapp.peers.PeerRegistry;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 
 public class CompassView extends View implements SensorEventListener {
+    // FULL draws every peer with its label. DECLUTTERED bins peers into bearing sectors, draws
+    // a count badge where several share a sector and labels only the nearest peers. AUTO
+    // switches to DECLUTTERED above DECLUTTER_THRESHOLD peers.
+    public enum RenderMode { FULL, DECLUTTERED, AUTO }
+
+    private static final int DECLUTTER_THRESHOLD = 50;
+    private static final int DEFAULT_LABELED_PEERS = 8;
+    private static final float MARKER_RADIUS = 20;
+    private static final float BADGE_RADIUS = 28;
+    private static final int MAX_SECTORS = 180;
+    private static final int MAX_BADGE_COUNT = 99;
+
     private Paint compassPaint;
     private Paint compassBorderPaint;
     private Paint textPaint;
@@ -30,6 +45,29 @@ public class CompassView extends View implements SensorEventListener {
     private Paint markerPaint;
     private Paint pointerPaint;
     private Paint directionPaint;
+    private Paint tickPaint;
+    private Paint dialBitmapPaint;
+    private Paint pointerFillPaint;
+    private Paint badgePaint;
+    private Paint badgeTextPaint;
+
+    private RenderMode renderMode = RenderMode.AUTO;
+    // Per frame declutter state, sized in onSizeChanged so onDraw doesn't allocate
+    private int sectorCount;
+    private int[] sectorPeers = new int[0];
+    private UserLocation[] sectorNearest = new UserLocation[0];
+    private UserLocation[] labeledPeers = new UserLocation[DEFAULT_LABELED_PEERS];
+    private int labeledCount;
+    // Badge texts "2".."99" and "99+", built on first use
+    private final String[] badgeLabels = new String[MAX_BADGE_COUNT + 2];
+
+    // Static dial (face, border, ticks and N/S/E/W) rendered once per size change, onDraw only
+    // rotates and blits it
+    private Bitmap dialBitmap;
+    private float radius;
+    private final Path pointerPath = new Path();
+    // Heading text buffer, "359.9°" at most
+    private final char[] headingChars = new char[8];
 
     private SensorManager sensorManager;
     private float azimuth; // Current rotation in degrees
@@ -38,6 +76,11 @@ public class CompassView extends View implements SensorEventListener {
     private double currentLat; // Current user's latitude
     private double currentLon; // Current user's longitude
     private List<UserLocation> userLocations = new ArrayList<>();
+    private final Map<String, UserLocation> userLocationsById = new HashMap<>();
+    // Bumped whenever our own fix moves. A peer's cached distance/bearing is valid while its
+    // geodesicFix matches, so orientation changes never recompute geodesics.
+    private int fixVersion;
+    private final float[] geodesicResults = new float[2];
 
     public CompassView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -94,6 +137,33 @@ public class CompassView extends View implements SensorEventListener {
         pointerPaint.setStyle(Paint.Style.STROKE);
         pointerPaint.setAntiAlias(true);
 
+        // Paint for the dial ticks
+        tickPaint = new Paint();
+        tickPaint.setColor(Color.WHITE);
+        tickPaint.setStrokeWidth(10);
+        tickPaint.setTextAlign(Paint.Align.CENTER);
+
+        // Filtered so the rotated dial doesn't look jagged
+        dialBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+
+        // Paint for the fixed center pointer
+        pointerFillPaint = new Paint();
+        pointerFillPaint.setColor(Color.RED);
+        pointerFillPaint.setStyle(Paint.Style.FILL);
+        pointerFillPaint.setAntiAlias(true);
+
+        // Paints for cluster badges
+        badgePaint = new Paint();
+        badgePaint.setColor(Color.rgb(50, 51, 51));
+        badgePaint.setStyle(Paint.Style.FILL);
+        badgePaint.setAntiAlias(true);
+        badgeTextPaint = new Paint();
+        badgeTextPaint.setColor(Color.WHITE);
+        badgeTextPaint.setTextSize(30);
+        badgeTextPaint.setTypeface(Typeface.DEFAULT_BOLD);
+        badgeTextPaint.setTextAlign(Paint.Align.CENTER);
+        badgeTextPaint.setAntiAlias(true);
+
         // Sensor initialization
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         Sensor orientationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ORIENTATION);
@@ -103,25 +173,71 @@ public class CompassView extends View implements SensorEventListener {
     }
 
     public void setUserLocation(double latitude, double longitude) {
+        if (latitude == currentLat && longitude == currentLon) {
+            return;
+        }
         this.currentLat = latitude;
         this.currentLon = longitude;
-        recalculateDistances();
+        fixVersion++;
         invalidate();
     }
 
     public void updateUserLocations(List<UserLocation> locations) {
-        this.userLocations = locations;
-        recalculateDistances();
+        this.userLocations = new ArrayList<>(locations);
+        userLocationsById.clear();
+        for (UserLocation user : userLocations) {
+            userLocationsById.put(user.id, user);
+        }
         invalidate();
     }
 
-    private void recalculateDistances() {
-        for (UserLocation user : userLocations) {
-            float[] results = new float[2];
-            android.location.Location.distanceBetween(currentLat, currentLon, user.latitude, user.longitude, results);
-            user.distance = results[0]; // Distance in meters
-            user.bearing = results[1]; // Bearing in degrees
+    // Apply peers added or moved since the last registry snapshot. Must be called on the main
+    // thread, the only thread that touches the list being drawn.
+    public void applyPeerChanges(List<PeerRegistry.Peer> changed) {
+        for (int i = 0; i < changed.size(); i++) {
+            PeerRegistry.Peer peer = changed.get(i);
+            UserLocation user = userLocationsById.get(peer.id);
+            if (user == null) {
+                user = new UserLocation(peer.id, peer.latitude, peer.longitude);
+                userLocations.add(user);
+                userLocationsById.put(peer.id, user);
+            } else if (user.latitude != peer.latitude || user.longitude != peer.longitude) {
+                user.setLatitude(peer.latitude);
+                user.setLongitude(peer.longitude);
+            }
         }
+        invalidate();
+    }
+
+    public UserLocation getUserLocation(String id) {
+        return userLocationsById.get(id);
+    }
+
+    public List<UserLocation> getUserLocations() {
+        return new ArrayList<>(userLocations);
+    }
+
+    // Recompute distance and bearing only if our fix or the peer's coordinates changed since
+    // the last time. Done lazily from onDraw so peers added later are picked up too.
+    private void updateGeodesics(UserLocation user) {
+        if (user.geodesicFix == fixVersion) {
+            return;
+        }
+        android.location.Location.distanceBetween(currentLat, currentLon, user.latitude, user.longitude, geodesicResults);
+        user.distance = geodesicResults[0]; // Distance in meters
+        user.bearing = geodesicResults[1]; // Bearing in degrees
+        user.geodesicFix = fixVersion;
+    }
+
+    public void setRenderMode(RenderMode renderMode) {
+        this.renderMode = renderMode;
+        invalidate();
+    }
+
+    // Number of nearest peers that get a full label in the decluttered mode
+    public void setLabeledPeerCount(int count) {
+        labeledPeers = new UserLocation[Math.max(0, count)];
+        invalidate();
     }
 
     public double getCurrentLat() {
@@ -134,110 +250,228 @@ public class CompassView extends View implements SensorEventListener {
 
     public void setCurrentLat(double currentLat) {
         this.currentLat = currentLat;
+        fixVersion++;
     }
 
     public void setCurrentLon(double currentLon) {
         this.currentLon = currentLon;
+        fixVersion++;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        radius = Math.min(w, h) / 2f - 50;
+        // One sector per marker width along the rim, so markers in different sectors don't overlap
+        sectorCount = radius > 0
+                ? Math.max(1, Math.min(MAX_SECTORS, (int) (2 * Math.PI * radius / (2 * MARKER_RADIUS))))
+                : 1;
+        sectorPeers = new int[sectorCount];
+        sectorNearest = new UserLocation[sectorCount];
+        buildDial();
+        buildPointerPath(w, h);
+    }
+
+    private void buildDial() {
+        if (dialBitmap != null) {
+            dialBitmap.recycle();
+            dialBitmap = null;
+        }
+        if (radius <= 0) {
+            return;
+        }
+        // Room for the border stroke around the face
+        int size = (int) Math.ceil(2 * (radius + 2 + compassBorderPaint.getStrokeWidth() / 2)) + 2;
+        dialBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas dial = new Canvas(dialBitmap);
+        float center = size / 2f;
+
+        // Draw the compass circle
+        dial.drawCircle(center, center, radius, compassPaint);
+        // Draw the border
+        dial.drawCircle(center, center, radius + 2, compassBorderPaint);
+
+        // Draw compass labels
+        dial.drawText("N", center, center - radius + 120, directionPaint);
+        dial.drawText("S", center, center + radius - 100, directionPaint);
+        dial.drawText("E", center + radius - 90, center + 30, directionPaint);
+        dial.drawText("W", center - radius + 90, center + 30, directionPaint);
+
+        // Draw ticks every 10 degrees
+        for (int angle = 0; angle < 360; angle += 10) {
+            double angleRad = Math.toRadians(angle);
+            float sin = (float) Math.sin(angleRad);
+            float cos = (float) Math.cos(angleRad);
+            dial.drawLine(center + (radius - 20) * sin, center - (radius - 20) * cos,
+                    center + radius * sin, center - radius * cos, tickPaint);
+        }
+    }
+
+    private void buildPointerPath(float width, float height) {
+        // Define the size and shape of the compass pointer
+        float pointerSize = 70; // Size of the pointer (width of the triangle base)
+        float pointerLength = 100; // Length of the pointer (height of the triangle)
+
+        // Path for the compass pointer (triangle shape)
+        pointerPath.reset();
+        pointerPath.moveTo(width / 2, height / 2 - pointerLength / 2); // Top point
+        pointerPath.lineTo(width / 2 - pointerSize / 2, height / 2 + pointerLength / 2); // Bottom-left point
+        pointerPath.lineTo(width / 2 + pointerSize / 2, height / 2 + pointerLength / 2); // Bottom-right point
+        pointerPath.close(); // Close the path to form a triangle
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (dialBitmap != null) {
+            dialBitmap.recycle();
+            dialBitmap = null;
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (dialBitmap == null && getWidth() > 0) {
+            buildDial();
+        }
     }
 
     @Override
     protected void onDraw(@NonNull Canvas canvas) {
         super.onDraw(canvas);
-        if (currentLat == 0 || currentLon == 0) {
+        if (currentLat == 0 || currentLon == 0 || dialBitmap == null) {
             // Skip rendering until valid coordinates are set
             return;
         }
         float width = getWidth();
         float height = getHeight();
-        float radius = Math.min(width, height) / 2 - 50;
 
-        // Draw the compass circle
-        canvas.drawCircle(width / 2, height / 2, radius, compassPaint);
-        // Draw the border
-        canvas.drawCircle(width / 2, height / 2, radius + 2, compassBorderPaint);
         // Draw the current azimuth value
-        String azimuthText = String.format(Locale.ENGLISH, "%.1f°", azimuth);
-        canvas.drawText(azimuthText, width / 2, 150, headingTextPaint);
+        int headingLength = formatHeading(azimuth);
+        canvas.drawText(headingChars, headingChars.length - headingLength, headingLength, width / 2, 150, headingTextPaint);
 
-        // Save the canvas state and rotate the compass circle and labels
+        // Rotate the pre-rendered dial
         canvas.save();
         canvas.rotate(-azimuth, width / 2, height / 2);
+        canvas.drawBitmap(dialBitmap, width / 2 - dialBitmap.getWidth() / 2f,
+                height / 2 - dialBitmap.getHeight() / 2f, dialBitmapPaint);
+        // Restore canvas state before drawing user markers
+        canvas.restore();
 
-        // Draw compass labels
-        canvas.drawText("N", width / 2, height / 2 - radius + 120, directionPaint);
-        canvas.drawText("S", width / 2, height / 2 + radius - 100, directionPaint);
-        canvas.drawText("E", width / 2 + radius - 90, height / 2 + 30, directionPaint);
-        canvas.drawText("W", width / 2 - radius + 90, height / 2 + 30, directionPaint);
-
-        // Draw ticks and degree labels
-        Paint tickPaint = new Paint();
-        tickPaint.setColor(Color.WHITE);
-        tickPaint.setStrokeWidth(10);
-        tickPaint.setTextAlign(Paint.Align.CENTER);
+        // Draw user markers (fixed relative to their geographic location)
+        List<UserLocation> users = userLocations;
+        boolean declutter = renderMode == RenderMode.DECLUTTERED
+                || (renderMode == RenderMode.AUTO && users.size() > DECLUTTER_THRESHOLD);
+        if (declutter) {
+            drawDeclutteredPeers(canvas, users, width / 2, height / 2);
+        } else {
+            for (int i = 0; i < users.size(); i++) {
+                UserLocation user = users.get(i);
+                updateGeodesics(user);
+                drawPeer(canvas, user, width / 2, height / 2, true);
+            }
+        }
+        // Draw the fixed center pointer
+        canvas.drawPath(pointerPath, pointerFillPaint);
+    }
 
-        for (int angle = 0; angle < 360; angle += 10) {
-            double angleRad = Math.toRadians(angle);
+    private void drawPeer(Canvas canvas, UserLocation user, float centerX, float centerY, boolean withLabel) {
+        // Calculate the angle relative to the compass (true bearing - azimuth)
+        double angle = Math.toRadians(user.bearing - azimuth);
 
-            // Calculate start and end points for the tick
-            float startX = (float) (width / 2 + (radius - 20) * Math.sin(angleRad));
-            float startY = (float) (height / 2 - (radius - 20) * Math.cos(angleRad));
-            float endX = (float) (width / 2 + radius * Math.sin(angleRad));
-            float endY = (float) (height / 2 - radius * Math.cos(angleRad));
-
-            // Draw the tick
-            canvas.drawLine(startX, startY, endX, endY, tickPaint);
-
-            // Draw degree labels every 20 degrees
-            /*
-            if (angle % 20 == 0) {
-                float labelX = (float) (width / 2 + (radius - 50) * Math.sin(angleRad));
-                float labelY = (float) (height / 2 - (radius - 50) * Math.cos(angleRad));
-                canvas.drawText(String.valueOf(angle), labelX, labelY, tickPaint);
-            }
+        // Determine marker position
+        float x = (float) (centerX + radius * Math.sin(angle));
+        float y = (float) (centerY - radius * Math.cos(angle));
 
-             */
+        // Get random color for marker
+        markerPaint.setColor(user.color);
+        // Draw the marker
+        canvas.drawCircle(x, y, MARKER_RADIUS, markerPaint);
+        if (withLabel) {
+            canvas.drawText(user.getLabel(), x, y - 30, textPaint);
         }
+    }
 
-        // Restore canvas state before drawing user markers
-        canvas.restore();
+    private void drawDeclutteredPeers(Canvas canvas, List<UserLocation> users, float centerX, float centerY) {
+        for (int s = 0; s < sectorCount; s++) {
+            sectorPeers[s] = 0;
+            sectorNearest[s] = null;
+        }
+        labeledCount = 0;
+
+        // Bin by true bearing and keep the K nearest peers overall
+        float sectorWidth = 360f / sectorCount;
+        for (int i = 0; i < users.size(); i++) {
+            UserLocation user = users.get(i);
+            updateGeodesics(user);
+            float bearing = user.bearing < 0 ? user.bearing + 360 : user.bearing;
+            int sector = Math.min(sectorCount - 1, (int) (bearing / sectorWidth));
+            sectorPeers[sector]++;
+            if (sectorNearest[sector] == null || user.distance < sectorNearest[sector].distance) {
+                sectorNearest[sector] = user;
+            }
+            offerLabeledPeer(user);
+        }
 
-        // Draw user markers (fixed relative to their geographic location)
-        for (UserLocation user : userLocations) {
-            // Calculate the angle relative to the compass (true bearing - azimuth)
-            double angle = Math.toRadians(user.bearing - azimuth);
-
-            // Determine marker position
-            float x = (float) (width / 2 + radius * Math.sin(angle));
-            float y = (float) (height / 2 - radius * Math.cos(angle));
-
-            // Get random color for marker
-            markerPaint.setColor(user.color);
-            // Draw the marker
-            canvas.drawCircle(x, y, 20, markerPaint);
-            canvas.drawText(user.id + " (" + Math.round(user.distance) + "m)", x, y - 30, textPaint);
+        for (int s = 0; s < sectorCount; s++) {
+            UserLocation nearest = sectorNearest[s];
+            if (nearest == null) {
+                continue;
+            }
+            if (sectorPeers[s] == 1) {
+                drawPeer(canvas, nearest, centerX, centerY, false);
+                continue;
+            }
+            // Several peers share the sector, draw one badge with their count at the sector center
+            double angle = Math.toRadians((s + 0.5f) * sectorWidth - azimuth);
+            float x = (float) (centerX + radius * Math.sin(angle));
+            float y = (float) (centerY - radius * Math.cos(angle));
+            canvas.drawCircle(x, y, BADGE_RADIUS, badgePaint);
+            canvas.drawText(badgeLabel(sectorPeers[s]), x, y + badgeTextPaint.getTextSize() / 3, badgeTextPaint);
         }
-        drawFixedCenteredCompassPointer(canvas, width, height);
 
+        // Full labels for the nearest peers only, drawn on top
+        for (int i = 0; i < labeledCount; i++) {
+            drawPeer(canvas, labeledPeers[i], centerX, centerY, true);
+        }
     }
 
-    private void drawFixedCenteredCompassPointer(Canvas canvas, float width, float height) {
-        // Define the size and shape of the compass pointer
-        float pointerSize = 70; // Size of the pointer (width of the triangle base)
-        float pointerLength = 100; // Length of the pointer (height of the triangle)
+    // Insert into labeledPeers, which is kept sorted by distance
+    private void offerLabeledPeer(UserLocation user) {
+        int capacity = labeledPeers.length;
+        if (capacity == 0 || (labeledCount == capacity && user.distance >= labeledPeers[capacity - 1].distance)) {
+            return;
+        }
+        int position = labeledCount < capacity ? labeledCount++ : capacity - 1;
+        while (position > 0 && labeledPeers[position - 1].distance > user.distance) {
+            labeledPeers[position] = labeledPeers[position - 1];
+            position--;
+        }
+        labeledPeers[position] = user;
+    }
 
-        // Create a path for the compass pointer (triangle shape)
-        Path pointerPath = new Path();
-        pointerPath.moveTo(width / 2, height / 2 - pointerLength / 2); // Top point
-        pointerPath.lineTo(width / 2 - pointerSize / 2, height / 2 + pointerLength / 2); // Bottom-left point
-        pointerPath.lineTo(width / 2 + pointerSize / 2, height / 2 + pointerLength / 2); // Bottom-right point
-        pointerPath.close(); // Close the path to form a triangle
+    private String badgeLabel(int count) {
+        int index = Math.min(count, MAX_BADGE_COUNT + 1);
+        if (badgeLabels[index] == null) {
+            badgeLabels[index] = count > MAX_BADGE_COUNT ? MAX_BADGE_COUNT + "+" : Integer.toString(count);
+        }
+        return badgeLabels[index];
+    }
 
-        // Draw the compass pointer
-        Paint pointerPaint = new Paint();
-        pointerPaint.setColor(Color.RED); // Color of the pointer
-        pointerPaint.setStyle(Paint.Style.FILL); // Fill the triangle
-        pointerPaint.setAntiAlias(true); // Smooth edges
-        canvas.drawPath(pointerPath, pointerPaint);
+    // Writes the heading as "123.4°" right aligned into headingChars, returns its length
+    private int formatHeading(float degrees) {
+        int tenths = Math.round(degrees * 10);
+        int position = headingChars.length;
+        headingChars[--position] = '°';
+        headingChars[--position] = (char) ('0' + tenths % 10);
+        headingChars[--position] = '.';
+        int whole = tenths / 10;
+        do {
+            headingChars[--position] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole > 0);
+        return headingChars.length - position;
     }
 
 
@@ -270,7 +504,7 @@ public class CompassView extends View implements SensorEventListener {
 
         azimuth = filteredAzimuth; // Use the filtered value for rendering
 
-        recalculateDistances();
+        // Only the heading changed, cached distances and bearings stay valid
         invalidate();
     }
 
@@ -284,6 +518,11 @@ public class CompassView extends View implements SensorEventListener {
         public float distance;
         public float bearing;
         public int color;
+        // fixVersion the distance and bearing were computed for, -1 when stale
+        int geodesicFix = -1;
+        // "id (120m)", rebuilt only when the distance moves to another bucket
+        private String label;
+        private int labelBucket = -1;
         private Random random;
         public UserLocation(String id, double latitude, double longitude) {
             random = new Random();
@@ -296,6 +535,21 @@ public class CompassView extends View implements SensorEventListener {
             return id;
         }
 
+        String getLabel() {
+            int bucket = distanceBucket(distance);
+            if (label == null || bucket != labelBucket) {
+                labelBucket = bucket;
+                label = id + " (" + bucket + "m)";
+            }
+            return label;
+        }
+
+        // Distance rounded to 10 m below 1 km, 100 m below 10 km and 1 km beyond
+        static int distanceBucket(float meters) {
+            int step = meters < 1000 ? 10 : meters < 10000 ? 100 : 1000;
+            return Math.round(meters / step) * step;
+        }
+
         public double getLatitude() {
             return latitude;
         }
@@ -306,10 +560,12 @@ public class CompassView extends View implements SensorEventListener {
 
         public void setLatitude(double latitude) {
             this.latitude = latitude;
+            this.geodesicFix = -1;
         }
 
         public void setLongitude(double longitude) {
             this.longitude = longitude;
+            this.geodesicFix = -1;
         }
     }
 }
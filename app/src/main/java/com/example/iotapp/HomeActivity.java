@@ -21,9 +21,9 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
 
-import com.example.iotapp.database.AppDatabase;
-import com.example.iotapp.models.Coordinates;
 import com.example.iotapp.models.Message;
+import com.example.iotapp.outbox.Outbox;
+import com.example.iotapp.utils.EventBus;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -41,6 +41,7 @@ public class HomeActivity extends AppCompatActivity implements BluetoothManager.
     private OutputStream outputStream;
     private boolean isConnected = false;
     private BluetoothManager bluetoothManager;
+    private EventBus.Subscription connectionSubscription;
     private static final String PREFS_NAME = "signals_prefs";
     private static final String KEY_UNIQUE_ID = "unique_id";
     private String ID;
@@ -72,7 +73,7 @@ public class HomeActivity extends AppCompatActivity implements BluetoothManager.
 
         // Initialize BluetoothManager
         bluetoothManager = BluetoothManager.getInstance();
-        bluetoothManager.setConnectionListener((BluetoothManager.BluetoothConnectionListener) this);
+        connectionSubscription = bluetoothManager.subscribe(this);
 
         if (bluetoothManager == null) {
             Toast.makeText(this, "Bluetooth not supported", Toast.LENGTH_SHORT).show();
@@ -111,15 +112,13 @@ public class HomeActivity extends AppCompatActivity implements BluetoothManager.
         });
 
         sosButton.setOnClickListener(v -> {
+            // Queued even without a connection, the outbox sends it first thing on reconnect
+            Message sosMessage = new Message(ID,System.currentTimeMillis(),"2","14");
+            Outbox.getInstance(this).send(sosMessage);
             if(bluetoothManager.isConnected()){
-                Message sosMessage = new Message(ID,Long.toString(System.currentTimeMillis()),"2","14");
-                bluetoothManager.sendMessage(sosMessage.toBluetoothMessage());
-                new Thread(() -> {
-                    AppDatabase.getInstance(this).messageDao().insert(sosMessage);
-                }).start();
                 Toast.makeText(this, "SOS triggered!", Toast.LENGTH_SHORT).show();
             }else{
-                Toast.makeText(this, "No device connected", Toast.LENGTH_SHORT).show();
+                Toast.makeText(this, "No device connected, SOS queued until one is", Toast.LENGTH_LONG).show();
             }
         });
     }
@@ -160,7 +159,15 @@ public class HomeActivity extends AppCompatActivity implements BluetoothManager.
         listView.setOnItemClickListener((parent, view, position, id) -> {
             dialog.dismiss();
             BluetoothDevice selectedDevice = deviceList.get(position);
-            bluetoothManager.connectToDevice(this, selectedDevice);
+            // Without it the link still runs, only its notification is hidden
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                    && ActivityCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+                ActivityCompat.requestPermissions(this,
+                        new String[]{android.Manifest.permission.POST_NOTIFICATIONS},
+                        2);
+            }
+            // The link, ingest and beacons live in LinkService, this screen only observes
+            LinkService.connect(this, selectedDevice);
         });
 
         dialog.show();
@@ -185,6 +192,12 @@ public class HomeActivity extends AppCompatActivity implements BluetoothManager.
         });
     }
 
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        // Messages sent meanwhile wait in the outbox, so the menu stays usable
+        runOnUiThread(() -> connectionStatus.setText(getString(R.string.reconnecting, attempt)));
+    }
+
     @Override
     public void onDisconnected() {
         runOnUiThread(() -> {
@@ -193,40 +206,10 @@ public class HomeActivity extends AppCompatActivity implements BluetoothManager.
         });
     }
 
-    @Override
-    public void onMessageReceived(String message) {
-        Message receivedMessage = Message.fromBluetoothMessage(message);
-        if (receivedMessage != null) {
-            runOnUiThread(() -> {
-                // Add it to the database
-                new Thread(() -> {
-                    AppDatabase.getInstance(this).messageDao().insert(receivedMessage);
-                    if(receivedMessage.getType().equals("1")){
-                        String coords[] = receivedMessage.getPayload().split("-");
-                        String latitude = coords[0];
-                        String longitude = coords[1];
-                        Coordinates coordinates = AppDatabase.getInstance(this).coordinateDao().getCoordinatesById(receivedMessage.getId());
-                        if(coordinates != null){
-                            // Id already exists so update them
-                            AppDatabase.getInstance(this).coordinateDao().updateCoordinatesById(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-
-
-                        }else{
-                            // Create them
-                            Coordinates newCoordinates = new Coordinates(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-                            AppDatabase.getInstance(this).coordinateDao().insert(newCoordinates);
-
-                        }
-                    }
-                }).start();
-            });
-        }
-    }
-
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        connectionSubscription.unsubscribe();
         isConnected = false;
         runOnUiThread(this::disableMenu);
         try {
@@ -0,0 +1,290 @@
+package com.example.iotapp;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import com.example.iotapp.database.HistoryCompactor;
+import com.example.iotapp.ingest.MessagePipeline;
+import com.example.iotapp.outbox.Outbox;
+import com.example.iotapp.utils.BeaconScheduler;
+import com.example.iotapp.utils.EventBus;
+
+// Keeps the node link, ingest, outbox and beacons running with no screen open, e.g. while
+// the phone is locked in a pocket. Runs in the foreground with an ongoing notification showing
+// the link state, from the moment a device is picked until the user disconnects. The device is
+// remembered so that when the system restarts the service after killing the process, the
+// link comes back and the beacons scheduled before resume. Screens only observe.
+//
+// While position beacons are scheduled the service also runs as a location service, without
+// which Android 10 and later stop delivering fixes once no screen is open.
+public class LinkService extends Service implements BluetoothManager.BluetoothConnectionListener {
+    private static final String TAG = "LinkService";
+    private static final String CHANNEL_ID = "link";
+    static final int NOTIFICATION_ID = 1;
+    static final String EXTRA_DEVICE_ADDRESS = "device_address";
+    static final String PREFS_NAME = "link_prefs";
+    static final String KEY_DEVICE_ADDRESS = "device_address";
+
+    // What the service runs, replaced in tests
+    interface Components {
+        BluetoothManager bluetoothManager();
+
+        // Ingest, outbox, history compaction and the beacons restored from the job store
+        void startBackgroundWork(Context context);
+
+        void stopBackgroundWork(Context context);
+
+        void connect(Context context, BluetoothManager bluetoothManager, String deviceAddress);
+
+        // Bring back the link that was up before the process died, retrying with backoff
+        void restore(Context context, BluetoothManager bluetoothManager, String deviceAddress);
+
+        // The listener gets the scheduled beacons right away and on every change, on any thread
+        void watchBeacons(Context context, BeaconScheduler.JobListener listener);
+
+        void unwatchBeacons(Context context, BeaconScheduler.JobListener listener);
+    }
+
+    static Components components = new DefaultComponents();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private BluetoothManager bluetoothManager;
+    private EventBus.Subscription connectionSubscription;
+    private String status;
+    private boolean positionBeacons;
+    private int foregroundServiceType;
+    private boolean stopped;
+
+    private final BeaconScheduler.JobListener beaconListener = jobs -> {
+        boolean positions = false;
+        for (BeaconScheduler.Job job : jobs) {
+            positions |= job.isPositionBeacon();
+        }
+        boolean scheduled = positions;
+        mainHandler.post(() -> onPositionBeaconsChanged(scheduled));
+    };
+
+    // Connect to the device in the background service, the link stays up with the UI closed
+    public static void connect(Context context, BluetoothDevice device) {
+        Intent intent = new Intent(context, LinkService.class);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, device.getAddress());
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.link_channel_name), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        status = getString(R.string.connecting);
+        startForeground();
+
+        bluetoothManager = components.bluetoothManager();
+        connectionSubscription = bluetoothManager.subscribe(this);
+        components.startBackgroundWork(this);
+        components.watchBeacons(this, beaconListener);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String address = intent == null ? null : intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+        if (address != null) {
+            // Picked by the user, connect even if we are connected elsewhere
+            prefs.edit().putString(KEY_DEVICE_ADDRESS, address).apply();
+            components.connect(this, bluetoothManager, address);
+            return START_STICKY;
+        }
+        // Restarted by the system after the process died
+        address = prefs.getString(KEY_DEVICE_ADDRESS, null);
+        if (address == null) {
+            stopLink();
+            return START_NOT_STICKY;
+        }
+        if (bluetoothManager.getConnectionState() == BluetoothManager.ConnectionState.IDLE) {
+            Log.i(TAG, "Restoring link to " + address);
+            components.restore(this, bluetoothManager, address);
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        connectionSubscription.unsubscribe();
+        components.unwatchBeacons(this, beaconListener);
+        components.stopBackgroundWork(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onConnectionSuccess(String deviceName) {
+        updateNotification(getString(R.string.connected_to, deviceName));
+    }
+
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        updateNotification(getString(R.string.reconnecting, attempt));
+    }
+
+    // The connection the user asked for failed. The device is still the one they picked, so
+    // it stays remembered.
+    @Override
+    public void onConnectionFailed(String errorMessage) {
+        stopService();
+    }
+
+    // Drops are reconnected, so this is the user disconnecting: the link is no longer wanted
+    @Override
+    public void onDisconnected() {
+        stopLink();
+    }
+
+    private void stopLink() {
+        getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().remove(KEY_DEVICE_ADDRESS).apply();
+        stopService();
+    }
+
+    private void stopService() {
+        stopped = true;
+        ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+        stopSelf();
+    }
+
+    private void onPositionBeaconsChanged(boolean scheduled) {
+        if (stopped || scheduled == positionBeacons) {
+            return;
+        }
+        positionBeacons = scheduled;
+        startForeground();
+    }
+
+    // Called again to change the type, e.g. when position beacons start or stop
+    private void startForeground() {
+        int type = ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE;
+        if (positionBeacons && hasLocationPermission()) {
+            type |= ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION;
+        }
+        try {
+            ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(status), type);
+        } catch (SecurityException e) {
+            // Not allowed from the background without background location, beacons then
+            // repeat the last fix
+            Log.w(TAG, "Running without location", e);
+            type = ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE;
+            ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(status), type);
+        }
+        foregroundServiceType = type;
+    }
+
+    int getForegroundServiceType() {
+        return foregroundServiceType;
+    }
+
+    private boolean hasLocationPermission() {
+        return ContextCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED
+                || ContextCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_COARSE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void updateNotification(String status) {
+        this.status = status;
+        getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification(status));
+    }
+
+    private Notification buildNotification(String status) {
+        PendingIntent openApp = PendingIntent.getActivity(this, 0, new Intent(this, HomeActivity.class),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(status)
+                .setContentIntent(openApp)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    private static final class DefaultComponents implements Components {
+        @Override
+        public BluetoothManager bluetoothManager() {
+            return BluetoothManager.getInstance();
+        }
+
+        @Override
+        public void startBackgroundWork(Context context) {
+            // Frames are stored whichever screen is open, or none
+            MessagePipeline.getInstance(context);
+            // Send whatever was queued while disconnected as soon as the link comes up
+            Outbox.getInstance(context);
+            // Keep the stored history within its retention policy
+            HistoryCompactor.getInstance(context).start();
+            // Reschedules the beacons that were running before the process died
+            BeaconScheduler.getInstance(context);
+        }
+
+        @Override
+        public void stopBackgroundWork(Context context) {
+            // Commit messages still waiting in the write-behind buffer
+            MessagePipeline.getInstance(context).flush();
+        }
+
+        @Override
+        public void connect(Context context, BluetoothManager bluetoothManager, String deviceAddress) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter == null) {
+                Log.e(TAG, "No Bluetooth adapter");
+                return;
+            }
+            bluetoothManager.connectToDevice(context, adapter.getRemoteDevice(deviceAddress));
+        }
+
+        @Override
+        public void restore(Context context, BluetoothManager bluetoothManager, String deviceAddress) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter == null) {
+                Log.e(TAG, "No Bluetooth adapter");
+                return;
+            }
+            bluetoothManager.restoreDevice(context, adapter.getRemoteDevice(deviceAddress));
+        }
+
+        @Override
+        public void watchBeacons(Context context, BeaconScheduler.JobListener listener) {
+            BeaconScheduler.getInstance(context).addListener(listener);
+        }
+
+        @Override
+        public void unwatchBeacons(Context context, BeaconScheduler.JobListener listener) {
+            BeaconScheduler.getInstance(context).removeListener(listener);
+        }
+    }
+}
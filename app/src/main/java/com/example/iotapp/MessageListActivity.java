@@ -7,7 +7,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
@@ -19,25 +18,56 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.room.InvalidationTracker;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.iotapp.database.AppDatabase;
-import com.example.iotapp.models.Coordinates;
 import com.example.iotapp.models.Message;
+import com.example.iotapp.peers.PeerIndex;
+import com.example.iotapp.utils.EventBus;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MessageListActivity extends AppCompatActivity implements BluetoothManager.BluetoothConnectionListener {
+    private static final int PAGE_SIZE = 50;
+    private static final int SOS_NEAREST_PEERS = 5;
 
     private MessageAdapter messageAdapter;
     private List<Message> messages;
     private BluetoothManager bluetoothManager;
+    private EventBus.Subscription connectionSubscription;
     private String deviceImei; // You should get this from your device settings
     private RecyclerView messagesRecyclerView;
     private ArrayAdapter<CharSequence> statusTypeAdapter;
 
+    // Keyset paging state, the list always holds the contiguous uid range [oldestUid, newestUid]
+    private int oldestUid = Integer.MAX_VALUE;
+    private int newestUid = 0;
+    private boolean hasOlderMessages = true;
+    private boolean loadingOlder = false;
+    private boolean loadingNewer = false;
+    // Newest uid any query has returned, only touched from the query thread
+    private int queriedNewestUid = 0;
+    // Rows stored after queriedNewestUid that are left for the user to scroll down to
+    private volatile boolean hasNewerMessages = false;
+    // Queries run one at a time so refreshes never stack up
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    private final InvalidationTracker.Observer messagesObserver = new InvalidationTracker.Observer("messages") {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            // With a backlog below, new rows wait their turn at the end of it
+            if (!hasNewerMessages) {
+                loadNewerMessages();
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -46,24 +76,7 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
         setupUI();
         initializeBluetoothManager();
         initializeMessageList();
-        loadMessages();
-
-        // Refresh messages every 10s
-        scheduleMessageLoading();
-
-    }
-
-    private final Handler handler = new Handler();
-    private final Runnable messageLoader = new Runnable() {
-        @Override
-        public void run() {
-            loadMessages();
-            handler.postDelayed(this, 10000); // Schedule next execution in 10 seconds
-        }
-    };
-
-    private void scheduleMessageLoading() {
-        handler.postDelayed(messageLoader, 10000); // Start after 10 seconds
+        loadLatestMessages();
     }
 
     private void setupUI() {
@@ -83,20 +96,98 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
 
 
     }
-    private void loadMessages(){
-        // Load messages from the database
-        new Thread(() -> {
-            List<Message> messages = AppDatabase.getInstance(this).messageDao().getAllMessages();
+
+    // First page: the newest messages, oldest of them at the top
+    private void loadLatestMessages() {
+        queryExecutor.execute(() -> {
+            List<Message> page = AppDatabase.getInstance(this).messageDao().getLatestMessages(PAGE_SIZE);
+            Collections.reverse(page);
+            if (!page.isEmpty()) {
+                queriedNewestUid = Math.max(queriedNewestUid, page.get(page.size() - 1).getUid());
+            }
             runOnUiThread(() -> {
-                this.messages.clear();
-                this.messages.addAll(messages);
-                messageAdapter.notifyDataSetChanged();
+                if (page.isEmpty()) {
+                    hasOlderMessages = false;
+                    return;
+                }
+                hasOlderMessages = page.size() == PAGE_SIZE;
+                oldestUid = Math.min(oldestUid, page.get(0).getUid());
+                appendMessages(page);
+                messagesRecyclerView.scrollToPosition(messages.size() - 1);
+            });
+        });
+    }
+
+    // One page of rows stored after the last one we show, triggered by table invalidations and
+    // by scrolling to the bottom. A backlog, e.g. after the screen was stopped for a while, is
+    // not loaded in one go: the next page comes when the user scrolls down to it.
+    private void loadNewerMessages() {
+        queryExecutor.execute(() -> {
+            List<Message> page = AppDatabase.getInstance(this).messageDao().getMessagesAfter(queriedNewestUid, PAGE_SIZE);
+            hasNewerMessages = page.size() == PAGE_SIZE;
+            if (!page.isEmpty()) {
+                queriedNewestUid = page.get(page.size() - 1).getUid();
+            }
+            boolean caughtUp = !hasNewerMessages;
+            runOnUiThread(() -> {
+                loadingNewer = false;
+                if (page.isEmpty()) {
+                    return;
+                }
+                boolean atBottom = !messagesRecyclerView.canScrollVertically(1);
+                if (oldestUid == Integer.MAX_VALUE) {
+                    oldestUid = page.get(0).getUid();
+                }
+                appendMessages(page);
+                // Follow live messages, but leave a backlog for the user to scroll through
+                if (atBottom && caughtUp) {
+                    messagesRecyclerView.smoothScrollToPosition(messages.size() - 1);
+                }
+            });
+        });
+    }
+
+    // Older page, triggered when the user scrolls to the top
+    private void loadOlderMessages() {
+        if (loadingOlder || !hasOlderMessages || oldestUid == Integer.MAX_VALUE) {
+            return;
+        }
+        loadingOlder = true;
+        int beforeUid = oldestUid;
+        queryExecutor.execute(() -> {
+            List<Message> page = AppDatabase.getInstance(this).messageDao().getMessagesBefore(beforeUid, PAGE_SIZE);
+            Collections.reverse(page);
+            runOnUiThread(() -> {
+                loadingOlder = false;
+                hasOlderMessages = page.size() == PAGE_SIZE;
+                if (page.isEmpty()) {
+                    return;
+                }
+                oldestUid = page.get(0).getUid();
+                messages.addAll(0, page);
+                messageAdapter.notifyItemRangeInserted(0, page.size());
             });
-        }).start();
+        });
     }
+
+    private void appendMessages(List<Message> page) {
+        // Skip rows a concurrent query already delivered
+        int start = 0;
+        while (start < page.size() && page.get(start).getUid() <= newestUid) {
+            start++;
+        }
+        if (start == page.size()) {
+            return;
+        }
+        int insertedAt = messages.size();
+        messages.addAll(page.subList(start, page.size()));
+        newestUid = page.get(page.size() - 1).getUid();
+        messageAdapter.notifyItemRangeInserted(insertedAt, page.size() - start);
+    }
+
     private void initializeBluetoothManager() {
         bluetoothManager = BluetoothManager.getInstance();
-        bluetoothManager.setConnectionListener(this);
+        connectionSubscription = bluetoothManager.subscribe(this);
 
         // Check if Bluetooth is available and connected
         if (!bluetoothManager.isBluetoothAvailable()) {
@@ -118,17 +209,17 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
         messageAdapter = new MessageAdapter(messages);
         messagesRecyclerView = findViewById(R.id.messagesRecyclerView);
         messagesRecyclerView.setAdapter(messageAdapter);
-    }
-
-    public void addMessage(Message message) {
-        if (message != null) {
-            messages.add(message);
-            messageAdapter.notifyItemInserted(messages.size() - 1);
-
-            // Scroll to bottom
-            RecyclerView messagesRecyclerView = findViewById(R.id.messagesRecyclerView);
-            messagesRecyclerView.smoothScrollToPosition(messages.size() - 1);
-        }
+        messagesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    loadOlderMessages();
+                } else if (dy > 0 && hasNewerMessages && !loadingNewer && !recyclerView.canScrollVertically(1)) {
+                    loadingNewer = true;
+                    loadNewerMessages();
+                }
+            }
+        });
     }
 
     @Override
@@ -148,41 +239,6 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
         finish();
     }
 
-    @Override
-    public void onMessageReceived(String message) {
-        Message receivedMessage = Message.fromBluetoothMessage(message);
-        if (receivedMessage != null) {
-            runOnUiThread(() -> {
-                // Add it to the database
-                new Thread(() -> {
-                    AppDatabase.getInstance(this).messageDao().insert(receivedMessage);
-                    messages.add(receivedMessage);
-                    messageAdapter.notifyItemInserted(messages.size() - 1);
-                    if(receivedMessage.getType().equals("1")){
-                        String coords[] = receivedMessage.getPayload().split("-");
-                        String latitude = coords[0];
-                        String longitude = coords[1];
-                        Coordinates coordinates = AppDatabase.getInstance(this).coordinateDao().getCoordinatesById(receivedMessage.getId());
-                        if(coordinates != null){
-                            // Id already exists so update them
-                            AppDatabase.getInstance(this).coordinateDao().updateCoordinatesById(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-                            Log.println(Log.INFO, "HOME_ACTIVITY", "Updating  coordinates");
-
-                        }else{
-                            // Create them
-                            Coordinates newCoordinates = new Coordinates(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-                            AppDatabase.getInstance(this).coordinateDao().insert(newCoordinates);
-                            Log.println(Log.INFO, "HOME_ACTIVITY", "Inserted new coordinates");
-                        }
-                    }
-                }).start();
-                messagesRecyclerView = findViewById(R.id.messagesRecyclerView);
-                messagesRecyclerView.smoothScrollToPosition(messages.size() - 1);
-            });
-        }
-    }
-
-
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -194,23 +250,25 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        handler.postDelayed(messageLoader, 10000);
+    protected void onStart() {
+        super.onStart();
+        // Observe the messages table and catch up on anything stored while we were stopped
+        AppDatabase.getInstance(this).getInvalidationTracker().addObserver(messagesObserver);
+        loadNewerMessages();
     }
 
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        // Don't disconnect here as other activities might need the connection
-        bluetoothManager.setConnectionListener(null);
-        handler.removeCallbacks(messageLoader);
+    protected void onStop() {
+        super.onStop();
+        AppDatabase.getInstance(this).getInvalidationTracker().removeObserver(messagesObserver);
     }
 
     @Override
-    protected void onPause() {
-        super.onPause();
-        handler.removeCallbacks(messageLoader);
+    protected void onDestroy() {
+        super.onDestroy();
+        // Don't disconnect here as other activities might need the connection
+        connectionSubscription.unsubscribe();
+        queryExecutor.shutdown();
     }
 
 
@@ -242,6 +300,7 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
                     holder.messageTextView.setText(userStatuses[index]);
                     if(userStatuses[index].equals("SOS")){
                         holder.messageTextView.setTextColor(Color.RED);
+                        holder.messageTextView.setText(sosText(message.getId(), userStatuses[index]));
                     }
                 }else{
                     corrupted = true;
@@ -252,12 +311,27 @@ public class MessageListActivity extends AppCompatActivity implements BluetoothM
             }
             if(!corrupted){
                 holder.imeiTextView.setText(getString(R.string.id, message.getId()));
-                long millis = Long.parseLong(message.getTimestamp());
-                java.util.Date date = new java.util.Date(millis);
+                java.util.Date date = new java.util.Date(message.getTimestamp());
                 holder.timestampTextView.setText(date.toString());
             }
         }
 
+        // "SOS" followed by the nodes nearest to the sender's last known position
+        private String sosText(String senderId, String status) {
+            List<PeerIndex.Neighbor> nearest = PeerIndex.getInstance().nearestTo(senderId, SOS_NEAREST_PEERS);
+            if (nearest.isEmpty()) {
+                return status;
+            }
+            StringBuilder text = new StringBuilder(status).append("\nNearest: ");
+            for (int i = 0; i < nearest.size(); i++) {
+                if (i > 0) {
+                    text.append(", ");
+                }
+                text.append(nearest.get(i).id).append(" (").append(Math.round(nearest.get(i).distanceMeters)).append("m)");
+            }
+            return text.toString();
+        }
+
         @Override
         public int getItemCount() {
             return messages.size();
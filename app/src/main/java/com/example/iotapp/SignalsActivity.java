@@ -6,8 +6,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -31,13 +29,22 @@ import androidx.appcompat.widget.SwitchCompat;
 import androidx.core.app.ActivityCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import com.example.iotapp.database.AppDatabase;
+import com.example.iotapp.location.LocationProvider;
 import com.example.iotapp.models.Coordinates;
 import com.example.iotapp.models.Message;
-import com.example.iotapp.utils.PeriodicTask;
+import com.example.iotapp.outbox.Outbox;
+import com.example.iotapp.radio.TransmitScheduler;
+import com.example.iotapp.utils.BeaconScheduler;
+import com.example.iotapp.utils.EventBus;
 
 import java.security.SecureRandom;
 import java.text.DecimalFormat;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class SignalsActivity extends AppCompatActivity implements BluetoothManager.BluetoothConnectionListener{
     private Spinner spinnerMessageType;
@@ -45,19 +52,25 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
     private TextView textFrequency;
     private TextView currentCoordinates;
     private LocationManager locationManager;
-    private LocationListener locationListener;
+    private LocationProvider locationProvider;
+    private boolean receivingLocation;
     private BluetoothManager bluetoothManager;
+    private EventBus.Subscription connectionSubscription;
     private Spinner spinnerStatus;
     private double latitude;
     private double longitude;
     private String ID;
-    private boolean alreadyRunningTask = false;
+    private BeaconScheduler beaconScheduler;
     private int currentFrequency;
     private boolean frequencySet;
     private int currentStatusIndex;
     private static final SecureRandom random = new SecureRandom();
     private static final String PREFS_NAME = "signals_prefs";
     private static final String KEY_UNIQUE_ID = "unique_id";
+    private static final String POSITION_BEACON_JOB = "position-beacon";
+    private static final String STATUS_BEACON_JOB = "status-beacon";
+    private static final int BEACON_REPETITIONS = 3;
+    private static final int BEACON_JITTER_DIVISOR = 10; // +-10% of the interval
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -71,6 +84,8 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
         initializeBluetoothManager();
 
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        locationProvider = LocationProvider.getInstance(this);
+        beaconScheduler = BeaconScheduler.getInstance(this);
 
         spinnerMessageType = findViewById(R.id.spinner_message_type);
         seekBarFrequency = findViewById(R.id.seekbar_frequency);
@@ -189,31 +204,77 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
                 }else{
                     // Coordinate sharing
                     type = "1";
-                    String lat = String.format("%.4f", latitude);
-                    String lon = String.format("%.4f", longitude);
-                    payload = lat + "-" + lon;
-                    Log.println(Log.INFO, "SIGACT", String.valueOf(latitude) +" | " + lat);
+                    payload = Message.positionPayload(latitude, longitude);
+                    Log.println(Log.INFO, "SIGACT", String.valueOf(latitude) +" | " + payload);
                 }
                 if(frequencySet){
-                    if(alreadyRunningTask){
-                        Toast.makeText(SignalsActivity.this, "Please wait for the previous task to finish!", Toast.LENGTH_LONG).show();
-                    }else{
-                        frequency = Math.max(currentFrequency,1);
-                        PeriodicTask periodicTask = new PeriodicTask();
-                        Runnable task = () -> sendMessage(finalID,type,payload);
-                        Runnable callback = () -> {Toast.makeText(SignalsActivity.this, "Task finished!", Toast.LENGTH_SHORT).show(); alreadyRunningTask=false;};
-                        alreadyRunningTask = true;
-                        periodicTask.scheduleTask(task,3,frequency,callback);
-                        Toast.makeText(SignalsActivity.this, "Task started: repeating 3 times for " + frequency + " minutes", Toast.LENGTH_LONG).show();
+                    frequency = Math.max(currentFrequency,1);
+                    boolean positionBeacon = type.equals("1");
+                    // One job per kind of beacon, starting it again replaces the running one
+                    String jobName = positionBeacon ? POSITION_BEACON_JOB : STATUS_BEACON_JOB;
+                    boolean restarted = beaconScheduler.isScheduled(jobName);
+                    long interval = TimeUnit.MINUTES.toMillis(frequency);
+                    beaconScheduler.schedule(new BeaconScheduler.Job(jobName, finalID, type, payload,
+                            interval, interval / BEACON_JITTER_DIVISOR, BEACON_REPETITIONS));
+                    if (positionBeacon) {
+                        requestBackgroundLocation();
                     }
+                    Toast.makeText(SignalsActivity.this, (restarted ? "Task restarted: repeating " : "Task started: repeating ")
+                            + BEACON_REPETITIONS + " times every " + frequency + " minutes", Toast.LENGTH_LONG).show();
                 }else{
                     sendMessage(finalID,type,payload);
                     Toast.makeText(SignalsActivity.this, "Message sent!", Toast.LENGTH_SHORT).show();
                 }
             }
         });
+        // Long press stops every running beacon
+        buttonSendMessage.setOnLongClickListener(v -> {
+            for (String jobName : new String[]{POSITION_BEACON_JOB, STATUS_BEACON_JOB}) {
+                if (beaconScheduler.isScheduled(jobName)) {
+                    cancelledJobs.add(jobName);
+                }
+                beaconScheduler.cancel(jobName);
+            }
+            Toast.makeText(SignalsActivity.this, "Periodic tasks cancelled", Toast.LENGTH_SHORT).show();
+            return true;
+        });
     }
 
+    // Cancelled with a long press, their disappearance is not a finished task
+    private final Set<String> cancelledJobs = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final BeaconScheduler.JobListener jobListener = new BeaconScheduler.JobListener() {
+        // Scheduler thread only
+        private final Set<String> running = new HashSet<>();
+
+        @Override
+        public void onJobsChanged(List<BeaconScheduler.Job> jobs) {
+            Set<String> now = new HashSet<>();
+            for (BeaconScheduler.Job job : jobs) {
+                now.add(job.name);
+            }
+            // A beacon ran its last repetition
+            boolean finished = false;
+            for (String name : running) {
+                if (!now.contains(name) && !cancelledJobs.remove(name)) {
+                    finished = true;
+                }
+            }
+            running.clear();
+            running.addAll(now);
+            if (finished) {
+                runOnUiThread(() -> Toast.makeText(SignalsActivity.this, "Task finished!", Toast.LENGTH_SHORT).show());
+            }
+        }
+    };
+
+    private final LocationProvider.FixListener fixListener = fix -> {
+        // Get current latitude and longitude
+        latitude = fix.latitude;
+        longitude = fix.longitude;
+        // Update the coordinates
+        currentCoordinates.setText(latitude + " " + longitude);
+    };
 
     public static String generateUniqueId() {
 
@@ -226,13 +287,23 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
 
     private void sendMessage(String id, String messageType, String payload) {
 
-        String timestamp = Long.toString(System.currentTimeMillis());
-        Message newMessage = new Message(id,timestamp,messageType,payload);
-        new Thread(() -> {
-            AppDatabase.getInstance(this).messageDao().insert(newMessage);
-        }).start();
-        Toast.makeText(this,"Sending message!",Toast.LENGTH_LONG).show();
-        bluetoothManager.sendMessage(newMessage.toBluetoothMessage());
+        Message newMessage = new Message(id,System.currentTimeMillis(),messageType,payload);
+        // Stored and queued in the outbox, it goes out once the link and the airtime budget allow
+        Outbox.getInstance(this).send(newMessage).whenComplete((result, error) -> {
+            if (error != null) {
+                runOnUiThread(() -> Toast.makeText(this, "Message not sent: " + error.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
+        TransmitScheduler scheduler = TransmitScheduler.getInstance();
+        int queued = scheduler.getQueueDepth();
+        if (!bluetoothManager.isConnected()) {
+            runOnUiThread(() -> Toast.makeText(this, "Not connected, message queued until the node is back", Toast.LENGTH_LONG).show());
+        } else if (queued > 0) {
+            long seconds = Math.max(0, (scheduler.getProjectedSendTimeMillis() - System.currentTimeMillis()) / 1000);
+            runOnUiThread(() -> Toast.makeText(this, "Airtime limit reached, " + queued + " queued, sending in ~" + seconds + " s", Toast.LENGTH_LONG).show());
+        } else {
+            runOnUiThread(() -> Toast.makeText(this,"Sending message!",Toast.LENGTH_LONG).show());
+        }
 
     }
 
@@ -240,63 +311,34 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
     private void requestLocationUpdates() {
         // Check if GPS is enabled
         if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-
-            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-                Location lastKnownLocation = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-                if (lastKnownLocation != null) {
-                    latitude = lastKnownLocation.getLatitude();
-                    longitude = lastKnownLocation.getLongitude();
-                    currentCoordinates.setText(String.format("%s %s", latitude, longitude)); // Display cached location
-                } else {
-                    currentCoordinates.setText(R.string.waiting_for_location);
-                }
-            }
-
-            locationListener = new LocationListener() {
-                @Override
-                public void onLocationChanged(@NonNull Location location) {
-                    // Get current latitude and longitude
-                    latitude = location.getLatitude();
-                    longitude = location.getLongitude();
-                    // Update the coordinates
-                    currentCoordinates.setText(latitude + " " + longitude);
-                }
-
-                @Override
-                public void onStatusChanged(String provider, int status, Bundle extras) {
-                    // Handle status changes (optional)
-                }
-
-                @Override
-                public void onProviderEnabled(String provider) {
-                    // Handle provider enabled
-                }
-
-                @Override
-                public void onProviderDisabled(String provider) {
-                    // Handle provider disabled
-                }
-            };
-
-            // Request location updates
             if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED &&
                     ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                 // Request location permissions if not granted
                 ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, 1);
                 return;
             }
-
-            // Start receiving location updates
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListener);
+            currentCoordinates.setText(R.string.waiting_for_location);
+            // Shared provider, delivers the last known fix right away and adapts the GPS rate
+            locationProvider.addListener(fixListener);
+            receivingLocation = true;
         } else {
             // GPS is not enabled
             Toast.makeText(this, "Please enable GPS", Toast.LENGTH_SHORT).show();
         }
     }
 
+    // Position beacons keep sampling GPS from LinkService with the screen off, which from
+    // Android 10 on also needs background location after a restart of the process
+    private void requestBackgroundLocation() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_BACKGROUND_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_BACKGROUND_LOCATION}, 2);
+        }
+    }
+
     private void initializeBluetoothManager() {
         bluetoothManager = BluetoothManager.getInstance();
-        bluetoothManager.setConnectionListener((BluetoothManager.BluetoothConnectionListener) this);
+        connectionSubscription = bluetoothManager.subscribe(this);
 
         // Check if Bluetooth is available and connected
         if (!bluetoothManager.isBluetoothAvailable()) {
@@ -312,8 +354,9 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
     }
 
     private void stopLocationUpdates() {
-        if (locationManager != null && locationListener != null) {
-            locationManager.removeUpdates(locationListener);  // Stop receiving location updates
+        if (receivingLocation) {
+            locationProvider.removeListener(fixListener);  // Stop receiving location updates
+            receivingLocation = false;
             currentCoordinates.setText(R.string.select_coordinate_sharing);  // Clear the coordinates when stopping updates
         }
     }
@@ -329,10 +372,27 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Coordinate sharing selected, follow the shared provider again
+        if (!spinnerStatus.isEnabled()) {
+            requestLocationUpdates();
+        }
+        beaconScheduler.addListener(jobListener);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
         stopLocationUpdates();
+        beaconScheduler.removeListener(jobListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        connectionSubscription.unsubscribe();
     }
 
 
@@ -351,34 +411,4 @@ public class SignalsActivity extends AppCompatActivity implements BluetoothManag
         Toast.makeText(this, "Disconnected from device", Toast.LENGTH_SHORT).show();
         finish();
     }
-
-    @Override
-    public void onMessageReceived(String message) {
-        Message receivedMessage = Message.fromBluetoothMessage(message);
-        if (receivedMessage != null) {
-            runOnUiThread(() -> {
-                // Add it to the database
-                new Thread(() -> {
-                    AppDatabase.getInstance(this).messageDao().insert(receivedMessage);
-                    if(receivedMessage.getType().equals("1")){
-                        String coords[] = receivedMessage.getPayload().split("-");
-                        String latitude = coords[0];
-                        String longitude = coords[1];
-                        Coordinates coordinates = AppDatabase.getInstance(this).coordinateDao().getCoordinatesById(receivedMessage.getId());
-                        if(coordinates != null){
-                            // Id already exists so update them
-                            AppDatabase.getInstance(this).coordinateDao().updateCoordinatesById(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-
-
-                        }else{
-                            // Create them
-                            Coordinates newCoordinates = new Coordinates(receivedMessage.getId(), Double.valueOf(latitude), Double.valueOf(longitude));
-                            AppDatabase.getInstance(this).coordinateDao().insert(newCoordinates);
-
-                        }
-                    }
-                }).start();
-            });
-        }
-    }
 }
@@ -13,13 +13,19 @@ import java.util.List;
 
 public class UserAdapter extends BaseAdapter {
     private final Context context;
-    private final List<CompassView.UserLocation> users;
+    private List<CompassView.UserLocation> users;
 
     public UserAdapter(Context context, List<CompassView.UserLocation> users) {
         this.context = context;
         this.users = users;
     }
 
+    // Swap in a fresh list, e.g. after the peer registry published changes
+    public void setUsers(List<CompassView.UserLocation> users) {
+        this.users = users;
+        notifyDataSetChanged();
+    }
+
     @Override
     public int getCount() {
         return users.size();
@@ -0,0 +1,137 @@
+package com.example.iotapp.codec;
+
+// Compact binary encoding of a message, version 1:
+//
+//   header    1 byte   0xB1 (binary marker 0xB0 | version)
+//   node id   varint
+//   timestamp varint   whole seconds since EPOCH_MILLIS
+//   type      1 byte
+//   payload   TYPE_POSITION: int32 latitude, int32 longitude (big-endian, 1e-5 degrees)
+//             TYPE_STATUS:   varint status index
+//             other:         varint length + UTF-8 bytes
+//
+// A typical position beacon is 16 bytes against 37 for the text form, a status update 9
+// against 25. The header byte can never start a text frame (those begin with a decimal node
+// id), so receivers can tell the formats apart per frame. On the link, binary frames are
+// carried with a 16-bit length prefix instead of the newline delimiter. Encoding and decoding
+// work on caller supplied arrays and a reusable MessageFrame and do not allocate.
+public final class BinaryMessageCodec {
+    public static final int VERSION = 1;
+    public static final byte HEADER = (byte) (0xB0 | VERSION);
+    public static final long EPOCH_MILLIS = 1704067200000L; // 2024-01-01T00:00:00Z
+    // Upper bound of an encoded frame, size output buffers with this
+    public static final int MAX_FRAME_LENGTH = 1 + 10 + 10 + 1 + 5 + MessageFrame.MAX_PAYLOAD_LENGTH;
+
+    private BinaryMessageCodec() {
+    }
+
+    public static boolean isBinaryFrame(byte[] buffer, int offset, int length) {
+        return length > 0 && buffer[offset] == HEADER;
+    }
+
+    // Encode into out starting at offset, returns the number of bytes written
+    public static int encode(MessageFrame frame, byte[] out, int offset) {
+        int position = offset;
+        out[position++] = HEADER;
+        position = writeVarint(frame.nodeId, out, position);
+        long seconds = Math.max(0, (frame.timestamp - EPOCH_MILLIS) / 1000);
+        position = writeVarint(seconds, out, position);
+        out[position++] = (byte) frame.type;
+        if (frame.type == MessageFrame.TYPE_POSITION) {
+            position = writeInt(frame.latitudeE5, out, position);
+            position = writeInt(frame.longitudeE5, out, position);
+        } else if (frame.type == MessageFrame.TYPE_STATUS) {
+            position = writeVarint(frame.status, out, position);
+        } else {
+            position = writeVarint(frame.payloadLength, out, position);
+            System.arraycopy(frame.payload, 0, out, position, frame.payloadLength);
+            position += frame.payloadLength;
+        }
+        return position - offset;
+    }
+
+    // Decode one complete frame into the holder, returns false if the frame is malformed
+    public static boolean decode(byte[] buffer, int offset, int length, MessageFrame into) {
+        into.clear();
+        int end = offset + length;
+        if (length < 4 || buffer[offset] != HEADER) {
+            return false;
+        }
+        into.cursor = offset + 1;
+
+        long nodeId = readVarint(buffer, end, into);
+        long seconds = readVarint(buffer, end, into);
+        if (nodeId < 0 || seconds < 0 || into.cursor >= end) {
+            return false;
+        }
+        into.nodeId = nodeId;
+        into.timestamp = EPOCH_MILLIS + seconds * 1000;
+        into.type = buffer[into.cursor++] & 0xFF;
+
+        if (into.type == MessageFrame.TYPE_POSITION) {
+            if (end - into.cursor < 8) {
+                return false;
+            }
+            into.latitudeE5 = readInt(buffer, into.cursor);
+            into.longitudeE5 = readInt(buffer, into.cursor + 4);
+            into.cursor += 8;
+        } else if (into.type == MessageFrame.TYPE_STATUS) {
+            long status = readVarint(buffer, end, into);
+            if (status < 0 || status > Integer.MAX_VALUE) {
+                return false;
+            }
+            into.status = (int) status;
+        } else {
+            long payloadLength = readVarint(buffer, end, into);
+            if (payloadLength < 0 || payloadLength > MessageFrame.MAX_PAYLOAD_LENGTH
+                    || end - into.cursor < payloadLength) {
+                return false;
+            }
+            into.payloadLength = (int) payloadLength;
+            System.arraycopy(buffer, into.cursor, into.payload, 0, into.payloadLength);
+            into.cursor += into.payloadLength;
+        }
+        return into.cursor == end;
+    }
+
+    // Reads an unsigned varint at into.cursor and advances it, returns -1 if truncated or
+    // longer than 63 bits
+    private static long readVarint(byte[] buffer, int end, MessageFrame into) {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (into.cursor >= end) {
+                return -1;
+            }
+            byte b = buffer[into.cursor++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static int writeVarint(long value, byte[] out, int position) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    private static int writeInt(int value, byte[] out, int position) {
+        out[position] = (byte) (value >>> 24);
+        out[position + 1] = (byte) (value >>> 16);
+        out[position + 2] = (byte) (value >>> 8);
+        out[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private static int readInt(byte[] buffer, int position) {
+        return ((buffer[position] & 0xFF) << 24)
+                | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8)
+                | (buffer[position + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.iotapp.codec;
+
+import com.example.iotapp.models.Message;
+
+import java.nio.charset.StandardCharsets;
+
+// Reusable, mutable holder for one decoded frame. Codecs fill it in place so the hot receive
+// path does not allocate per frame; convert with toMessage() only when the frame is kept.
+// Coordinates are fixed point at 1e-5 degrees (about 1.1 m at the equator).
+public class MessageFrame {
+    public static final int TYPE_POSITION = 1;
+    public static final int TYPE_STATUS = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 200;
+    public static final double COORDINATE_SCALE = 1e5;
+
+    public long nodeId;
+    public long timestamp; // epoch millis
+    public int type;
+    public int latitudeE5; // TYPE_POSITION only
+    public int longitudeE5; // TYPE_POSITION only
+    public int status; // TYPE_STATUS only
+    public final byte[] payload = new byte[MAX_PAYLOAD_LENGTH]; // any other type, UTF-8
+    public int payloadLength;
+
+    // Read position while a codec is parsing into this holder
+    int cursor;
+
+    public void clear() {
+        nodeId = 0;
+        timestamp = 0;
+        type = 0;
+        latitudeE5 = 0;
+        longitudeE5 = 0;
+        status = 0;
+        payloadLength = 0;
+    }
+
+    public double getLatitude() {
+        return latitudeE5 / COORDINATE_SCALE;
+    }
+
+    public double getLongitude() {
+        return longitudeE5 / COORDINATE_SCALE;
+    }
+
+    public void setCoordinates(double latitude, double longitude) {
+        latitudeE5 = (int) Math.round(latitude * COORDINATE_SCALE);
+        longitudeE5 = (int) Math.round(longitude * COORDINATE_SCALE);
+    }
+
+    public boolean isSos() {
+        return type == TYPE_STATUS && status == 14;
+    }
+
+    // Fill from a stored/outgoing message. Returns false if the message cannot be represented,
+    // e.g. a non numeric node id, in which case callers should fall back to the text format.
+    public boolean fromMessage(Message message) {
+        clear();
+        try {
+            nodeId = Long.parseLong(message.getId());
+            timestamp = message.getTimestamp();
+            type = Integer.parseInt(message.getType());
+            String payloadText = message.getPayload();
+            if (type == TYPE_POSITION) {
+                // "lat-lon", either value may itself start with '-'
+                int separator = payloadText.indexOf('-', 1);
+                if (separator < 0) {
+                    return false;
+                }
+                setCoordinates(Double.parseDouble(payloadText.substring(0, separator)),
+                        Double.parseDouble(payloadText.substring(separator + 1)));
+            } else if (type == TYPE_STATUS) {
+                status = Integer.parseInt(payloadText);
+            } else {
+                byte[] bytes = payloadText.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > MAX_PAYLOAD_LENGTH) {
+                    return false;
+                }
+                System.arraycopy(bytes, 0, payload, 0, bytes.length);
+                payloadLength = bytes.length;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return nodeId >= 0 && type >= 0 && type <= 0xFF;
+    }
+
+    public Message toMessage() {
+        String payloadText;
+        if (type == TYPE_POSITION) {
+            StringBuilder builder = new StringBuilder(24);
+            appendFixedPoint(builder, latitudeE5);
+            builder.append('-');
+            appendFixedPoint(builder, longitudeE5);
+            payloadText = builder.toString();
+        } else if (type == TYPE_STATUS) {
+            payloadText = Integer.toString(status);
+        } else {
+            payloadText = new String(payload, 0, payloadLength, StandardCharsets.UTF_8);
+        }
+        return new Message(Long.toString(nodeId), timestamp, Integer.toString(type), payloadText);
+    }
+
+    // Locale independent "%.5f" for a value stored at 1e-5 resolution
+    static void appendFixedPoint(StringBuilder builder, int valueE5) {
+        long value = valueE5;
+        if (value < 0) {
+            builder.append('-');
+            value = -value;
+        }
+        builder.append(value / 100000).append('.');
+        long fraction = value % 100000;
+        for (long digit = 10000; digit > 0; digit /= 10) {
+            builder.append((char) ('0' + (fraction / digit) % 10));
+        }
+    }
+}
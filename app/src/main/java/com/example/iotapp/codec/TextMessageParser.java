@@ -0,0 +1,177 @@
+package com.example.iotapp.codec;
+
+// Cursor based parser for the text format "id-timestamp-type-payload". It walks the frame
+// once, parses numbers in place and fills a reusable MessageFrame, so a well formed frame is
+// parsed without allocating. Position payloads are "lat-lon" where either value may be
+// negative ("-33.8688--70.5"); they are converted straight to 1e-5 fixed point.
+public final class TextMessageParser {
+    private static final char SEPARATOR = '-';
+
+    // Source of characters, so the same parser serves byte[] frames and CharSequences
+    // without copying either into the other
+    private interface Source {
+        char charAt(int index);
+    }
+
+    private final ByteSource byteSource = new ByteSource();
+    private final CharSource charSource = new CharSource();
+    private Source source;
+    private int position;
+    private int end;
+
+    // Parse an ASCII/UTF-8 frame. Returns false if the frame is malformed.
+    public boolean parse(byte[] buffer, int offset, int length, MessageFrame into) {
+        byteSource.bytes = buffer;
+        source = byteSource;
+        boolean parsed = parse(offset, offset + length, into);
+        byteSource.bytes = null;
+        return parsed;
+    }
+
+    public boolean parse(CharSequence text, MessageFrame into) {
+        charSource.text = text;
+        source = charSource;
+        boolean parsed = parse(0, text.length(), into);
+        charSource.text = null;
+        return parsed;
+    }
+
+    private boolean parse(int start, int end, MessageFrame into) {
+        into.clear();
+        this.position = start;
+        this.end = end;
+
+        long nodeId = readUnsigned();
+        if (nodeId < 0 || !expect(SEPARATOR)) {
+            return false;
+        }
+        long timestamp = readUnsigned();
+        if (timestamp < 0 || !expect(SEPARATOR)) {
+            return false;
+        }
+        long type = readUnsigned();
+        if (type < 0 || type > 0xFF || !expect(SEPARATOR)) {
+            return false;
+        }
+        into.nodeId = nodeId;
+        into.timestamp = timestamp;
+        into.type = (int) type;
+
+        if (into.type == MessageFrame.TYPE_POSITION) {
+            long latitude = readFixedPoint();
+            if (latitude == Long.MIN_VALUE || !expect(SEPARATOR)) {
+                return false;
+            }
+            long longitude = readFixedPoint();
+            if (longitude == Long.MIN_VALUE) {
+                return false;
+            }
+            into.latitudeE5 = (int) latitude;
+            into.longitudeE5 = (int) longitude;
+        } else if (into.type == MessageFrame.TYPE_STATUS) {
+            long status = readUnsigned();
+            if (status < 0 || status > Integer.MAX_VALUE) {
+                return false;
+            }
+            into.status = (int) status;
+        } else {
+            // Free text payload, copied as is (it may contain the separator). Byte frames keep
+            // their UTF-8 bytes, CharSequence input is limited to ASCII.
+            int length = end - position;
+            if (length > MessageFrame.MAX_PAYLOAD_LENGTH) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                char c = source.charAt(position + i);
+                if (source == charSource && c > 0x7F) {
+                    return false;
+                }
+                into.payload[i] = (byte) c;
+            }
+            into.payloadLength = length;
+            position = end;
+        }
+        return position == end;
+    }
+
+    private boolean expect(char c) {
+        if (position < end && source.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    // Unsigned decimal integer, -1 if there are no digits or it overflows
+    private long readUnsigned() {
+        int start = position;
+        long value = 0;
+        while (position < end) {
+            char c = source.charAt(position);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+            position++;
+        }
+        return position == start ? -1 : value;
+    }
+
+    // Optionally signed decimal such as "-33.86882", returned in units of 1e-5 and rounded
+    // half up on the sixth decimal. Long.MIN_VALUE if malformed or not a plausible coordinate.
+    private long readFixedPoint() {
+        boolean negative = expect('-');
+        long integerPart = readUnsigned();
+        if (integerPart < 0 || integerPart > 360) {
+            return Long.MIN_VALUE;
+        }
+        long fraction = 0;
+        int digits = 0;
+        boolean roundUp = false;
+        if (expect('.')) {
+            int start = position;
+            while (position < end) {
+                char c = source.charAt(position);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                if (digits < 5) {
+                    fraction = fraction * 10 + (c - '0');
+                    digits++;
+                } else if (position == start + 5) {
+                    roundUp = c >= '5';
+                }
+                position++;
+            }
+            if (position == start) {
+                return Long.MIN_VALUE;
+            }
+        }
+        for (; digits < 5; digits++) {
+            fraction *= 10;
+        }
+        long value = integerPart * 100000 + fraction + (roundUp ? 1 : 0);
+        return negative ? -value : value;
+    }
+
+    private static final class ByteSource implements Source {
+        byte[] bytes;
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xFF);
+        }
+    }
+
+    private static final class CharSource implements Source {
+        CharSequence text;
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(index);
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package com.example.iotapp.daos;
 
 import androidx.room.Dao;
-import androidx.room.Insert;
 import androidx.room.Query;
-import androidx.room.Update;
+import androidx.room.Upsert;
 
 import com.example.iotapp.models.Coordinates;
 
@@ -11,15 +10,15 @@ import java.util.List;
 
 @Dao
 public interface CoordinateDao {
-    // Insert a new Coordinates object
-    @Insert
-    void insert(Coordinates coordinates);
+    // Insert the node's position or replace the one we have, keyed by node id
+    @Upsert
+    void upsert(Coordinates coordinates);
 
-    // Update latitude and longitude based on the id field
-    @Query("UPDATE coordinates SET latitude = :latitude, longitude = :longitude WHERE id = :id")
-    void updateCoordinatesById(String id, double latitude, double longitude);
+    // Same as upsert for a batch, in a single transaction
+    @Upsert
+    void upsertAll(List<Coordinates> coordinatesList);
 
-    // Optional: Get Coordinates by id
+    // Get Coordinates by node id
     @Query("SELECT * FROM coordinates WHERE id = :id")
     Coordinates getCoordinatesById(String id);
 
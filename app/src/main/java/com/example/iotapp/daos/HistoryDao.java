@@ -0,0 +1,29 @@
+package com.example.iotapp.daos;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+
+// Retention queries for the message history. Status messages (type 2, SOS included) are never
+// deleted here. Every delete is capped at :limit rows so a large cleanup runs as many short
+// transactions and never holds the writer lock for long.
+@Dao
+public interface HistoryDao {
+    // Position messages older than :before are thinned out to the newest one per node and
+    // :gridMillis bucket. The buckets are absolute, so running it again deletes nothing new.
+    @Query("DELETE FROM messages WHERE uid IN (SELECT uid FROM messages WHERE type = '1' AND timestamp < :before "
+            + "AND uid NOT IN (SELECT MAX(uid) FROM messages WHERE type = '1' AND timestamp < :before "
+            + "GROUP BY id, timestamp / :gridMillis) LIMIT :limit)")
+    int downsamplePositions(long before, long gridMillis, int limit);
+
+    @Query("DELETE FROM messages WHERE uid IN (SELECT uid FROM messages WHERE timestamp < :before "
+            + "AND (type IS NULL OR type != '2') LIMIT :limit)")
+    int deleteOlderThan(long before, int limit);
+
+    // Rows the size limit applies to
+    @Query("SELECT COUNT(*) FROM messages WHERE type IS NULL OR type != '2'")
+    int countDeletable();
+
+    @Query("DELETE FROM messages WHERE uid IN (SELECT uid FROM messages WHERE type IS NULL OR type != '2' "
+            + "ORDER BY timestamp ASC, uid ASC LIMIT :limit)")
+    int deleteOldest(int limit);
+}
@@ -1,15 +1,37 @@
 package com.example.iotapp.daos;
 import androidx.room.Dao;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 import java.util.List;
 import com.example.iotapp.models.Message;
 
 @Dao
 public interface MessageDao {
-    @Insert
-    void insert(Message message);
+    // Duplicates of a stored (id, timestamp, type) are skipped, the row id is then -1
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insert(Message message);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    List<Long> insertAll(List<Message> messages);
 
     @Query("SELECT * FROM messages ORDER BY timestamp ASC")
     List<Message> getAllMessages();
+
+    // Time range queries, timestamps are epoch millis and served by the timestamp index
+    @Query("SELECT * FROM messages WHERE timestamp >= :since ORDER BY timestamp ASC")
+    List<Message> getMessagesSince(long since);
+
+    @Query("SELECT * FROM messages WHERE timestamp BETWEEN :from AND :to ORDER BY timestamp ASC")
+    List<Message> getMessagesBetween(long from, long to);
+
+    // Keyset paging on the primary key: newest page, rows after a uid and rows before a uid
+    @Query("SELECT * FROM messages ORDER BY uid DESC LIMIT :limit")
+    List<Message> getLatestMessages(int limit);
+
+    @Query("SELECT * FROM messages WHERE uid > :afterUid ORDER BY uid ASC LIMIT :limit")
+    List<Message> getMessagesAfter(int afterUid, int limit);
+
+    @Query("SELECT * FROM messages WHERE uid < :beforeUid ORDER BY uid DESC LIMIT :limit")
+    List<Message> getMessagesBefore(int beforeUid, int limit);
 }
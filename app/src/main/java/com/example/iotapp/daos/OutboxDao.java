@@ -0,0 +1,62 @@
+package com.example.iotapp.daos;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import com.example.iotapp.models.Message;
+import com.example.iotapp.models.OutboxEntry;
+
+import java.util.List;
+
+@Dao
+public interface OutboxDao {
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insertMessage(Message message);
+
+    @Insert
+    long insert(OutboxEntry entry);
+
+    // Record the message in the history and queue it for sending, both or neither
+    @Transaction
+    default long enqueue(Message message, long now) {
+        insertMessage(message);
+        return insert(OutboxEntry.queued(message, now));
+    }
+
+    // Oldest first, SOS ahead of everything
+    @Query("SELECT * FROM outbox WHERE state = 0 "
+            + "ORDER BY (type = '2' AND payload = '14') DESC, uid ASC LIMIT :limit")
+    List<OutboxEntry> getQueued(int limit);
+
+    @Query("SELECT uid FROM outbox WHERE state = 0")
+    List<Long> getQueuedUids();
+
+    @Query("SELECT COUNT(*) FROM outbox WHERE state = 0")
+    int countQueued();
+
+    @Query("UPDATE outbox SET state = :state WHERE uid = :uid")
+    void setState(long uid, int state);
+
+    @Query("UPDATE outbox SET attempts = attempts + 1 WHERE uid = :uid")
+    void recordFailure(long uid);
+
+    @Query("UPDATE outbox SET state = 2 WHERE state = 1 AND id = :id AND timestamp = :timestamp AND type = :type")
+    int markAcked(String id, long timestamp, String type);
+
+    // For acks from a binary link, which carry the timestamp in whole seconds
+    @Query("UPDATE outbox SET state = 2 WHERE state = 1 AND id = :id AND timestamp / 1000 = :second AND type = :type")
+    int markAckedInSecond(String id, long second, String type);
+
+    // Position beacons still queued that are too old to be worth sending, or that a newer
+    // beacon of the same node replaces. Never matches SOS, which is a status message.
+    @Query("DELETE FROM outbox WHERE state = 0 AND type = '1' AND (queuedAt < :before "
+            + "OR uid NOT IN (SELECT MAX(uid) FROM outbox WHERE state = 0 AND type = '1' GROUP BY id))")
+    int deleteStaleBeacons(long before);
+
+    // Delivered entries are only kept for a while
+    @Query("DELETE FROM outbox WHERE state != 0 AND queuedAt < :before")
+    int deleteDeliveredBefore(long before);
+}
@@ -1,30 +1,99 @@
 package com.example.iotapp.database;
 
-import androidx.room.RoomDatabase;
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 import android.content.Context;
 
 import com.example.iotapp.daos.CoordinateDao;
+import com.example.iotapp.daos.HistoryDao;
+import com.example.iotapp.daos.OutboxDao;
 import com.example.iotapp.models.Coordinates;
 import com.example.iotapp.models.Message;
+import com.example.iotapp.models.OutboxEntry;
 import com.example.iotapp.daos.MessageDao;
 
-@Database(entities = {Message.class, Coordinates.class}, version = 3)
+// The build exports each version's schema to app/schemas (room.schemaLocation in build.gradle.kts)
+@Database(entities = {Message.class, Coordinates.class, OutboxEntry.class}, version = 7, exportSchema = true)
 public abstract class AppDatabase extends RoomDatabase {
     private static AppDatabase instance;
 
     public abstract MessageDao messageDao();
     public abstract CoordinateDao coordinateDao();
+    public abstract HistoryDao historyDao();
+    public abstract OutboxDao outboxDao();
+
+    // Coordinates keyed by node id instead of an autogenerated uid, plus last-seen time.
+    // Keeps the most recent row (highest uid) for nodes that were stored more than once.
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `coordinates_new` (`id` TEXT NOT NULL, "
+                    + "`latitude` REAL NOT NULL, `longitude` REAL NOT NULL, "
+                    + "`lastSeen` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+            db.execSQL("INSERT OR REPLACE INTO `coordinates_new` (`id`, `latitude`, `longitude`, `lastSeen`) "
+                    + "SELECT `id`, `latitude`, `longitude`, 0 FROM `coordinates` "
+                    + "WHERE `id` IS NOT NULL ORDER BY `uid`");
+            db.execSQL("DROP TABLE `coordinates`");
+            db.execSQL("ALTER TABLE `coordinates_new` RENAME TO `coordinates`");
+        }
+    };
+
+    // Message timestamps move from TEXT to an indexed INTEGER of epoch millis. Values that
+    // are not numbers become 0 rather than failing the upgrade.
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `messages_new` (`uid` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`payload` TEXT, `id` TEXT, `timestamp` INTEGER NOT NULL, `type` TEXT)");
+            db.execSQL("INSERT INTO `messages_new` (`uid`, `payload`, `id`, `timestamp`, `type`) "
+                    + "SELECT `uid`, `payload`, `id`, IFNULL(CAST(`timestamp` AS INTEGER), 0), `type` FROM `messages`");
+            db.execSQL("DROP TABLE `messages`");
+            db.execSQL("ALTER TABLE `messages_new` RENAME TO `messages`");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_timestamp` ON `messages` (`timestamp`)");
+        }
+    };
+
+    // Unique (id, timestamp, type) so relayed copies can't be stored twice. Duplicates already
+    // stored are removed first, keeping the earliest row.
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("DELETE FROM `messages` WHERE `uid` NOT IN (SELECT MIN(`uid`) FROM `messages` "
+                    + "GROUP BY `id`, `timestamp`, `type`)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_messages_id_timestamp_type` "
+                    + "ON `messages` (`id`, `timestamp`, `type`)");
+        }
+    };
+
+    // Outbox of sent messages with their delivery state
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `outbox` (`uid` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`id` TEXT, `timestamp` INTEGER NOT NULL, `type` TEXT, `payload` TEXT, "
+                    + "`state` INTEGER NOT NULL, `queuedAt` INTEGER NOT NULL, `attempts` INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_outbox_state` ON `outbox` (`state`)");
+        }
+    };
 
     public static synchronized AppDatabase getInstance(Context context) {
         if (instance == null) {
-            instance = Room.databaseBuilder(context.getApplicationContext(),
-                            AppDatabase.class, "message_database")
-                    .fallbackToDestructiveMigration()
-                    .build();
+            instance = builder(context.getApplicationContext(), "message_database").build();
         }
         return instance;
     }
+
+    // Everything but the file name, so tests can open other files the same way
+    static RoomDatabase.Builder<AppDatabase> builder(Context context, String name) {
+        return Room.databaseBuilder(context, AppDatabase.class, name)
+                .addMigrations(MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7)
+                // Schemas before version 3 were never released with data worth keeping
+                .fallbackToDestructiveMigrationFrom(1, 2)
+                // Incremental auto vacuum from the start, so compaction can shrink the file
+                .openHelperFactory(new IncrementalVacuumOpenHelperFactory());
+    }
 }
@@ -0,0 +1,201 @@
+package com.example.iotapp.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.example.iotapp.daos.HistoryDao;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// Background retention for the message history, run shortly after start and then periodically:
+// 1. position messages past downsampleAfterMillis are thinned to one per node and grid step
+// 2. messages older than maxAgeMillis are deleted
+// 3. if more than maxRows remain the oldest are deleted
+// Status and SOS messages are always kept. Deletes run in small batches, and the freed pages
+// are handed back to the file system with an incremental vacuum instead of a full VACUUM.
+// Installs whose database predates incremental auto vacuum (see
+// IncrementalVacuumOpenHelperFactory) are never converted, that would take a full VACUUM
+// blocking the database; their freed pages stay in the file and are reused by new rows.
+public class HistoryCompactor {
+    private static final String TAG = "HistoryCompactor";
+    static final int BATCH_SIZE = 500;
+    static final int VACUUM_PAGES = 256;
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+    private static final long FIRST_RUN_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long RUN_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+
+    public static final class Policy {
+        public static final Policy DEFAULT = new Policy(TimeUnit.DAYS.toMillis(30), 50_000,
+                TimeUnit.DAYS.toMillis(1), TimeUnit.MINUTES.toMillis(15));
+
+        public final long maxAgeMillis; // 0 keeps messages of any age
+        public final int maxRows; // 0 keeps any number of messages
+        public final long downsampleAfterMillis;
+        public final long downsampleGridMillis; // 0 disables downsampling
+
+        public Policy(long maxAgeMillis, int maxRows, long downsampleAfterMillis, long downsampleGridMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxRows = maxRows;
+            this.downsampleAfterMillis = downsampleAfterMillis;
+            this.downsampleGridMillis = downsampleGridMillis;
+        }
+    }
+
+    // Returns at most maxPages free pages to the file system
+    public interface SpaceReclaimer {
+        void reclaim(int maxPages);
+    }
+
+    // Rows removed by one run
+    public static final class Result {
+        public final int downsampled;
+        public final int expired;
+        public final int trimmed;
+
+        Result(int downsampled, int expired, int trimmed) {
+            this.downsampled = downsampled;
+            this.expired = expired;
+            this.trimmed = trimmed;
+        }
+
+        public int total() {
+            return downsampled + expired + trimmed;
+        }
+    }
+
+    private static HistoryCompactor instance;
+
+    private final HistoryDao historyDao;
+    private final SpaceReclaimer reclaimer;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+    private volatile Policy policy = Policy.DEFAULT;
+    private ScheduledFuture<?> periodicRun;
+
+    HistoryCompactor(HistoryDao historyDao, SpaceReclaimer reclaimer, LongSupplier clock,
+                     ScheduledExecutorService executor) {
+        this.historyDao = historyDao;
+        this.reclaimer = reclaimer;
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    public static synchronized HistoryCompactor getInstance(Context context) {
+        if (instance == null) {
+            AppDatabase database = AppDatabase.getInstance(context);
+            instance = new HistoryCompactor(database.historyDao(),
+                    maxPages -> incrementalVacuum(database.getOpenHelper().getWritableDatabase(), maxPages),
+                    System::currentTimeMillis,
+                    Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, TAG)));
+        }
+        return instance;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    // Run periodically from now on, calling it again has no effect
+    public synchronized void start() {
+        if (periodicRun == null) {
+            periodicRun = executor.scheduleWithFixedDelay(this::runSafely, FIRST_RUN_DELAY_MS,
+                    RUN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (periodicRun != null) {
+            periodicRun.cancel(false);
+            periodicRun = null;
+        }
+    }
+
+    // Run once now, in the background
+    public Future<Result> compactNow() {
+        return executor.submit(this::compact);
+    }
+
+    private void runSafely() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            // Keep the periodic run alive, the next one retries
+            Log.e(TAG, "Compaction failed", e);
+        }
+    }
+
+    Result compact() {
+        Policy current = policy;
+        long now = clock.getAsLong();
+        int downsampled = 0;
+        if (current.downsampleGridMillis > 0) {
+            long before = now - current.downsampleAfterMillis;
+            downsampled = deleteInBatches(limit -> historyDao.downsamplePositions(before, current.downsampleGridMillis, limit));
+        }
+        int expired = 0;
+        if (current.maxAgeMillis > 0) {
+            long before = now - current.maxAgeMillis;
+            expired = deleteInBatches(limit -> historyDao.deleteOlderThan(before, limit));
+        }
+        int trimmed = 0;
+        if (current.maxRows > 0) {
+            int excess = historyDao.countDeletable() - current.maxRows;
+            while (excess > 0) {
+                int deleted = historyDao.deleteOldest(Math.min(excess, BATCH_SIZE));
+                if (deleted == 0) {
+                    break;
+                }
+                trimmed += deleted;
+                excess -= deleted;
+            }
+        }
+        Result result = new Result(downsampled, expired, trimmed);
+        if (result.total() > 0) {
+            reclaimer.reclaim(VACUUM_PAGES);
+            Log.i(TAG, "Removed " + downsampled + " downsampled, " + expired + " expired and "
+                    + trimmed + " trimmed messages");
+        }
+        return result;
+    }
+
+    private interface BatchDelete {
+        int delete(int limit);
+    }
+
+    private static int deleteInBatches(BatchDelete batch) {
+        int total = 0;
+        int deleted;
+        do {
+            deleted = batch.delete(BATCH_SIZE);
+            total += deleted;
+        } while (deleted == BATCH_SIZE);
+        return total;
+    }
+
+    // Frees up to maxPages pages, nothing on a database without incremental auto vacuum
+    private static void incrementalVacuum(SupportSQLiteDatabase db, int maxPages) {
+        if (queryLong(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+        // The pragma only does its work while its rows are stepped through
+        try (Cursor cursor = db.query("PRAGMA incremental_vacuum(" + maxPages + ")")) {
+            while (cursor.moveToNext()) {
+                // Nothing to read
+            }
+        }
+    }
+
+    private static long queryLong(SupportSQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.query(sql)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.iotapp.database;
+
+import androidx.annotation.NonNull;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+
+// The framework helper with auto_vacuum = INCREMENTAL set in onConfigure, i.e. before Room
+// creates its tables, the only point where the mode can be chosen without rewriting the file.
+// A database that already exists in full auto vacuum mode (SQLite's default on Android)
+// switches in place. One with auto vacuum off keeps it off, since that conversion needs a
+// blocking full VACUUM; HistoryCompactor then leaves its freed pages to be reused.
+class IncrementalVacuumOpenHelperFactory implements SupportSQLiteOpenHelper.Factory {
+    private final SupportSQLiteOpenHelper.Factory delegate = new FrameworkSQLiteOpenHelperFactory();
+
+    @NonNull
+    @Override
+    public SupportSQLiteOpenHelper create(@NonNull SupportSQLiteOpenHelper.Configuration configuration) {
+        return delegate.create(SupportSQLiteOpenHelper.Configuration.builder(configuration.context)
+                .name(configuration.name)
+                .callback(new ConfiguringCallback(configuration.callback))
+                .noBackupDirectory(configuration.useNoBackupDirectory)
+                .allowDataLossOnRecovery(configuration.allowDataLossOnRecovery)
+                .build());
+    }
+
+    // Room's own callback with the pragma run first
+    private static final class ConfiguringCallback extends SupportSQLiteOpenHelper.Callback {
+        private final SupportSQLiteOpenHelper.Callback room;
+
+        ConfiguringCallback(SupportSQLiteOpenHelper.Callback room) {
+            super(room.version);
+            this.room = room;
+        }
+
+        @Override
+        public void onConfigure(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            room.onConfigure(db);
+        }
+
+        @Override
+        public void onCreate(@NonNull SupportSQLiteDatabase db) {
+            room.onCreate(db);
+        }
+
+        @Override
+        public void onUpgrade(@NonNull SupportSQLiteDatabase db, int oldVersion, int newVersion) {
+            room.onUpgrade(db, oldVersion, newVersion);
+        }
+
+        @Override
+        public void onDowngrade(@NonNull SupportSQLiteDatabase db, int oldVersion, int newVersion) {
+            room.onDowngrade(db, oldVersion, newVersion);
+        }
+
+        @Override
+        public void onOpen(@NonNull SupportSQLiteDatabase db) {
+            room.onOpen(db);
+        }
+
+        @Override
+        public void onCorruption(@NonNull SupportSQLiteDatabase db) {
+            room.onCorruption(db);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.iotapp.ingest;
+
+import com.example.iotapp.models.Message;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+// Remembers which (id, timestamp, type) keys were seen recently so relayed copies and repeated
+// frames are dropped before they are stored. Keys are 64 bit hashes kept in two generations of
+// an open addressing table: new keys go to the current one, and when it is full or older than
+// the window it becomes the previous one and the old previous is cleared. A key is therefore
+// remembered for at least one window unless the traffic exceeds the capacity within it, and
+// memory stays fixed at two tables whatever the traffic.
+//
+// Not thread safe, the pipeline only uses it from its worker thread.
+public class DuplicateFilter {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long DEFAULT_WINDOW_MS = 10 * 60 * 1000;
+
+    private static final long EMPTY = 0;
+
+    private final int capacity;
+    private final long windowMillis;
+    private final LongSupplier clock;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private long generationStart;
+
+    public DuplicateFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_WINDOW_MS, System::currentTimeMillis);
+    }
+
+    // Capacity is the number of keys per generation
+    public DuplicateFilter(int capacity, long windowMillis, LongSupplier clock) {
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        // Kept at most half full so probes stay short
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+        current = new long[tableSize];
+        previous = new long[tableSize];
+        generationStart = clock.getAsLong();
+    }
+
+    // True if the message was seen before, otherwise remembers it and returns false
+    public boolean isDuplicate(Message message) {
+        return !add(key(message.getId(), message.getTimestamp(), message.getType()));
+    }
+
+    // False if the key was already there
+    boolean add(long key) {
+        if (key == EMPTY) {
+            key = 1; // 0 marks free slots
+        }
+        if (contains(current, key) || contains(previous, key)) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        if (currentSize >= capacity || now - generationStart >= windowMillis) {
+            rotate(now);
+        }
+        insert(current, key);
+        currentSize++;
+        return true;
+    }
+
+    private void rotate(long now) {
+        long[] cleared = previous;
+        Arrays.fill(cleared, EMPTY);
+        previous = current;
+        current = cleared;
+        currentSize = 0;
+        generationStart = now;
+    }
+
+    private static boolean contains(long[] table, long key) {
+        int mask = table.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long entry = table[i];
+            if (entry == key) {
+                return true;
+            }
+            if (entry == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    private static void insert(long[] table, long key) {
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    // FNV-1a over the fields, finished with a 64 bit mixer. No strings are built per frame.
+    static long key(String id, long timestamp, String type) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, id);
+        hash = (hash ^ timestamp) * 0x100000001b3L;
+        hash = mix(hash, type);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xff) * 0x100000001b3L;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        // Separator so ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0x1f) * 0x100000001b3L;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.iotapp.ingest;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.iotapp.BluetoothManager;
+import com.example.iotapp.codec.BinaryMessageCodec;
+import com.example.iotapp.codec.MessageFrame;
+import com.example.iotapp.codec.TextMessageParser;
+import com.example.iotapp.database.AppDatabase;
+import com.example.iotapp.models.Coordinates;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.peers.PeerRegistry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Application scoped ingest path for inbound frames: decode -> dedupe -> persist -> fan-out.
+// It is the only consumer of BluetoothManager's frames, so messages are stored exactly once
+// whichever activity is on screen, and any number of screens can subscribe to the result.
+//
+// Decode and dedupe run in order on one worker thread fed by a bounded queue. When the queue
+// is full the reader thread waits for room, which slows reading down instead of dropping
+// frames; the decoder state is never touched off the worker and frames keep their order.
+// Persisting goes through a WriteBehindBuffer, and subscribers are notified
+// once the batch holding their messages is committed.
+public class MessagePipeline implements BluetoothManager.InboundFrameHandler {
+    private static final String TAG = "MessagePipeline";
+    private static final int QUEUE_CAPACITY = 256;
+
+    // Subscribers are called on the main thread
+    public interface MessageSubscriber {
+        void onMessage(Message message);
+    }
+
+    private static MessagePipeline instance;
+
+    private final ThreadPoolExecutor executor;
+    private final WriteBehindBuffer writeBuffer;
+    private final PeerRegistry peerRegistry;
+    private final CopyOnWriteArrayList<MessageSubscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Decoder state, only touched from the worker thread
+    private final MessageFrame decodedFrame = new MessageFrame();
+    private final TextMessageParser textParser = new TextMessageParser();
+
+    // Recently ingested keys, only touched from the worker thread. The unique index on
+    // messages catches whatever falls out of it.
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+
+    // The buffer is built from the pipeline's fan-out, so tests pass a factory for it
+    interface BufferFactory {
+        WriteBehindBuffer create(WriteBehindBuffer.FlushListener flushListener);
+    }
+
+    MessagePipeline(BufferFactory bufferFactory, PeerRegistry peerRegistry, int queueCapacity) {
+        this.peerRegistry = peerRegistry;
+        this.writeBuffer = bufferFactory.create(this::fanOut);
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "MessagePipeline"),
+                WAIT_FOR_ROOM);
+    }
+
+    // Queue full: block the caller until the worker takes a task. The worker exists by then,
+    // it was started by the first task.
+    private static final RejectedExecutionHandler WAIT_FOR_ROOM = (task, executor) -> {
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while waiting for the ingest queue, dropping frame");
+        }
+    };
+
+    public static synchronized MessagePipeline getInstance(Context context) {
+        if (instance == null) {
+            AppDatabase database = AppDatabase.getInstance(context);
+            instance = new MessagePipeline(flushListener -> new WriteBehindBuffer(database, flushListener),
+                    PeerRegistry.getInstance(context), QUEUE_CAPACITY);
+            BluetoothManager.getInstance().setInboundFrameHandler(instance);
+        }
+        return instance;
+    }
+
+    public void addSubscriber(MessageSubscriber subscriber) {
+        subscribers.addIfAbsent(subscriber);
+    }
+
+    public void removeSubscriber(MessageSubscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    // Called on the reader thread, copy the frame out before handing it to the worker
+    @Override
+    public void onFrame(byte[] frame, int offset, int length) {
+        byte[] copy = Arrays.copyOfRange(frame, offset, offset + length);
+        executor.execute(() -> process(copy));
+    }
+
+    private void process(byte[] frame) {
+        if (!decode(frame)) {
+            return;
+        }
+        Message message = decodedFrame.toMessage();
+        if (duplicateFilter.isDuplicate(message)) {
+            return;
+        }
+        persist(message, decodedFrame);
+    }
+
+    // Write out everything decoded so far, e.g. before the app goes away. The returned future
+    // completes once it is committed.
+    public Future<?> flush() {
+        // Let the worker finish frames already queued before flushing the buffer
+        return executor.submit(() -> writeBuffer.flush().get());
+    }
+
+    private boolean decode(byte[] frame) {
+        boolean decoded;
+        if (BinaryMessageCodec.isBinaryFrame(frame, 0, frame.length)) {
+            decoded = BinaryMessageCodec.decode(frame, 0, frame.length, decodedFrame);
+        } else {
+            decoded = textParser.parse(frame, 0, frame.length, decodedFrame);
+        }
+        if (!decoded) {
+            Log.w(TAG, "Dropping malformed frame");
+        }
+        return decoded;
+    }
+
+    private void persist(Message message, MessageFrame frame) {
+        Coordinates coordinates = null;
+        if (frame.type == MessageFrame.TYPE_POSITION) {
+            coordinates = new Coordinates(message.getId(), frame.getLatitude(), frame.getLongitude(),
+                    System.currentTimeMillis());
+            peerRegistry.update(new PeerRegistry.Peer(coordinates.getId(), coordinates.getLatitude(),
+                    coordinates.getLongitude(), coordinates.getLastSeen()));
+        }
+        writeBuffer.add(message, coordinates);
+    }
+
+    private void fanOut(List<Message> messages) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        mainHandler.post(() -> {
+            for (Message message : messages) {
+                for (MessageSubscriber subscriber : subscribers) {
+                    subscriber.onMessage(message);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.iotapp.ingest;
+
+import android.util.Log;
+
+import com.example.iotapp.database.AppDatabase;
+import com.example.iotapp.models.Coordinates;
+import com.example.iotapp.models.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Collects ingested messages for a short window (or until maxItems are pending) and writes
+// them to Room in one transaction: a bulk insert of the messages plus one upsert per node for
+// the latest position. A burst of frames then costs one SQLite commit instead of one or two
+// per frame. Call flush() before the process may go away to keep what is pending.
+//
+// The pipeline's duplicate filter has already seen every message handed in, so a batch that
+// fails to commit is not dropped: it goes back in front of the queue and is retried with a
+// doubling backoff, and once the retries are used up (or right away on an explicit flush())
+// its rows are written one transaction each, so only a row that fails on its own is lost.
+public class WriteBehindBuffer {
+    private static final String TAG = "WriteBehindBuffer";
+    public static final int DEFAULT_MAX_ITEMS = 64;
+    public static final long DEFAULT_WINDOW_MS = 200;
+    public static final long DEFAULT_RETRY_MS = 500;
+    static final int MAX_RETRIES = 2;
+
+    // Called on the flush thread once a batch is committed
+    public interface FlushListener {
+        void onFlushed(List<Message> messages);
+    }
+
+    // Writes one batch in a single transaction, returning the row id of each message, or -1
+    // where the unique index rejected it
+    interface BatchWriter {
+        List<Long> write(List<Message> messages, List<Coordinates> coordinates);
+    }
+
+    private final BatchWriter writer;
+    private final int maxItems;
+    private final long windowMillis;
+    private final long retryMillis;
+    private final FlushListener flushListener;
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, TAG));
+
+    private List<Message> pendingMessages = new ArrayList<>();
+    // Only the newest position per node needs to reach the coordinates table
+    private Map<String, Coordinates> pendingCoordinates = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+    // Failed writes of the pending batch in a row, no size flushes while backing off
+    private int failedAttempts;
+
+    public WriteBehindBuffer(AppDatabase database, FlushListener flushListener) {
+        this(database, DEFAULT_MAX_ITEMS, DEFAULT_WINDOW_MS, flushListener);
+    }
+
+    public WriteBehindBuffer(AppDatabase database, int maxItems, long windowMillis, FlushListener flushListener) {
+        this(transactional(database), maxItems, windowMillis, DEFAULT_RETRY_MS, flushListener);
+    }
+
+    WriteBehindBuffer(BatchWriter writer, int maxItems, long windowMillis, long retryMillis,
+                      FlushListener flushListener) {
+        this.writer = writer;
+        this.maxItems = maxItems;
+        this.windowMillis = windowMillis;
+        this.retryMillis = retryMillis;
+        this.flushListener = flushListener;
+    }
+
+    private static BatchWriter transactional(AppDatabase database) {
+        return (messages, coordinates) -> database.runInTransaction(() -> {
+            List<Long> rowIds = database.messageDao().insertAll(messages);
+            if (!coordinates.isEmpty()) {
+                database.coordinateDao().upsertAll(coordinates);
+            }
+            return rowIds;
+        });
+    }
+
+    // Queue a message, and the node position it carries if any
+    public synchronized void add(Message message, Coordinates coordinates) {
+        pendingMessages.add(message);
+        if (coordinates != null) {
+            pendingCoordinates.put(coordinates.getId(), coordinates);
+        }
+        if (pendingMessages.size() >= maxItems && failedAttempts == 0) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+            }
+            scheduledFlush = null;
+            flusher.execute(() -> flushPending(true));
+        } else if (scheduledFlush == null) {
+            scheduledFlush = flusher.schedule(() -> flushPending(true), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Write everything pending now. The returned future completes once it is committed, or
+    // written row by row if the batch fails.
+    public Future<?> flush() {
+        return flusher.submit(() -> flushPending(false));
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingMessages.size();
+    }
+
+    private void flushPending(boolean retryLater) {
+        List<Message> messages;
+        List<Coordinates> coordinates;
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+            }
+            scheduledFlush = null;
+            if (pendingMessages.isEmpty()) {
+                return;
+            }
+            messages = pendingMessages;
+            coordinates = new ArrayList<>(pendingCoordinates.values());
+            pendingMessages = new ArrayList<>();
+            pendingCoordinates = new LinkedHashMap<>();
+        }
+
+        List<Long> rowIds;
+        try {
+            rowIds = writer.write(messages, coordinates);
+        } catch (Exception e) {
+            if (retryLater && requeue(messages, coordinates)) {
+                Log.w(TAG, "Error writing " + messages.size() + " messages, retrying", e);
+                return;
+            }
+            Log.e(TAG, "Error writing " + messages.size() + " messages, writing them one by one", e);
+            rowIds = writeEach(messages, coordinates);
+        }
+        synchronized (this) {
+            failedAttempts = 0;
+        }
+        // Rows the unique index rejected were stored before, don't announce them again
+        List<Message> inserted = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            long rowId = rowIds.get(i);
+            if (rowId != -1) {
+                messages.get(i).setUid((int) rowId);
+                inserted.add(messages.get(i));
+            }
+        }
+        if (flushListener != null && !inserted.isEmpty()) {
+            flushListener.onFlushed(inserted);
+        }
+    }
+
+    // Put a failed batch back in front of what arrived since and schedule another try,
+    // false once the retries are used up
+    private synchronized boolean requeue(List<Message> messages, List<Coordinates> coordinates) {
+        if (failedAttempts >= MAX_RETRIES) {
+            return false;
+        }
+        failedAttempts++;
+        messages.addAll(pendingMessages);
+        pendingMessages = messages;
+        // Positions that arrived since are newer
+        Map<String, Coordinates> merged = new LinkedHashMap<>();
+        for (Coordinates position : coordinates) {
+            merged.put(position.getId(), position);
+        }
+        merged.putAll(pendingCoordinates);
+        pendingCoordinates = merged;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlush = flusher.schedule(() -> flushPending(true), retryMillis << (failedAttempts - 1),
+                TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // One transaction per row, so a row that cannot be stored only loses itself. Its row id
+    // comes back as -1 and it is not announced.
+    private List<Long> writeEach(List<Message> messages, List<Coordinates> coordinates) {
+        List<Long> rowIds = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            try {
+                rowIds.add(writer.write(Collections.singletonList(message), Collections.emptyList()).get(0));
+            } catch (Exception e) {
+                Log.e(TAG, "Dropping message " + message.getId() + "/" + message.getTimestamp(), e);
+                rowIds.add(-1L);
+            }
+        }
+        if (!coordinates.isEmpty()) {
+            try {
+                writer.write(Collections.emptyList(), coordinates);
+            } catch (Exception e) {
+                Log.e(TAG, "Dropping " + coordinates.size() + " positions", e);
+            }
+        }
+        return rowIds;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.iotapp.location;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+// LocationSource backed by the platform GPS provider. Fixes are delivered on the main thread.
+public class GpsLocationSource implements LocationSource {
+    private static final String TAG = "GpsLocationSource";
+
+    private final LocationManager locationManager;
+    private LocationListener listener;
+
+    public GpsLocationSource(Context context) {
+        locationManager = (LocationManager) context.getApplicationContext().getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    @Override
+    public boolean start(long intervalMillis, float minDistanceMeters, Callback callback) {
+        stop();
+        listener = new LocationListener() {
+            @Override
+            public void onLocationChanged(@NonNull Location location) {
+                callback.onFix(toFix(location));
+            }
+
+            @Override
+            public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+            @Override
+            public void onProviderEnabled(@NonNull String provider) {}
+
+            @Override
+            public void onProviderDisabled(@NonNull String provider) {}
+        };
+        try {
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, intervalMillis, minDistanceMeters,
+                    listener, Looper.getMainLooper());
+            return true;
+        } catch (SecurityException e) {
+            // Permission is requested by the screens, they subscribe again once it is granted
+            Log.w(TAG, "Location permission not granted", e);
+            listener = null;
+            return false;
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (listener != null) {
+            locationManager.removeUpdates(listener);
+            listener = null;
+        }
+    }
+
+    @Override
+    public LocationFix getLastKnownFix() {
+        try {
+            Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+            return location == null ? null : toFix(location);
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
+    }
+
+    private static LocationFix toFix(Location location) {
+        return new LocationFix(location.getLatitude(), location.getLongitude(),
+                location.hasSpeed() ? location.getSpeed() : Float.NaN, location.getTime());
+    }
+}
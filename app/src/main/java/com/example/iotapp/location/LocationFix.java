@@ -0,0 +1,22 @@
+package com.example.iotapp.location;
+
+// One position fix, immutable. Kept independent of android.location.Location so the sampling
+// logic can be driven by scripted fixes in plain JVM tests.
+public final class LocationFix {
+    public final double latitude;
+    public final double longitude;
+    // Meters per second, NaN if the source did not report one
+    public final float speed;
+    public final long time; // Epoch millis
+
+    public LocationFix(double latitude, double longitude, float speed, long time) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.speed = speed;
+        this.time = time;
+    }
+
+    public boolean hasSpeed() {
+        return !Float.isNaN(speed);
+    }
+}
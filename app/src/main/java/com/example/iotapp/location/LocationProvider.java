@@ -0,0 +1,161 @@
+package com.example.iotapp.location;
+
+import android.content.Context;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// App wide location provider. Every screen and the beacon scheduler share one GPS request,
+// whose rate follows what is actually needed:
+// - a screen showing our position (any listener registered) samples by movement speed,
+//   1 s when moving fast down to 5 s when standing still
+// - a running beacon with no screen open only needs a fresh fix per beacon, half the beacon
+//   interval while moving and the full interval while stationary
+// - nothing needing fixes stops the GPS
+// Fixes are fanned out to every listener. Used from the main thread.
+public class LocationProvider {
+    public interface FixListener {
+        void onFix(LocationFix fix);
+    }
+
+    static final float WALKING_SPEED = 0.5f; // m/s, below this we are stationary
+    static final float FAST_SPEED = 3f; // m/s, running or in a vehicle
+    static final long FAST_INTERVAL = 1000;
+    static final long WALKING_INTERVAL = 2000;
+    static final long STATIONARY_INTERVAL = 5000;
+    static final long MIN_BEACON_SAMPLING_INTERVAL = 5000;
+    static final float STATIONARY_MIN_DISTANCE = 5f;
+
+    private static LocationProvider instance;
+
+    private final LocationSource source;
+    private final CopyOnWriteArrayList<FixListener> listeners = new CopyOnWriteArrayList<>();
+    private final LocationSource.Callback sourceCallback = this::onSourceFix;
+    private volatile LocationFix lastFix;
+    private float speedEstimate;
+    private long beaconIntervalMillis;
+    // Current request, 0 when the source is stopped
+    private long intervalMillis;
+    private float minDistanceMeters;
+
+    LocationProvider(LocationSource source) {
+        this.source = source;
+    }
+
+    public static synchronized LocationProvider getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocationProvider(new GpsLocationSource(context));
+        }
+        return instance;
+    }
+
+    // Registering means a screen is showing our position. The last fix, if any, is delivered
+    // right away.
+    public void addListener(FixListener listener) {
+        if (!listeners.addIfAbsent(listener)) {
+            return;
+        }
+        if (lastFix == null) {
+            lastFix = source.getLastKnownFix();
+        }
+        if (lastFix != null) {
+            listener.onFix(lastFix);
+        }
+        reconfigure();
+    }
+
+    public void removeListener(FixListener listener) {
+        if (listeners.remove(listener)) {
+            reconfigure();
+        }
+    }
+
+    // Interval of the running position beacon, 0 when none is running
+    public void setBeaconInterval(long beaconIntervalMillis) {
+        this.beaconIntervalMillis = Math.max(0, beaconIntervalMillis);
+        reconfigure();
+    }
+
+    public LocationFix getLastFix() {
+        if (lastFix == null) {
+            lastFix = source.getLastKnownFix();
+        }
+        return lastFix;
+    }
+
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    float getMinDistanceMeters() {
+        return minDistanceMeters;
+    }
+
+    float getSpeedEstimate() {
+        return speedEstimate;
+    }
+
+    private void onSourceFix(LocationFix fix) {
+        updateSpeed(fix);
+        lastFix = fix;
+        for (FixListener listener : listeners) {
+            listener.onFix(fix);
+        }
+        reconfigure();
+    }
+
+    // Reported speed when there is one, otherwise derived from the previous fix. Smoothed so
+    // a single noisy fix doesn't flip the sampling rate.
+    private void updateSpeed(LocationFix fix) {
+        float speed;
+        if (fix.hasSpeed()) {
+            speed = fix.speed;
+        } else if (lastFix != null && fix.time > lastFix.time) {
+            speed = (float) (distanceMeters(lastFix, fix) * 1000 / (fix.time - lastFix.time));
+        } else {
+            return;
+        }
+        speedEstimate = lastFix == null ? speed : (speedEstimate + speed) / 2;
+    }
+
+    private void reconfigure() {
+        long interval = intervalFor(speedEstimate, beaconIntervalMillis, !listeners.isEmpty());
+        if (interval == 0) {
+            if (intervalMillis != 0) {
+                source.stop();
+                intervalMillis = 0;
+            }
+            return;
+        }
+        // While moving take every fix so slowing down is noticed, at rest ignore GPS jitter
+        float minDistance = speedEstimate < WALKING_SPEED ? STATIONARY_MIN_DISTANCE : 0;
+        if (interval != intervalMillis || minDistance != minDistanceMeters) {
+            // Left at 0 if the source can't start, so the next change retries
+            intervalMillis = source.start(interval, minDistance, sourceCallback) ? interval : 0;
+            minDistanceMeters = minDistance;
+        }
+    }
+
+    // Sampling interval in millis for the current needs, 0 if nothing needs fixes
+    static long intervalFor(float speed, long beaconIntervalMillis, boolean screenVisible) {
+        long interval = 0;
+        if (screenVisible) {
+            interval = speed >= FAST_SPEED ? FAST_INTERVAL
+                    : speed >= WALKING_SPEED ? WALKING_INTERVAL
+                    : STATIONARY_INTERVAL;
+        }
+        if (beaconIntervalMillis > 0) {
+            long beaconSampling = speed >= WALKING_SPEED ? beaconIntervalMillis / 2 : beaconIntervalMillis;
+            beaconSampling = Math.max(MIN_BEACON_SAMPLING_INTERVAL, beaconSampling);
+            interval = interval == 0 ? beaconSampling : Math.min(interval, beaconSampling);
+        }
+        return interval;
+    }
+
+    // Equirectangular approximation, plenty for the few meters between consecutive fixes
+    private static double distanceMeters(LocationFix a, LocationFix b) {
+        double meanLat = Math.toRadians((a.latitude + b.latitude) / 2);
+        double dx = Math.toRadians(b.longitude - a.longitude) * Math.cos(meanLat);
+        double dy = Math.toRadians(b.latitude - a.latitude);
+        return Math.sqrt(dx * dx + dy * dy) * 6371008.8;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.iotapp.location;
+
+// Where fixes come from: the GPS on a device, a scripted fake in tests
+public interface LocationSource {
+    interface Callback {
+        void onFix(LocationFix fix);
+    }
+
+    // Start or re-arm delivery at the given rate. Calling it again replaces the previous request.
+    // Returns false if it could not start, e.g. without location permission.
+    boolean start(long intervalMillis, float minDistanceMeters, Callback callback);
+
+    void stop();
+
+    // Most recent fix the platform already has, null if none
+    LocationFix getLastKnownFix();
+}
@@ -1,26 +1,31 @@
 package com.example.iotapp.models;
 import java.io.Serializable;
+
+import androidx.annotation.NonNull;
 import androidx.room.Entity;
 import androidx.room.PrimaryKey;
 @Entity(tableName = "coordinates")
 public class Coordinates implements Serializable {
-    @PrimaryKey(autoGenerate = true) // Auto-generate unique ID for each message
-    private int uid; // New field for Room's primary key
+    @PrimaryKey // One row per node, so lookups and upserts by id use the primary key index
+    @NonNull
     private String id;
     private double latitude;
     private double longitude;
+    private long lastSeen; // Epoch millis of the last position received from this node
 
-    public Coordinates(String id, double latitude, double longitude) {
+    public Coordinates(@NonNull String id, double latitude, double longitude, long lastSeen) {
         this.id = id;
         this.latitude = latitude;
         this.longitude = longitude;
+        this.lastSeen = lastSeen;
     }
 
+    @NonNull
     public String getId() {
         return id;
     }
 
-    public void setId(String id) {
+    public void setId(@NonNull String id) {
         this.id = id;
     }
 
@@ -39,8 +44,14 @@ public class Coordinates implements Serializable {
     public void setLongitude(double longitude) {
         this.longitude = longitude;
     }
-    public int getUid() { return uid; }
-    public void setUid(int uid) { this.uid = uid; }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
 
     @Override
     public String toString() {
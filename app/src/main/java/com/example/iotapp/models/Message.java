@@ -2,24 +2,33 @@ package com.example.iotapp.models;
 
 import android.util.Log;
 
+import com.example.iotapp.codec.MessageFrame;
+import com.example.iotapp.codec.TextMessageParser;
+
 import java.io.Serializable;
-import java.util.Arrays;
+import java.util.Locale;
 
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
-@Entity(tableName = "messages")
+// Timestamp is epoch millis, indexed so ordering and time range queries don't scan the table.
+// A node sends at most one message of a type per timestamp, so (id, timestamp, type) is unique
+// and relayed copies of a message are rejected by the database.
+@Entity(tableName = "messages", indices = {@Index("timestamp"),
+        @Index(value = {"id", "timestamp", "type"}, unique = true)})
 public class Message implements Serializable {
+    private static final String TAG = "MESSAGE";
 
     @PrimaryKey(autoGenerate = true) // Auto-generate unique ID for each message
     private int uid; // New field for Room's primary key
 
     private String payload;
     private String id;
-    private String timestamp;
+    private long timestamp;
     private String type;
 
 
-    public Message(String id, String timestamp, String type, String payload) {
+    public Message(String id, long timestamp, String type, String payload) {
         this.id = id;
         this.timestamp = timestamp;
         this.type = type;
@@ -36,27 +45,38 @@ public class Message implements Serializable {
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
 
-    public String getTimestamp() { return timestamp; }
-    public void setTimestamp(String timestamp) { this.timestamp = timestamp; }
+    public long getTimestamp() { return timestamp; }
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
 
     public String getType() { return type; }
     public void setType(String type) { this.type = type; }
 
-    // Bluetooth methods (unchanged)
+    // Status update carrying the SOS status index
+    public boolean isSos() {
+        return "2".equals(type) && "14".equals(payload);
+    }
+
+    // Position payload "lat-lon" with 4 decimals, always with '.' as the wire format needs
+    public static String positionPayload(double latitude, double longitude) {
+        return String.format(Locale.US, "%.4f-%.4f", latitude, longitude);
+    }
+
+    // Text wire format "id-timestamp-type-payload". Concatenated rather than formatted so the
+    // device locale cannot change the digits.
     public String toBluetoothMessage() {
-        return String.format("%s-%s-%s-%s", id, timestamp, type, payload);
+        return id + "-" + timestamp + "-" + type + "-" + payload;
     }
 
+    // Convenience parser for a single text frame. The receive path parses into a reused
+    // MessageFrame with TextMessageParser directly instead of going through here.
     public static Message fromBluetoothMessage(String bluetoothMessage) {
-        String[] parts = bluetoothMessage.split("-");
-        for(String p: parts){
-            Log.println(Log.INFO,"MESSAGE", "Rec: "+p);
-        }
-        if (parts.length == 4) {
-            return new Message(parts[0], parts[1], parts[2], parts[3]);
-        }else if(parts.length == 5){
-            return new Message(parts[0], parts[1], parts[2], parts[3] + "-" + parts[4]);
+        MessageFrame frame = new MessageFrame();
+        if (!new TextMessageParser().parse(bluetoothMessage, frame)) {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Malformed frame: " + bluetoothMessage);
+            }
+            return null;
         }
-        return null;
+        return frame.toMessage();
     }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.example.iotapp.models;
+
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+// A message we sent, with its delivery state. Kept apart from the message history so a link
+// that is down doesn't lose what was sent meanwhile, and so history compaction never touches
+// what is still waiting to go out.
+@Entity(tableName = "outbox", indices = {@Index("state")})
+public class OutboxEntry {
+    public static final int STATE_QUEUED = 0; // Waiting for the link
+    public static final int STATE_WRITTEN = 1; // Handed to the node
+    public static final int STATE_ACKED = 2; // The node confirmed it went on air
+
+    @PrimaryKey(autoGenerate = true)
+    private long uid;
+
+    private String id;
+    private long timestamp;
+    private String type;
+    private String payload;
+    private int state;
+    private long queuedAt; // Epoch millis
+    private int attempts; // Failed sends so far
+
+    public OutboxEntry(String id, long timestamp, String type, String payload, int state, long queuedAt, int attempts) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.payload = payload;
+        this.state = state;
+        this.queuedAt = queuedAt;
+        this.attempts = attempts;
+    }
+
+    public static OutboxEntry queued(Message message, long now) {
+        return new OutboxEntry(message.getId(), message.getTimestamp(), message.getType(), message.getPayload(),
+                STATE_QUEUED, now, 0);
+    }
+
+    public Message toMessage() {
+        return new Message(id, timestamp, type, payload);
+    }
+
+    public long getUid() { return uid; }
+    public void setUid(long uid) { this.uid = uid; }
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public long getTimestamp() { return timestamp; }
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+
+    public String getType() { return type; }
+    public void setType(String type) { this.type = type; }
+
+    public String getPayload() { return payload; }
+    public void setPayload(String payload) { this.payload = payload; }
+
+    public int getState() { return state; }
+    public void setState(int state) { this.state = state; }
+
+    public long getQueuedAt() { return queuedAt; }
+    public void setQueuedAt(long queuedAt) { this.queuedAt = queuedAt; }
+
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+}
@@ -0,0 +1,187 @@
+package com.example.iotapp.outbox;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.iotapp.BluetoothManager;
+import com.example.iotapp.daos.OutboxDao;
+import com.example.iotapp.database.AppDatabase;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.models.OutboxEntry;
+import com.example.iotapp.radio.TransmitScheduler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+// Store and forward for everything we send. A message is written to the history and queued
+// in the outbox table in one transaction, then sent whenever the link is up:
+// - queued entries drain in batches as soon as a connection comes up, the next batch once
+//   the previous one is handed to the node
+// - SOS is sent ahead of everything, even while a batch is still going out, and never expires
+// - a position beacon that waited too long, or that a newer beacon of the node replaces, is
+//   dropped instead of sent
+// - a failed send leaves the entry queued and is retried
+// Entries move QUEUED -> WRITTEN when the node has the frame and WRITTEN -> ACKED if the node
+// confirms it went on air. All state is touched on the outbox thread only.
+public class Outbox implements BluetoothManager.DeliveryListener {
+    private static final String TAG = "Outbox";
+    static final int BATCH_SIZE = 16;
+    static final long BEACON_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+    static final long DELIVERED_RETENTION_MS = TimeUnit.DAYS.toMillis(1);
+    static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+
+    // Hands a message to the link, the future completes once the node has it
+    public interface Sender {
+        CompletableFuture<Void> send(Message message);
+    }
+
+    private static Outbox instance;
+
+    private final OutboxDao outboxDao;
+    private final Sender sender;
+    private final BooleanSupplier connected;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+
+    // Outbox thread only
+    private final Set<Long> inFlight = new HashSet<>();
+    private final Map<Long, CompletableFuture<Void>> waiting = new HashMap<>();
+    private ScheduledFuture<?> retry;
+    private volatile int queuedCount;
+
+    Outbox(OutboxDao outboxDao, Sender sender, BooleanSupplier connected, LongSupplier clock,
+           ScheduledExecutorService executor) {
+        this.outboxDao = outboxDao;
+        this.sender = sender;
+        this.connected = connected;
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    public static synchronized Outbox getInstance(Context context) {
+        if (instance == null) {
+            BluetoothManager bluetoothManager = BluetoothManager.getInstance();
+            TransmitScheduler transmitScheduler = TransmitScheduler.getInstance();
+            instance = new Outbox(AppDatabase.getInstance(context).outboxDao(), transmitScheduler::submit,
+                    bluetoothManager::isConnected, System::currentTimeMillis,
+                    Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, TAG)));
+            bluetoothManager.setDeliveryListener(instance);
+            // Pick up whatever a previous run left queued
+            instance.onConnected();
+        }
+        return instance;
+    }
+
+    // Store and queue a message. The future completes once the node has it, however long the
+    // link is down, and fails only if the message could not be stored or was dropped as stale.
+    public CompletableFuture<Void> send(Message message) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            long uid;
+            try {
+                uid = outboxDao.enqueue(message, clock.getAsLong());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not queue message", e);
+                result.completeExceptionally(e);
+                return;
+            }
+            waiting.put(uid, result);
+            drain();
+        });
+        return result;
+    }
+
+    // Messages waiting for the link, as of the last change
+    public int getQueuedCount() {
+        return queuedCount;
+    }
+
+    @Override
+    public void onConnected() {
+        executor.execute(this::drain);
+    }
+
+    @Override
+    public void onAcknowledged(String id, long timestamp, String type, boolean wholeSeconds) {
+        if (wholeSeconds) {
+            executor.execute(() -> outboxDao.markAckedInSecond(id, timestamp / 1000, type));
+        } else {
+            executor.execute(() -> outboxDao.markAcked(id, timestamp, type));
+        }
+    }
+
+    private void drain() {
+        long now = clock.getAsLong();
+        if (outboxDao.deleteStaleBeacons(now - BEACON_TTL_MS) > 0) {
+            failDropped();
+        }
+        outboxDao.deleteDeliveredBefore(now - DELIVERED_RETENTION_MS);
+        queuedCount = outboxDao.countQueued();
+        if (!connected.getAsBoolean()) {
+            return;
+        }
+        boolean idle = inFlight.isEmpty();
+        for (OutboxEntry entry : outboxDao.getQueued(BATCH_SIZE)) {
+            if (inFlight.contains(entry.getUid())) {
+                continue;
+            }
+            Message message = entry.toMessage();
+            // A batch is still going out, only SOS (sorted first) may overtake it
+            if (!idle && !message.isSos()) {
+                break;
+            }
+            inFlight.add(entry.getUid());
+            sender.send(message).whenComplete((ignored, error) -> executor.execute(() -> onSent(entry, error)));
+        }
+    }
+
+    private void onSent(OutboxEntry entry, Throwable error) {
+        long uid = entry.getUid();
+        inFlight.remove(uid);
+        if (error == null) {
+            outboxDao.setState(uid, OutboxEntry.STATE_WRITTEN);
+            CompletableFuture<Void> result = waiting.remove(uid);
+            if (result != null) {
+                result.complete(null);
+            }
+            if (inFlight.isEmpty()) {
+                drain();
+            }
+            return;
+        }
+        outboxDao.recordFailure(uid);
+        Log.w(TAG, "Send failed, keeping message queued: " + error.getMessage());
+        // Reconnecting drains again. While the link claims to be up, e.g. with a full send
+        // queue, try again a bit later.
+        if (connected.getAsBoolean() && (retry == null || retry.isDone())) {
+            retry = executor.schedule(this::drain, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Fail the callers of beacons that were just dropped
+    private void failDropped() {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        Set<Long> queued = new HashSet<>(outboxDao.getQueuedUids());
+        Iterator<Map.Entry<Long, CompletableFuture<Void>>> iterator = waiting.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, CompletableFuture<Void>> entry = iterator.next();
+            if (!queued.contains(entry.getKey()) && !inFlight.contains(entry.getKey())) {
+                entry.getValue().completeExceptionally(new CancellationException("Stale beacon dropped"));
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.iotapp.peers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// In-memory grid index over the last known position of every node. The globe is cut into
+// cells of CELL_DEGREES square; a radius query only visits the cells its circle can touch
+// and a nearest-K query walks rings of cells outwards until nothing closer can remain.
+// Updates move a node between cells in O(1), so it can be fed straight from ingest.
+public class PeerIndex {
+    // About 1.1 km north-south, a few hundred nodes per cell at the densest
+    static final double CELL_DEGREES = 0.01;
+    private static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+    private static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS_METERS / 180;
+
+    private static final Comparator<Neighbor> BY_DISTANCE = new Comparator<Neighbor>() {
+        @Override
+        public int compare(Neighbor a, Neighbor b) {
+            return Double.compare(a.distanceMeters, b.distanceMeters);
+        }
+    };
+
+    // Result of a query, immutable
+    public static final class Neighbor {
+        public final String id;
+        public final double latitude;
+        public final double longitude;
+        public final double distanceMeters;
+
+        Neighbor(String id, double latitude, double longitude, double distanceMeters) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.distanceMeters = distanceMeters;
+        }
+    }
+
+    private static final class Entry {
+        final String id;
+        double latitude;
+        double longitude;
+        long cell;
+
+        Entry(String id) {
+            this.id = id;
+        }
+    }
+
+    private static PeerIndex instance;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Long, List<Entry>> cells = new HashMap<>();
+
+    public static synchronized PeerIndex getInstance() {
+        if (instance == null) {
+            instance = new PeerIndex();
+        }
+        return instance;
+    }
+
+    public synchronized void update(String id, double latitude, double longitude) {
+        Entry entry = entries.get(id);
+        long cell = cellOf(latitude, longitude);
+        if (entry == null) {
+            entry = new Entry(id);
+            entries.put(id, entry);
+        } else if (entry.cell != cell) {
+            removeFromCell(entry);
+        } else {
+            entry.latitude = latitude;
+            entry.longitude = longitude;
+            return;
+        }
+        entry.latitude = latitude;
+        entry.longitude = longitude;
+        entry.cell = cell;
+        List<Entry> members = cells.get(cell);
+        if (members == null) {
+            members = new ArrayList<>(4);
+            cells.put(cell, members);
+        }
+        members.add(entry);
+    }
+
+    public synchronized void remove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            removeFromCell(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        cells.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Last known position of a node, null if it has none
+    public synchronized Neighbor get(String id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : new Neighbor(entry.id, entry.latitude, entry.longitude, 0);
+    }
+
+    // Every node within radiusMeters of the point, nearest first
+    public synchronized List<Neighbor> withinRadius(double latitude, double longitude, double radiusMeters) {
+        List<Neighbor> result = new ArrayList<>();
+        int row = rowOf(latitude);
+        int column = columnOf(longitude);
+        int rowSpan = (int) Math.ceil(radiusMeters / (CELL_DEGREES * METERS_PER_DEGREE));
+        double poleward = Math.min(90, Math.abs(latitude) + rowSpan * CELL_DEGREES);
+        double cellWidthMeters = CELL_DEGREES * METERS_PER_DEGREE * Math.cos(Math.toRadians(poleward));
+        int columnSpan = cellWidthMeters <= 0 ? COLUMNS / 2
+                : (int) Math.min(COLUMNS / 2, Math.ceil(radiusMeters / cellWidthMeters));
+        int firstRow = Math.max(0, row - rowSpan);
+        int lastRow = Math.min(ROWS - 1, row + rowSpan);
+        int lastColumn = column + columnSpan - (2 * columnSpan >= COLUMNS ? 1 : 0);
+        long cellsToVisit = (long) (lastRow - firstRow + 1) * (lastColumn - column + columnSpan + 1);
+        if (cellsToVisit > cells.size()) {
+            // Cheaper to look at every occupied cell than to probe mostly empty ones
+            for (List<Entry> members : cells.values()) {
+                collectWithin(members, latitude, longitude, radiusMeters, result);
+            }
+        } else {
+            for (int r = firstRow; r <= lastRow; r++) {
+                for (int c = column - columnSpan; c <= lastColumn; c++) {
+                    List<Entry> members = cells.get(key(r, c));
+                    if (members != null) {
+                        collectWithin(members, latitude, longitude, radiusMeters, result);
+                    }
+                }
+            }
+        }
+        Collections.sort(result, BY_DISTANCE);
+        return result;
+    }
+
+    private static void collectWithin(List<Entry> members, double latitude, double longitude,
+                                      double radiusMeters, List<Neighbor> result) {
+        for (int i = 0; i < members.size(); i++) {
+            Entry entry = members.get(i);
+            double distance = distanceMeters(latitude, longitude, entry.latitude, entry.longitude);
+            if (distance <= radiusMeters) {
+                result.add(new Neighbor(entry.id, entry.latitude, entry.longitude, distance));
+            }
+        }
+    }
+
+    // The k nodes nearest to the point, nearest first, optionally skipping one id (e.g. the
+    // node that sent an SOS)
+    public synchronized List<Neighbor> nearest(double latitude, double longitude, int k, String excludeId) {
+        List<Neighbor> result = new ArrayList<>();
+        int candidates = entries.size() - (excludeId != null && entries.containsKey(excludeId) ? 1 : 0);
+        if (k <= 0 || candidates <= 0) {
+            return result;
+        }
+        // Max-heap of the best k so far
+        PriorityQueue<Neighbor> best = new PriorityQueue<>(Math.min(k, candidates), Collections.reverseOrder(BY_DISTANCE));
+        int row = rowOf(latitude);
+        int column = columnOf(longitude);
+        int visited = 0;
+        int maxRing = Math.max(ROWS, COLUMNS / 2);
+        for (int ring = 0; ring <= maxRing && visited < candidates; ring++) {
+            if (best.size() == k && ringLowerBound(latitude, ring) > best.peek().distanceMeters) {
+                break;
+            }
+            if (8L * ring > cells.size()) {
+                // Sparse index: scanning every occupied cell beats walking more empty rings
+                best.clear();
+                for (List<Entry> members : cells.values()) {
+                    offerAll(members, latitude, longitude, k, excludeId, best);
+                }
+                break;
+            }
+            visited += visitRing(row, column, ring, latitude, longitude, k, excludeId, best);
+        }
+        result.addAll(best);
+        Collections.sort(result, BY_DISTANCE);
+        return result;
+    }
+
+    public List<Neighbor> nearest(double latitude, double longitude, int k) {
+        return nearest(latitude, longitude, k, null);
+    }
+
+    // The k nodes nearest to a node's last known position, excluding the node itself
+    public synchronized List<Neighbor> nearestTo(String id, int k) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return new ArrayList<>();
+        }
+        return nearest(entry.latitude, entry.longitude, k, id);
+    }
+
+    // Cells at Chebyshev distance ring from (row, column), returns how many nodes were seen
+    private int visitRing(int row, int column, int ring, double latitude, double longitude, int k,
+                          String excludeId, PriorityQueue<Neighbor> best) {
+        int seen = 0;
+        int columnSpan = Math.min(ring, COLUMNS / 2);
+        // Once the ring spans the whole globe its two ends are the same column
+        int lastColumn = column + columnSpan - (2 * columnSpan >= COLUMNS ? 1 : 0);
+        for (int r = row - ring; r <= row + ring; r++) {
+            if (r < 0 || r >= ROWS) {
+                continue;
+            }
+            boolean edgeRow = r == row - ring || r == row + ring;
+            int step = edgeRow ? 1 : Math.max(1, 2 * columnSpan);
+            for (int c = column - columnSpan; c <= lastColumn; c += step) {
+                List<Entry> members = cells.get(key(r, c));
+                if (members != null) {
+                    seen += offerAll(members, latitude, longitude, k, excludeId, best);
+                }
+            }
+        }
+        return seen;
+    }
+
+    private static int offerAll(List<Entry> members, double latitude, double longitude, int k, String excludeId,
+                                PriorityQueue<Neighbor> best) {
+        int seen = 0;
+        for (int i = 0; i < members.size(); i++) {
+            Entry entry = members.get(i);
+            if (entry.id.equals(excludeId)) {
+                continue;
+            }
+            seen++;
+            double distance = distanceMeters(latitude, longitude, entry.latitude, entry.longitude);
+            if (best.size() < k) {
+                best.add(new Neighbor(entry.id, entry.latitude, entry.longitude, distance));
+            } else if (distance < best.peek().distanceMeters) {
+                best.poll();
+                best.add(new Neighbor(entry.id, entry.latitude, entry.longitude, distance));
+            }
+        }
+        return seen;
+    }
+
+    // No point in ring or beyond can be closer than this. Cells narrow towards the poles, so
+    // use the width at the most poleward latitude the ring reaches.
+    private static double ringLowerBound(double latitude, int ring) {
+        if (ring == 0) {
+            return 0;
+        }
+        double poleward = Math.min(90, Math.abs(latitude) + ring * CELL_DEGREES);
+        double cellMeters = CELL_DEGREES * METERS_PER_DEGREE * Math.cos(Math.toRadians(poleward));
+        return (ring - 1) * cellMeters;
+    }
+
+    private void removeFromCell(Entry entry) {
+        List<Entry> members = cells.get(entry.cell);
+        if (members != null) {
+            members.remove(entry);
+            if (members.isEmpty()) {
+                cells.remove(entry.cell);
+            }
+        }
+    }
+
+    private static int rowOf(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_DEGREES);
+        return Math.max(0, Math.min(ROWS - 1, row));
+    }
+
+    private static int columnOf(double longitude) {
+        return (int) Math.floor((longitude + 180) / CELL_DEGREES);
+    }
+
+    private static long cellOf(double latitude, double longitude) {
+        return key(rowOf(latitude), columnOf(longitude));
+    }
+
+    // Columns wrap around the antimeridian
+    private static long key(int row, int column) {
+        int wrapped = ((column % COLUMNS) + COLUMNS) % COLUMNS;
+        return ((long) row << 32) | wrapped;
+    }
+
+    // Haversine distance, within 0.5% of the ellipsoidal distance Location.distanceBetween gives
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
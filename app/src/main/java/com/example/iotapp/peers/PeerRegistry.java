@@ -0,0 +1,190 @@
+package com.example.iotapp.peers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.iotapp.database.AppDatabase;
+import com.example.iotapp.models.Coordinates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// Live view of the last known position of every node. It is seeded once from the coordinates
+// table and then fed by the ingest pipeline, so screens never re-read the table.
+//
+// Readers get immutable snapshots, which they may iterate on any thread while updates keep
+// arriving. Updates are coalesced: whatever arrived before the callback executor (the main
+// thread) gets to run is published as one new snapshot plus the list of peers that changed.
+public class PeerRegistry {
+
+    // Position of one node, immutable
+    public static final class Peer {
+        public final String id;
+        public final double latitude;
+        public final double longitude;
+        public final long lastSeen;
+
+        public Peer(String id, double latitude, double longitude, long lastSeen) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    // Immutable set of peers in the order they were first seen
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<Peer>emptyList(), Collections.<String, Peer>emptyMap(), 0);
+
+        private final List<Peer> peers;
+        private final Map<String, Peer> byId;
+        private final int version;
+
+        private Snapshot(List<Peer> peers, Map<String, Peer> byId, int version) {
+            this.peers = peers;
+            this.byId = byId;
+            this.version = version;
+        }
+
+        public List<Peer> getPeers() {
+            return peers;
+        }
+
+        public Peer get(String id) {
+            return byId.get(id);
+        }
+
+        public int size() {
+            return peers.size();
+        }
+
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    // Called on the callback executor with the new snapshot and the peers added or moved
+    public interface PeerListener {
+        void onPeersChanged(Snapshot snapshot, List<Peer> changed);
+    }
+
+    private static PeerRegistry instance;
+
+    private final Executor callbackExecutor;
+    private final PeerIndex index;
+    private final CopyOnWriteArrayList<PeerListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // Updates not yet published, guarded by this
+    private final Map<String, Peer> pending = new LinkedHashMap<>();
+    private boolean publishScheduled;
+
+    PeerRegistry(Executor callbackExecutor, PeerIndex index) {
+        this.callbackExecutor = callbackExecutor;
+        this.index = index;
+    }
+
+    public static synchronized PeerRegistry getInstance(Context context) {
+        if (instance == null) {
+            Handler mainHandler = new Handler(Looper.getMainLooper());
+            instance = new PeerRegistry(mainHandler::post, PeerIndex.getInstance());
+            AppDatabase database = AppDatabase.getInstance(context);
+            new Thread(() -> {
+                for (Coordinates coordinates : database.coordinateDao().getAllCoordinates()) {
+                    // Anything ingested meanwhile is newer than the table, keep it
+                    instance.updateIfAbsent(new Peer(coordinates.getId(), coordinates.getLatitude(),
+                            coordinates.getLongitude(), coordinates.getLastSeen()));
+                }
+            }, "PeerRegistryLoader").start();
+        }
+        return instance;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public PeerIndex getIndex() {
+        return index;
+    }
+
+    public void addListener(PeerListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(PeerListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Safe to call from any thread
+    public void update(Peer peer) {
+        index.update(peer.id, peer.latitude, peer.longitude);
+        synchronized (this) {
+            pending.put(peer.id, peer);
+            schedulePublish();
+        }
+    }
+
+    private void updateIfAbsent(Peer peer) {
+        synchronized (this) {
+            if (pending.containsKey(peer.id) || snapshot.get(peer.id) != null) {
+                return;
+            }
+            index.update(peer.id, peer.latitude, peer.longitude);
+            pending.put(peer.id, peer);
+            schedulePublish();
+        }
+    }
+
+    private void schedulePublish() {
+        if (!publishScheduled) {
+            publishScheduled = true;
+            callbackExecutor.execute(this::publish);
+        }
+    }
+
+    private void publish() {
+        List<Peer> changed;
+        Snapshot published;
+        synchronized (this) {
+            publishScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            changed = new ArrayList<>(pending.values());
+            pending.clear();
+
+            Snapshot previous = snapshot;
+            List<Peer> peers = new ArrayList<>(previous.peers);
+            Map<String, Peer> byId = new HashMap<>(previous.byId);
+            Map<String, Integer> positions = null;
+            for (Peer peer : changed) {
+                if (byId.put(peer.id, peer) == null) {
+                    peers.add(peer);
+                    continue;
+                }
+                if (positions == null) {
+                    positions = new HashMap<>();
+                    for (int i = 0; i < peers.size(); i++) {
+                        positions.put(peers.get(i).id, i);
+                    }
+                }
+                peers.set(positions.get(peer.id), peer);
+            }
+            published = new Snapshot(Collections.unmodifiableList(peers), Collections.unmodifiableMap(byId),
+                    previous.version + 1);
+            snapshot = published;
+        }
+        List<Peer> changedPeers = Collections.unmodifiableList(changed);
+        for (PeerListener listener : listeners) {
+            listener.onPeersChanged(published, changedPeers);
+        }
+    }
+}
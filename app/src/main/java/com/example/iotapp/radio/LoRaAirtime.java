@@ -0,0 +1,43 @@
+package com.example.iotapp.radio;
+
+// LoRa time on air from the Semtech SX127x datasheet formula, for explicit header, CRC on,
+// 8 symbol preamble and coding rate 4/5 unless configured otherwise.
+public final class LoRaAirtime {
+    public static final int DEFAULT_SPREADING_FACTOR = 9;
+    public static final int DEFAULT_BANDWIDTH_HZ = 125000;
+
+    private final int spreadingFactor;
+    private final int bandwidthHz;
+    private final int codingRate; // 1..4 for 4/5..4/8
+    private final int preambleSymbols;
+
+    public LoRaAirtime(int spreadingFactor, int bandwidthHz) {
+        this(spreadingFactor, bandwidthHz, 1, 8);
+    }
+
+    public LoRaAirtime(int spreadingFactor, int bandwidthHz, int codingRate, int preambleSymbols) {
+        if (spreadingFactor < 6 || spreadingFactor > 12) {
+            throw new IllegalArgumentException("Spreading factor must be 6..12: " + spreadingFactor);
+        }
+        this.spreadingFactor = spreadingFactor;
+        this.bandwidthHz = bandwidthHz;
+        this.codingRate = codingRate;
+        this.preambleSymbols = preambleSymbols;
+    }
+
+    public int getSpreadingFactor() {
+        return spreadingFactor;
+    }
+
+    // Time on air in milliseconds for a payload of the given size
+    public double airtimeMillis(int payloadBytes) {
+        double symbolMillis = (1 << spreadingFactor) * 1000.0 / bandwidthHz;
+        // Low data rate optimisation is mandated once a symbol lasts longer than 16 ms
+        int lowDataRate = symbolMillis > 16 ? 1 : 0;
+        double preambleMillis = (preambleSymbols + 4.25) * symbolMillis;
+        double numerator = 8.0 * payloadBytes - 4 * spreadingFactor + 28 + 16;
+        double denominator = 4.0 * (spreadingFactor - 2 * lowDataRate);
+        int payloadSymbols = 8 + (int) Math.max(Math.ceil(numerator / denominator) * (codingRate + 4), 0);
+        return preambleMillis + payloadSymbols * symbolMillis;
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.iotapp.radio;
+
+import android.util.Log;
+
+import com.example.iotapp.BluetoothManager;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.transport.FrameWriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// Keeps our transmissions inside the LoRa node's duty cycle (1% in EU868, i.e. 36 s of
+// airtime per hour). Every message's airtime is estimated from its on-air size and the
+// spreading factor the node reports (SF9 until it does) and tracked over a sliding one hour
+// window.
+// - SOS always goes out at once, even over budget
+// - other messages go out in order while they fit and are deferred until enough airtime
+//   has left the window otherwise
+// - a position beacon still waiting is replaced by the node's newer beacon, so a backlog
+//   never sends stale positions
+public class TransmitScheduler {
+    private static final String TAG = "TransmitScheduler";
+    public static final double EU868_DUTY_CYCLE = 0.01;
+    static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    public interface Sender {
+        CompletableFuture<Void> send(Message message, FrameWriter.Priority priority);
+    }
+
+    // On-air payload size of a message in bytes
+    public interface PayloadSizer {
+        int payloadLength(Message message);
+    }
+
+    private static final class Transmission {
+        final long time;
+        final double airtimeMillis;
+
+        Transmission(long time, double airtimeMillis) {
+            this.time = time;
+            this.airtimeMillis = airtimeMillis;
+        }
+    }
+
+    private static final class Pending {
+        Message message;
+        double airtimeMillis;
+        // More than one when beacons were merged into this slot
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(1);
+    }
+
+    private static TransmitScheduler instance;
+
+    private final Sender sender;
+    private final PayloadSizer sizer;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService timer;
+    private final double budgetMillis;
+    private volatile LoRaAirtime airtime;
+
+    // Guarded by this
+    private final ArrayDeque<Transmission> history = new ArrayDeque<>();
+    private double usedMillis;
+    private final List<Pending> queue = new ArrayList<>();
+    private final Map<String, Pending> queuedBeacons = new HashMap<>();
+    private ScheduledFuture<?> wakeup;
+    private long wakeupAt;
+
+    TransmitScheduler(Sender sender, PayloadSizer sizer, LoRaAirtime airtime, double dutyCycle,
+                      LongSupplier clock, ScheduledExecutorService timer) {
+        this.sender = sender;
+        this.sizer = sizer;
+        this.airtime = airtime;
+        this.budgetMillis = WINDOW_MILLIS * dutyCycle;
+        this.clock = clock;
+        this.timer = timer;
+    }
+
+    public static synchronized TransmitScheduler getInstance() {
+        if (instance == null) {
+            BluetoothManager bluetoothManager = BluetoothManager.getInstance();
+            instance = new TransmitScheduler(bluetoothManager::sendMessage, bluetoothManager::getRadioPayloadLength,
+                    new LoRaAirtime(LoRaAirtime.DEFAULT_SPREADING_FACTOR, LoRaAirtime.DEFAULT_BANDWIDTH_HZ),
+                    EU868_DUTY_CYCLE, System::currentTimeMillis,
+                    Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "TransmitScheduler")));
+            bluetoothManager.setSpreadingFactorListener(instance::setSpreadingFactor);
+        }
+        return instance;
+    }
+
+    // Spreading factor the node is configured with, applies to messages submitted afterwards.
+    // Throws IllegalArgumentException outside 6..12.
+    public void setSpreadingFactor(int spreadingFactor) {
+        if (spreadingFactor != airtime.getSpreadingFactor()) {
+            Log.i(TAG, "Node uses SF" + spreadingFactor);
+            airtime = new LoRaAirtime(spreadingFactor, LoRaAirtime.DEFAULT_BANDWIDTH_HZ);
+        }
+    }
+
+    // The future completes once the message is handed to the node, which may be much later
+    // than now if the airtime budget is spent
+    public CompletableFuture<Void> submit(Message message) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        double messageAirtime = airtime.airtimeMillis(sizer.payloadLength(message));
+        if (message.isSos()) {
+            Transmission transmission;
+            synchronized (this) {
+                transmission = record(clock.getAsLong(), messageAirtime);
+            }
+            send(message, FrameWriter.Priority.URGENT, transmission, result);
+            return result;
+        }
+        synchronized (this) {
+            Pending merged = isBeacon(message) ? queuedBeacons.get(message.getId()) : null;
+            if (merged != null) {
+                // Only the newest position is worth sending
+                merged.message = message;
+                merged.airtimeMillis = messageAirtime;
+                merged.futures.add(result);
+                return result;
+            }
+            Pending pending = new Pending();
+            pending.message = message;
+            pending.airtimeMillis = messageAirtime;
+            pending.futures.add(result);
+            queue.add(pending);
+            if (isBeacon(message)) {
+                queuedBeacons.put(message.getId(), pending);
+            }
+        }
+        drain();
+        return result;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized double getAirtimeUsedMillis() {
+        expire(clock.getAsLong());
+        return usedMillis;
+    }
+
+    public double getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    // When the last queued message is expected to go out given the current window, now if
+    // nothing is waiting
+    public synchronized long getProjectedSendTimeMillis() {
+        long now = clock.getAsLong();
+        expire(now);
+        ArrayDeque<Transmission> window = new ArrayDeque<>(history);
+        double used = usedMillis;
+        long sendTime = now;
+        for (Pending pending : queue) {
+            while (used + pending.airtimeMillis > budgetMillis && !window.isEmpty()) {
+                Transmission oldest = window.pollFirst();
+                used -= oldest.airtimeMillis;
+                sendTime = Math.max(sendTime, oldest.time + WINDOW_MILLIS);
+            }
+            used += pending.airtimeMillis;
+            window.addLast(new Transmission(sendTime, pending.airtimeMillis));
+        }
+        return sendTime;
+    }
+
+    // Send whatever fits the budget now and schedule a wake-up for the rest
+    void drain() {
+        List<Pending> ready = new ArrayList<>();
+        List<Transmission> transmissions = new ArrayList<>();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            expire(now);
+            while (!queue.isEmpty()) {
+                Pending head = queue.get(0);
+                // A message larger than the whole budget still goes out once the window is empty
+                boolean fits = usedMillis + head.airtimeMillis <= budgetMillis || history.isEmpty();
+                if (!fits) {
+                    break;
+                }
+                queue.remove(0);
+                if (queuedBeacons.get(head.message.getId()) == head) {
+                    queuedBeacons.remove(head.message.getId());
+                }
+                ready.add(head);
+                transmissions.add(record(now, head.airtimeMillis));
+            }
+            if (!queue.isEmpty()) {
+                scheduleWakeup(now, millisUntilFits(queue.get(0).airtimeMillis, now));
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            Pending pending = ready.get(i);
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            sent.whenComplete((result, error) -> {
+                for (CompletableFuture<Void> future : pending.futures) {
+                    if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(null);
+                    }
+                }
+            });
+            send(pending.message, FrameWriter.Priority.NORMAL, transmissions.get(i), sent);
+        }
+    }
+
+    private void send(Message message, FrameWriter.Priority priority, Transmission transmission,
+                      CompletableFuture<Void> result) {
+        sender.send(message, priority).whenComplete((ignored, error) -> {
+            if (error != null) {
+                // Never reached the radio, give the airtime back
+                synchronized (this) {
+                    if (history.remove(transmission)) {
+                        usedMillis -= transmission.airtimeMillis;
+                    }
+                }
+                Log.w(TAG, "Send failed: " + error.getMessage());
+                result.completeExceptionally(error);
+            } else {
+                result.complete(null);
+            }
+        });
+    }
+
+    private Transmission record(long now, double airtimeMillis) {
+        expire(now);
+        Transmission transmission = new Transmission(now, airtimeMillis);
+        history.addLast(transmission);
+        usedMillis += airtimeMillis;
+        return transmission;
+    }
+
+    private void expire(long now) {
+        Iterator<Transmission> iterator = history.iterator();
+        while (iterator.hasNext()) {
+            Transmission transmission = iterator.next();
+            if (transmission.time + WINDOW_MILLIS > now) {
+                break;
+            }
+            usedMillis -= transmission.airtimeMillis;
+            iterator.remove();
+        }
+        if (history.isEmpty()) {
+            usedMillis = 0; // Drop accumulated rounding
+        }
+    }
+
+    private long millisUntilFits(double airtimeMillis, long now) {
+        double used = usedMillis;
+        for (Transmission transmission : history) {
+            used -= transmission.airtimeMillis;
+            if (used + airtimeMillis <= budgetMillis) {
+                return Math.max(0, transmission.time + WINDOW_MILLIS - now);
+            }
+        }
+        return history.isEmpty() ? 0 : history.peekLast().time + WINDOW_MILLIS - now;
+    }
+
+    private void scheduleWakeup(long now, long delayMillis) {
+        long at = now + delayMillis;
+        if (wakeup != null && !wakeup.isDone() && wakeupAt <= at) {
+            return;
+        }
+        if (wakeup != null) {
+            wakeup.cancel(false);
+        }
+        wakeupAt = at;
+        wakeup = timer.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isBeacon(Message message) {
+        return "1".equals(message.getType());
+    }
+}
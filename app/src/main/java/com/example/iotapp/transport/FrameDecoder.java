@@ -0,0 +1,190 @@
+package com.example.iotapp.transport;
+
+// Streaming frame reassembler for the receive loop. Bytes from successive reads are
+// appended to a fixed ring buffer and cut into complete frames, either on a delimiter byte
+// or on a 2-byte big-endian length prefix. A single read can yield zero, one or several
+// frames, and a frame split across reads is only emitted once it is complete.
+//
+// The decoder never allocates after construction: frames are handed to the listener as a
+// slice of the ring (or of a reusable scratch array when the frame wraps around), so the
+// listener must copy anything it wants to keep before returning. Not thread safe; it is
+// meant to be owned by the single reader thread.
+public class FrameDecoder {
+    public static final byte DEFAULT_DELIMITER = '\n';
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 512;
+    private static final int LENGTH_PREFIX_BYTES = 2;
+
+    public interface FrameListener {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private boolean lengthPrefixed;
+    private final byte delimiter;
+    private final int maxFrameLength;
+    private final byte[] ring;
+    private final byte[] scratch;
+    private int head; // index of the first buffered byte
+    private int size; // number of buffered bytes
+    private int scanned; // buffered bytes already searched for the delimiter
+    private boolean discarding; // skipping the rest of an oversized frame
+    private long droppedBytes;
+
+    private FrameDecoder(boolean lengthPrefixed, byte delimiter, int maxFrameLength) {
+        this.lengthPrefixed = lengthPrefixed;
+        this.delimiter = delimiter;
+        this.maxFrameLength = maxFrameLength;
+        this.ring = new byte[maxFrameLength + LENGTH_PREFIX_BYTES + 1];
+        this.scratch = new byte[maxFrameLength];
+    }
+
+    // Frames terminated by the given byte, a trailing '\r' is stripped
+    public static FrameDecoder delimited(byte delimiter, int maxFrameLength) {
+        return new FrameDecoder(false, delimiter, maxFrameLength);
+    }
+
+    public static FrameDecoder delimited() {
+        return delimited(DEFAULT_DELIMITER, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    // Frames preceded by an unsigned 16-bit big-endian length
+    public static FrameDecoder lengthPrefixed(int maxFrameLength) {
+        return new FrameDecoder(true, (byte) 0, maxFrameLength);
+    }
+
+    // Feed bytes from one read and emit every frame they complete
+    public void feed(byte[] data, int offset, int length, FrameListener listener) {
+        while (length > 0) {
+            int n = Math.min(length, ring.length - size);
+            append(data, offset, n);
+            offset += n;
+            length -= n;
+
+            drain(listener);
+        }
+    }
+
+    // Switch to length prefixed framing, e.g. after the peer agreed to a binary format. May be
+    // called from inside onFrame(); bytes after the current frame are then framed by length.
+    public void switchToLengthPrefixed() {
+        lengthPrefixed = true;
+        scanned = 0;
+        discarding = false;
+    }
+
+    public boolean isLengthPrefixed() {
+        return lengthPrefixed;
+    }
+
+    // Forget any partial frame, e.g. after a reconnect
+    public void reset() {
+        head = 0;
+        size = 0;
+        scanned = 0;
+        discarding = false;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public int getBufferedBytes() {
+        return size;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        int tail = (head + size) % ring.length;
+        int first = Math.min(length, ring.length - tail);
+        System.arraycopy(data, offset, ring, tail, first);
+        System.arraycopy(data, offset + first, ring, 0, length - first);
+        size += length;
+    }
+
+    private void drain(FrameListener listener) {
+        boolean mode;
+        do {
+            mode = lengthPrefixed;
+            if (mode) {
+                drainLengthPrefixed(listener);
+            } else {
+                drainDelimited(listener);
+            }
+        } while (mode != lengthPrefixed);
+    }
+
+    private void drainDelimited(FrameListener listener) {
+        while (scanned < size) {
+            int index = (head + scanned) % ring.length;
+            if (ring[index] != delimiter) {
+                scanned++;
+                continue;
+            }
+            int frameLength = scanned;
+            int consumed = scanned + 1;
+            if (discarding) {
+                // Tail of an oversized frame, resynchronise on this delimiter
+                droppedBytes += frameLength;
+                discarding = false;
+            } else {
+                if (frameLength > 0 && ring[(head + frameLength - 1) % ring.length] == '\r') {
+                    frameLength--;
+                }
+                if (frameLength > maxFrameLength) {
+                    // Only a '\r' short of fitting, so never dropped while buffering
+                    droppedBytes += frameLength;
+                } else if (frameLength > 0) {
+                    emit(frameLength, listener);
+                }
+            }
+            consume(consumed);
+            if (lengthPrefixed) {
+                return;
+            }
+        }
+        if (size > maxFrameLength + 1) {
+            // No delimiter within the maximum frame length, drop what we have
+            droppedBytes += size;
+            discarding = true;
+            consume(size);
+        }
+    }
+
+    private void drainLengthPrefixed(FrameListener listener) {
+        while (size >= LENGTH_PREFIX_BYTES) {
+            int frameLength = ((ring[head] & 0xFF) << 8) | (ring[(head + 1) % ring.length] & 0xFF);
+            if (frameLength > maxFrameLength) {
+                // Corrupt prefix, skip one byte and try to find the next frame boundary
+                droppedBytes++;
+                consume(1);
+                continue;
+            }
+            if (size < LENGTH_PREFIX_BYTES + frameLength) {
+                return;
+            }
+            consume(LENGTH_PREFIX_BYTES);
+            if (frameLength > 0) {
+                emit(frameLength, listener);
+            }
+            consume(frameLength);
+        }
+    }
+
+    private void emit(int frameLength, FrameListener listener) {
+        if (head + frameLength <= ring.length) {
+            listener.onFrame(ring, head, frameLength);
+        } else {
+            int first = ring.length - head;
+            System.arraycopy(ring, head, scratch, 0, first);
+            System.arraycopy(ring, 0, scratch, first, frameLength - first);
+            listener.onFrame(scratch, 0, frameLength);
+        }
+    }
+
+    private void consume(int count) {
+        head = (head + count) % ring.length;
+        size -= count;
+        scanned = Math.max(0, scanned - count);
+        if (size == 0) {
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.iotapp.transport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+// Single long-lived writer for one connection. Frames are queued in a bounded, two-level
+// priority queue and written by one thread, so bytes of different frames never interleave
+// on the output stream. When several frames are pending they are coalesced into a single
+// write/flush. Every submit returns a future that completes once the frame has been flushed,
+// or fails immediately when the queue is full (backpressure).
+public class FrameWriter {
+    private static final String TAG = "FrameWriter";
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final int MAX_BATCH_BYTES = 4096;
+
+    public enum Priority {
+        URGENT, // SOS and other frames that must not wait behind beacons
+        NORMAL
+    }
+
+    private static final class PendingFrame {
+        final byte[] bytes;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingFrame(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final OutputStream outputStream;
+    private final int capacity;
+    private final ArrayDeque<PendingFrame> urgentQueue = new ArrayDeque<>();
+    private final ArrayDeque<PendingFrame> normalQueue = new ArrayDeque<>();
+    private final List<PendingFrame> batch = new ArrayList<>();
+    private byte[] batchBuffer = new byte[MAX_BATCH_BYTES];
+    private final Thread writerThread;
+    private boolean closed;
+
+    public FrameWriter(OutputStream outputStream) {
+        this(outputStream, DEFAULT_CAPACITY);
+    }
+
+    public FrameWriter(OutputStream outputStream, int capacity) {
+        this.outputStream = outputStream;
+        this.capacity = capacity;
+        this.writerThread = new Thread(this::writeLoop, "FrameWriter");
+        this.writerThread.start();
+    }
+
+    // Queue a complete frame. When the queue is full an urgent frame evicts the oldest
+    // normal one, a normal frame is rejected.
+    public CompletableFuture<Void> submit(byte[] frame, Priority priority) {
+        PendingFrame pending = new PendingFrame(frame);
+        PendingFrame evicted = null;
+        synchronized (this) {
+            if (closed) {
+                pending.future.completeExceptionally(new IOException("Writer closed"));
+                return pending.future;
+            }
+            if (urgentQueue.size() + normalQueue.size() >= capacity) {
+                if (priority != Priority.URGENT || normalQueue.isEmpty()) {
+                    pending.future.completeExceptionally(new RejectedExecutionException("Send queue full"));
+                    return pending.future;
+                }
+                evicted = normalQueue.pollFirst();
+            }
+            if (priority == Priority.URGENT) {
+                urgentQueue.addLast(pending);
+            } else {
+                normalQueue.addLast(pending);
+            }
+            notifyAll();
+        }
+        if (evicted != null) {
+            evicted.future.completeExceptionally(new RejectedExecutionException("Evicted by urgent frame"));
+        }
+        return pending.future;
+    }
+
+    public synchronized int getQueueDepth() {
+        return urgentQueue.size() + normalQueue.size();
+    }
+
+    // Stop the writer thread and fail everything still queued
+    public void close() {
+        List<PendingFrame> abandoned = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            abandoned.addAll(urgentQueue);
+            abandoned.addAll(normalQueue);
+            urgentQueue.clear();
+            normalQueue.clear();
+            notifyAll();
+        }
+        for (PendingFrame frame : abandoned) {
+            frame.future.completeExceptionally(new IOException("Writer closed"));
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            int length;
+            synchronized (this) {
+                while (!closed && urgentQueue.isEmpty() && normalQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                length = takeBatch(urgentQueue, 0);
+                if (urgentQueue.isEmpty()) {
+                    length = takeBatch(normalQueue, length);
+                }
+            }
+
+            try {
+                outputStream.write(batchBuffer, 0, length);
+                outputStream.flush();
+                for (PendingFrame frame : batch) {
+                    frame.future.complete(null);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending message", e);
+                for (PendingFrame frame : batch) {
+                    frame.future.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // Move queued frames into the batch buffer while they fit. The first frame is always
+    // taken, growing the buffer if it is larger than a batch.
+    private int takeBatch(ArrayDeque<PendingFrame> queue, int length) {
+        while (!queue.isEmpty()) {
+            byte[] bytes = queue.peekFirst().bytes;
+            if (!batch.isEmpty() && length + bytes.length > MAX_BATCH_BYTES) {
+                break;
+            }
+            if (length + bytes.length > batchBuffer.length) {
+                batchBuffer = new byte[length + bytes.length];
+            }
+            System.arraycopy(bytes, 0, batchBuffer, length, bytes.length);
+            length += bytes.length;
+            batch.add(queue.pollFirst());
+        }
+        return length;
+    }
+}
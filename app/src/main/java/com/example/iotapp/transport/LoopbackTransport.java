@@ -0,0 +1,180 @@
+package com.example.iotapp.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+
+// In-process transport made of two byte pipes. The app side is what BluetoothManager sees,
+// the peer side plays the LoRa node: bytes written to getPeerOutputStream() show up on the
+// app's input stream and everything the app sends can be read from getPeerInputStream().
+public class LoopbackTransport implements Transport {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final String name;
+    private final Pipe toApp;
+    private final Pipe toPeer;
+
+    public LoopbackTransport() {
+        this("loopback", DEFAULT_CAPACITY);
+    }
+
+    public LoopbackTransport(String name, int capacity) {
+        this.name = name;
+        this.toApp = new Pipe(capacity);
+        this.toPeer = new Pipe(capacity);
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (toApp.isClosed() || toPeer.isClosed()) {
+            throw new IOException("Loopback transport already closed");
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return toApp.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toPeer.output;
+    }
+
+    @Override
+    public void close() {
+        toApp.close();
+        toPeer.close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    // Node side: write frames here to have the app receive them
+    public OutputStream getPeerOutputStream() {
+        return toApp.output;
+    }
+
+    // Node side: read what the app sent
+    public InputStream getPeerInputStream() {
+        return toPeer.input;
+    }
+
+    // Bounded single-producer/single-consumer byte pipe. Unlike java.io.PipedInputStream it
+    // does not care which threads read or write, so short-lived sender threads are fine.
+    private static final class Pipe {
+        private final byte[] buffer;
+        private int head; // next byte to read
+        private int size;
+        private boolean closed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return size;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (size == 0 && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (size == 0) {
+                return -1; // closed and drained
+            }
+            int n = Math.min(len, size);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            size -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    while (size == buffer.length && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        throw new IOException("Pipe closed");
+                    }
+                    int tail = (head + size) % buffer.length;
+                    int n = Math.min(len, buffer.length - size);
+                    int first = Math.min(n, buffer.length - tail);
+                    System.arraycopy(b, off, buffer, tail, first);
+                    System.arraycopy(b, off + first, buffer, 0, n - first);
+                    size += n;
+                    off += n;
+                    len -= n;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
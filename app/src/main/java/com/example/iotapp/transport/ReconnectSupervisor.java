@@ -0,0 +1,173 @@
+package com.example.iotapp.transport;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// Brings a lost link back. After linkLost() the attempt is retried with jittered exponential
+// backoff (0.5 s doubling up to 30 s, each delay drawn from the upper half of its step so a
+// crowd of nodes losing the same gateway don't retry in lockstep) until one succeeds or
+// cancel() is called. Attempts run one at a time on the supervisor's own thread, listeners are
+// called there too. Keeps time-to-reconnect metrics across all outages.
+public class ReconnectSupervisor {
+    private static final String TAG = "ReconnectSupervisor";
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // One blocking connection attempt, throws if the link could not be established
+    public interface Attempt {
+        void connect() throws Exception;
+    }
+
+    public interface Listener {
+        // An attempt is due in delayMillis
+        void onReconnecting(int attempt, long delayMillis);
+
+        void onReconnected(int attempts, long downtimeMillis);
+    }
+
+    public static final class Metrics {
+        public final int reconnects;
+        public final int failedAttempts;
+        public final long lastDowntimeMillis;
+        public final long maxDowntimeMillis;
+        public final long totalDowntimeMillis;
+
+        Metrics(int reconnects, int failedAttempts, long lastDowntimeMillis, long maxDowntimeMillis,
+                long totalDowntimeMillis) {
+            this.reconnects = reconnects;
+            this.failedAttempts = failedAttempts;
+            this.lastDowntimeMillis = lastDowntimeMillis;
+            this.maxDowntimeMillis = maxDowntimeMillis;
+            this.totalDowntimeMillis = totalDowntimeMillis;
+        }
+
+        public long averageDowntimeMillis() {
+            return reconnects == 0 ? 0 : totalDowntimeMillis / reconnects;
+        }
+    }
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+    private final Listener listener;
+
+    // Guarded by this
+    private Attempt attempt; // Non null while reconnecting
+    private int generation; // Bumped on every outage and cancel, stale attempts check it
+    private int attemptCount;
+    private long lostAt;
+    private ScheduledFuture<?> pending;
+    private int reconnects;
+    private int failedAttempts;
+    private long lastDowntimeMillis;
+    private long maxDowntimeMillis;
+    private long totalDowntimeMillis;
+
+    public ReconnectSupervisor(Listener listener) {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random(), System::currentTimeMillis,
+                Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, TAG)), listener);
+    }
+
+    public ReconnectSupervisor(long baseDelayMillis, long maxDelayMillis, Random random, LongSupplier clock,
+                               ScheduledExecutorService executor, Listener listener) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.random = random;
+        this.clock = clock;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    // Start reconnecting, unless we already are
+    public synchronized void linkLost(Attempt attempt) {
+        if (this.attempt != null) {
+            return;
+        }
+        this.attempt = attempt;
+        generation++;
+        attemptCount = 0;
+        lostAt = clock.getAsLong();
+        scheduleNext();
+    }
+
+    // Stop reconnecting. An attempt already connecting still completes, the caller decides
+    // what to do with a link it no longer wants.
+    public synchronized void cancel() {
+        attempt = null;
+        generation++;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    public synchronized boolean isReconnecting() {
+        return attempt != null;
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(reconnects, failedAttempts, lastDowntimeMillis, maxDowntimeMillis, totalDowntimeMillis);
+    }
+
+    private void scheduleNext() {
+        int number = ++attemptCount;
+        int scheduledGeneration = generation;
+        long delay = delayFor(number, baseDelayMillis, maxDelayMillis, random);
+        executor.execute(() -> listener.onReconnecting(number, delay));
+        pending = executor.schedule(() -> run(scheduledGeneration), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(int scheduledGeneration) {
+        Attempt current;
+        synchronized (this) {
+            if (scheduledGeneration != generation || attempt == null) {
+                return;
+            }
+            current = attempt;
+        }
+        try {
+            current.connect();
+        } catch (Exception e) {
+            Log.w(TAG, "Reconnect attempt failed: " + e.getMessage());
+            synchronized (this) {
+                failedAttempts++;
+                if (scheduledGeneration == generation && attempt != null) {
+                    scheduleNext();
+                }
+            }
+            return;
+        }
+        int attempts;
+        long downtime;
+        synchronized (this) {
+            if (scheduledGeneration != generation) {
+                return;
+            }
+            attempt = null;
+            pending = null;
+            attempts = attemptCount;
+            downtime = clock.getAsLong() - lostAt;
+            reconnects++;
+            lastDowntimeMillis = downtime;
+            maxDowntimeMillis = Math.max(maxDowntimeMillis, downtime);
+            totalDowntimeMillis += downtime;
+        }
+        listener.onReconnected(attempts, downtime);
+    }
+
+    // Delay before the given attempt (1 based): the step doubles from the base delay up to
+    // the maximum, and the delay is uniform over the upper half of the step
+    static long delayFor(int attempt, long baseDelayMillis, long maxDelayMillis, Random random) {
+        long step = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        long half = step / 2;
+        return half + (long) (random.nextDouble() * (step - half));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.iotapp.transport;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+// Transport backed by a Bluetooth RFCOMM socket. Callers must hold BLUETOOTH_CONNECT.
+@SuppressLint("MissingPermission")
+public class RfcommTransport implements Transport {
+    private final BluetoothDevice device;
+    private final UUID serviceUuid;
+    private BluetoothSocket bluetoothSocket;
+
+    public RfcommTransport(BluetoothDevice device, UUID serviceUuid) {
+        this.device = device;
+        this.serviceUuid = serviceUuid;
+    }
+
+    @Override
+    public void open() throws IOException {
+        bluetoothSocket = device.createRfcommSocketToServiceRecord(serviceUuid);
+        bluetoothSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return bluetoothSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return bluetoothSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (bluetoothSocket != null) {
+            bluetoothSocket.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+}
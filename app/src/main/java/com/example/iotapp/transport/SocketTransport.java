@@ -0,0 +1,51 @@
+package com.example.iotapp.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// Transport over a plain TCP socket. Used to drive the app from a node simulator on
+// localhost (or an emulator host) instead of a paired RFCOMM device.
+public class SocketTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+
+    public SocketTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
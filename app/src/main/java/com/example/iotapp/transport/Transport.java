@@ -0,0 +1,23 @@
+package com.example.iotapp.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Byte stream link to the LoRa node. BluetoothManager only talks to this interface, so the
+// same connect/listen/send code runs over RFCOMM in the field and over loopback or a local
+// socket in JVM tests and load runs.
+public interface Transport {
+    // Blocks until the link is established
+    void open() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    // Must unblock any thread currently reading from the input stream
+    void close() throws IOException;
+
+    // Human readable name reported to listeners on connection
+    String getName();
+}
@@ -0,0 +1,307 @@
+package com.example.iotapp.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.iotapp.location.LocationFix;
+import com.example.iotapp.location.LocationProvider;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.outbox.Outbox;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// Application scoped scheduler for recurring beacons. Any number of named jobs share one
+// thread, each runs a fixed number of times (or until cancelled) with an optionally jittered
+// interval so several nodes started together don't keep transmitting in lockstep. Jobs are
+// plain data and persisted on every change, so they survive activity recreation and process
+// death: whatever was pending is picked up again by the next getInstance.
+public class BeaconScheduler {
+    private static final String TAG = "BeaconScheduler";
+    public static final int FOREVER = -1;
+
+    // A recurring message. Position beacons send the freshest fix each time, other jobs send
+    // their payload as is.
+    public static final class Job {
+        public final String name;
+        public final String nodeId;
+        public final String type;
+        public final String payload;
+        public final long intervalMillis;
+        public final long jitterMillis;
+        final int remaining; // FOREVER or runs left
+        final long nextRunAt; // Epoch millis
+
+        // Runs the given number of times, at least once, or FOREVER
+        public Job(String name, String nodeId, String type, String payload, long intervalMillis,
+                   long jitterMillis, int repetitions) {
+            this(name, nodeId, type, payload, intervalMillis, jitterMillis, repetitions, 0);
+            if (!isValidCount(repetitions)) {
+                throw new IllegalArgumentException("Repetitions must be at least 1 or FOREVER: " + repetitions);
+            }
+        }
+
+        private Job(String name, String nodeId, String type, String payload, long intervalMillis,
+                    long jitterMillis, int remaining, long nextRunAt) {
+            this.name = name;
+            this.nodeId = nodeId;
+            this.type = type;
+            this.payload = payload;
+            this.intervalMillis = intervalMillis;
+            this.jitterMillis = Math.max(0, Math.min(jitterMillis, intervalMillis));
+            this.remaining = remaining;
+            this.nextRunAt = nextRunAt;
+        }
+
+        static boolean isValidCount(int remaining) {
+            return remaining >= 1 || remaining == FOREVER;
+        }
+
+        public boolean isPositionBeacon() {
+            return "1".equals(type);
+        }
+
+        public int getRemaining() {
+            return remaining;
+        }
+
+        public long getNextRunAt() {
+            return nextRunAt;
+        }
+
+        Job withNextRun(int remaining, long nextRunAt) {
+            return new Job(name, nodeId, type, payload, intervalMillis, jitterMillis, remaining, nextRunAt);
+        }
+
+        // One line, fields URL encoded and comma separated
+        String encode() {
+            return encodeField(name) + ',' + encodeField(nodeId) + ',' + encodeField(type) + ','
+                    + encodeField(payload) + ',' + intervalMillis + ',' + jitterMillis + ','
+                    + remaining + ',' + nextRunAt;
+        }
+
+        // Null if the line is not a job
+        static Job decode(String line) {
+            String[] fields = line.split(",", -1);
+            if (fields.length != 8) {
+                return null;
+            }
+            try {
+                return new Job(decodeField(fields[0]), decodeField(fields[1]), decodeField(fields[2]),
+                        decodeField(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]),
+                        Integer.parseInt(fields[6]), Long.parseLong(fields[7]));
+            } catch (IllegalArgumentException e) {
+                // Bad number or bad escape
+                return null;
+            }
+        }
+
+        private static String encodeField(String value) {
+            try {
+                return URLEncoder.encode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String decodeField(String value) {
+            try {
+                return URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Sends one occurrence of a job, called on the scheduler thread
+    public interface JobRunner {
+        void run(Job job);
+    }
+
+    public interface JobStore {
+        List<Job> load();
+
+        void save(List<Job> jobs);
+    }
+
+    // Called on the scheduler thread whenever jobs are added, run, finished or cancelled
+    public interface JobListener {
+        void onJobsChanged(List<Job> jobs);
+    }
+
+    private static BeaconScheduler instance;
+
+    private final JobRunner runner;
+    private final JobStore store;
+    private final LongSupplier clock;
+    private final Random random;
+    private final ScheduledExecutorService executor;
+    private final CopyOnWriteArrayList<JobListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Only touched on the scheduler thread
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final Map<String, ScheduledFuture<?>> timers = new LinkedHashMap<>();
+    private volatile List<Job> snapshot = Collections.emptyList();
+
+    BeaconScheduler(JobRunner runner, JobStore store, LongSupplier clock, Random random,
+                    ScheduledExecutorService executor) {
+        this.runner = runner;
+        this.store = store;
+        this.clock = clock;
+        this.random = random;
+        this.executor = executor;
+        executor.execute(this::restore);
+    }
+
+    public static synchronized BeaconScheduler getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            LocationProvider locationProvider = LocationProvider.getInstance(appContext);
+            instance = new BeaconScheduler(job -> {
+                String payload = job.payload;
+                if (job.isPositionBeacon()) {
+                    LocationFix fix = locationProvider.getLastFix();
+                    if (fix != null) {
+                        payload = Message.positionPayload(fix.latitude, fix.longitude);
+                    }
+                }
+                Message message = new Message(job.nodeId, System.currentTimeMillis(), job.type, payload);
+                Outbox.getInstance(appContext).send(message);
+            }, new PreferencesJobStore(appContext), System::currentTimeMillis, new Random(),
+                    Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "BeaconScheduler")));
+            // Keep GPS sampling at the pace of the fastest running position beacon
+            Handler mainHandler = new Handler(Looper.getMainLooper());
+            instance.addListener(jobs -> {
+                long fastest = 0;
+                for (Job job : jobs) {
+                    if (job.isPositionBeacon() && (fastest == 0 || job.intervalMillis < fastest)) {
+                        fastest = job.intervalMillis;
+                    }
+                }
+                long beaconInterval = fastest;
+                mainHandler.post(() -> locationProvider.setBeaconInterval(beaconInterval));
+            });
+        }
+        return instance;
+    }
+
+    // The listener also gets the current jobs right away, on the scheduler thread
+    public void addListener(JobListener listener) {
+        if (listeners.addIfAbsent(listener)) {
+            executor.execute(() -> listener.onJobsChanged(snapshot));
+        }
+    }
+
+    public void removeListener(JobListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Start a job, replacing any job with the same name. The first run is immediate.
+    public void schedule(Job job) {
+        executor.execute(() -> {
+            cancelTimer(job.name);
+            jobs.put(job.name, job.withNextRun(job.remaining, clock.getAsLong()));
+            runJob(job.name);
+        });
+    }
+
+    public void cancel(String name) {
+        executor.execute(() -> {
+            cancelTimer(name);
+            if (jobs.remove(name) != null) {
+                changed();
+            }
+        });
+    }
+
+    // Jobs currently scheduled, as of the last change
+    public List<Job> getJobs() {
+        return snapshot;
+    }
+
+    public boolean isScheduled(String name) {
+        for (Job job : snapshot) {
+            if (job.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void restore() {
+        for (Job job : store.load()) {
+            if (Job.isValidCount(job.remaining)) {
+                jobs.put(job.name, job);
+                arm(job);
+            }
+        }
+        snapshot = Collections.unmodifiableList(new ArrayList<>(jobs.values()));
+    }
+
+    private void arm(Job job) {
+        long delay = Math.max(0, job.nextRunAt - clock.getAsLong());
+        timers.put(job.name, executor.schedule(() -> runJob(job.name), delay, TimeUnit.MILLISECONDS));
+    }
+
+    private void runJob(String name) {
+        Job job = jobs.get(name);
+        if (job == null) {
+            return;
+        }
+        try {
+            runner.run(job);
+        } catch (RuntimeException e) {
+            // One bad run must not kill the thread every other job shares
+            Log.e(TAG, "Job " + name + " failed", e);
+        }
+        int remaining = job.remaining == FOREVER ? FOREVER : job.remaining - 1;
+        if (remaining == 0) {
+            jobs.remove(name);
+            timers.remove(name);
+        } else {
+            Job next = job.withNextRun(remaining, clock.getAsLong() + nextDelay(job));
+            jobs.put(name, next);
+            arm(next);
+        }
+        changed();
+    }
+
+    private long nextDelay(Job job) {
+        if (job.jitterMillis == 0) {
+            return job.intervalMillis;
+        }
+        long offset = (long) ((random.nextDouble() * 2 - 1) * job.jitterMillis);
+        return Math.max(0, job.intervalMillis + offset);
+    }
+
+    private void cancelTimer(String name) {
+        ScheduledFuture<?> timer = timers.remove(name);
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    private void changed() {
+        List<Job> current = Collections.unmodifiableList(new ArrayList<>(jobs.values()));
+        snapshot = current;
+        store.save(current);
+        for (JobListener listener : listeners) {
+            listener.onJobsChanged(current);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.iotapp.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Fans events out to any number of subscribers of type L. Each subscriber names the executor
+// its events run on (the main thread, a background pool, ...) and gets them one at a time in
+// publish order. Publishing only queues the event for every subscriber, so a slow one holds
+// up neither the publisher, e.g. the Bluetooth reader thread, nor the other subscribers. No
+// Handler or Runnable is created per event: each subscriber drains its own queue from one
+// task, submitted only when the queue goes from empty to non-empty.
+public class EventBus<L> {
+    private static final String TAG = "EventBus";
+
+    public interface Subscription {
+        // Stops delivery. An event already running finishes, queued ones are dropped; called
+        // on the subscriber's own thread nothing arrives after it returns.
+        void unsubscribe();
+    }
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public Subscription subscribe(L listener, Executor executor) {
+        Subscriber subscriber = new Subscriber(listener, executor);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    // Queue an event for every current subscriber, callable from any thread
+    public void publish(Consumer<? super L> event) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private final class Subscriber implements Subscription, Runnable {
+        private final L listener;
+        private final Executor executor;
+        private final ConcurrentLinkedQueue<Consumer<? super L>> mailbox = new ConcurrentLinkedQueue<>();
+        // Set while a drain task is submitted or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean active = true;
+
+        Subscriber(L listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void offer(Consumer<? super L> event) {
+            mailbox.add(event);
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    Log.w(TAG, "Subscriber executor rejected delivery", e);
+                }
+            }
+        }
+
+        // Drain task, runs on the subscriber's executor
+        @Override
+        public void run() {
+            do {
+                Consumer<? super L> event;
+                while (active && (event = mailbox.poll()) != null) {
+                    try {
+                        event.accept(listener);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Subscriber failed", e);
+                    }
+                }
+                scheduled.set(false);
+                // Something may have been queued after the last poll but before the flag
+                // dropped, its publisher saw the flag still set and left it to us
+            } while (active && !mailbox.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        @Override
+        public void unsubscribe() {
+            active = false;
+            subscribers.remove(this);
+            mailbox.clear();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.iotapp.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Beacon jobs kept in SharedPreferences, one encoded job per line
+class PreferencesJobStore implements BeaconScheduler.JobStore {
+    private static final String PREFS_NAME = "beacon_prefs";
+    private static final String KEY_JOBS = "jobs";
+
+    private final SharedPreferences prefs;
+
+    PreferencesJobStore(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public List<BeaconScheduler.Job> load() {
+        List<BeaconScheduler.Job> jobs = new ArrayList<>();
+        String stored = prefs.getString(KEY_JOBS, "");
+        if (stored == null || stored.isEmpty()) {
+            return jobs;
+        }
+        for (String line : stored.split("\n")) {
+            BeaconScheduler.Job job = BeaconScheduler.Job.decode(line);
+            if (job != null) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    @Override
+    public void save(List<BeaconScheduler.Job> jobs) {
+        StringBuilder encoded = new StringBuilder();
+        for (BeaconScheduler.Job job : jobs) {
+            if (encoded.length() > 0) {
+                encoded.append('\n');
+            }
+            encoded.append(job.encode());
+        }
+        prefs.edit().putString(KEY_JOBS, encoded.toString()).apply();
+    }
+}
@@ -0,0 +1,308 @@
+package com.example.iotapp;
+
+import com.example.iotapp.models.Message;
+import com.example.iotapp.transport.LoopbackTransport;
+import com.example.iotapp.transport.Transport;
+import com.example.iotapp.utils.EventBus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Races disconnects, remote closes and sends against the BluetoothManager state machine and
+ * counts the callbacks that come out.
+ */
+public class BluetoothManagerStateTest {
+
+    private static final int ROUNDS = 200;
+
+    private static class CountingListener implements BluetoothManager.BluetoothConnectionListener {
+        final Semaphore connected = new Semaphore(0);
+        final Semaphore disconnected = new Semaphore(0);
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final BlockingQueue<String> order = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onConnectionSuccess(String deviceName) {
+            successes.incrementAndGet();
+            order.add("connected");
+            connected.release();
+        }
+
+        @Override
+        public void onConnectionFailed(String errorMessage) {
+            failed.incrementAndGet();
+            order.add("failed");
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnects.incrementAndGet();
+            order.add("disconnected");
+            disconnected.release();
+        }
+    }
+
+    // Opens only once released, to disconnect in the middle of connecting
+    private static class GatedTransport implements Transport {
+        final LoopbackTransport link = new LoopbackTransport();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch opening = new CountDownLatch(1);
+
+        @Override
+        public void open() throws IOException {
+            opening.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            link.open();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return link.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return link.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            link.close();
+        }
+
+        @Override
+        public String getName() {
+            return "gated";
+        }
+    }
+
+    private static void awaitState(BluetoothManager manager, BluetoothManager.ConnectionState state)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (manager.getConnectionState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(state, manager.getConnectionState());
+    }
+
+    @Test
+    public void disconnectRacingRemoteClose_reportsEachDisconnectOnce() throws Exception {
+        CountingListener listener = new CountingListener();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(listener);
+        List<CompletableFuture<Void>> sends = new CopyOnWriteArrayList<>();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            LoopbackTransport transport = new LoopbackTransport();
+            manager.connect(transport);
+            assertTrue(listener.connected.tryAcquire(2, TimeUnit.SECONDS));
+            assertEquals(BluetoothManager.ConnectionState.CONNECTED, manager.getConnectionState());
+
+            CountDownLatch go = new CountDownLatch(1);
+            Thread user = new Thread(() -> {
+                awaitQuietly(go);
+                manager.disconnect();
+            });
+            Thread node = new Thread(() -> {
+                awaitQuietly(go);
+                transport.close(); // The reader sees end of stream
+            });
+            Thread sender = new Thread(() -> {
+                awaitQuietly(go);
+                for (int i = 0; i < 20; i++) {
+                    sends.add(manager.sendMessage(new Message("1", i, "2", "0")));
+                }
+            });
+            user.start();
+            node.start();
+            sender.start();
+            go.countDown();
+            user.join();
+            node.join();
+            sender.join();
+
+            assertTrue(listener.disconnected.tryAcquire(2, TimeUnit.SECONDS));
+            awaitState(manager, BluetoothManager.ConnectionState.IDLE);
+            assertFalse(manager.isConnected());
+        }
+        // Every send went out or failed, none is left hanging
+        for (CompletableFuture<Void> send : sends) {
+            try {
+                send.get(2, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+
+        // Nothing late or doubled
+        Thread.sleep(100);
+        assertEquals(ROUNDS, listener.successes.get());
+        assertEquals(ROUNDS, listener.disconnects.get());
+        assertEquals(0, listener.failed.get());
+        String previous = "disconnected";
+        for (String event : listener.order) {
+            assertNotEquals(previous, event);
+            previous = event;
+        }
+    }
+
+    @Test
+    public void remoteClose_endsTheReaderCleanly() throws Exception {
+        CountingListener listener = new CountingListener();
+        BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(listener);
+        manager.setInboundFrameHandler((frame, offset, length) ->
+                messages.add(new String(frame, offset, length)));
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(listener.connected.tryAcquire(2, TimeUnit.SECONDS));
+        // The last frame arrives right before the node hangs up
+        transport.getPeerOutputStream().write("12345-1700000000000-2-0\n".getBytes());
+        transport.getPeerOutputStream().close();
+
+        assertEquals("12345-1700000000000-2-0", messages.poll(2, TimeUnit.SECONDS));
+        assertTrue(listener.disconnected.tryAcquire(2, TimeUnit.SECONDS));
+        assertEquals(BluetoothManager.ConnectionState.IDLE, manager.getConnectionState());
+        assertTrue(manager.sendMessage(new Message("1", 1, "2", "0")).isCompletedExceptionally());
+
+        // A disconnect afterwards has nothing left to report
+        manager.disconnect();
+        Thread.sleep(50);
+        assertEquals(1, listener.disconnects.get());
+    }
+
+    @Test
+    public void disconnectWhileConnecting_dropsTheLinkOnceOpen() throws Exception {
+        CountingListener listener = new CountingListener();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(listener);
+
+        GatedTransport transport = new GatedTransport();
+        manager.connect(transport);
+        assertTrue(transport.opening.await(2, TimeUnit.SECONDS));
+        assertEquals(BluetoothManager.ConnectionState.CONNECTING, manager.getConnectionState());
+        manager.disconnect();
+        assertTrue(listener.disconnected.tryAcquire(2, TimeUnit.SECONDS));
+        transport.gate.countDown();
+
+        // The late open is closed again without a success or failure
+        assertEquals(-1, transport.link.getPeerInputStream().read());
+        Thread.sleep(50);
+        assertEquals(0, listener.successes.get());
+        assertEquals(0, listener.failed.get());
+        assertEquals(1, listener.disconnects.get());
+        assertEquals(BluetoothManager.ConnectionState.IDLE, manager.getConnectionState());
+    }
+
+    @Test
+    public void repeatedDrops_reconnectWithOneSuccessEach() throws Exception {
+        CountingListener listener = new CountingListener();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run, 1, 2);
+        manager.subscribe(listener);
+        BlockingQueue<LoopbackTransport> opened = new LinkedBlockingQueue<>();
+        manager.connect(() -> {
+            LoopbackTransport transport = new LoopbackTransport("node", 4096);
+            opened.add(transport);
+            return transport;
+        });
+
+        int drops = 50;
+        for (int drop = 0; drop < drops; drop++) {
+            assertTrue(listener.connected.tryAcquire(2, TimeUnit.SECONDS));
+            opened.poll(2, TimeUnit.SECONDS).close();
+        }
+        assertTrue(listener.connected.tryAcquire(2, TimeUnit.SECONDS));
+        manager.disconnect();
+        assertTrue(listener.disconnected.tryAcquire(2, TimeUnit.SECONDS));
+
+        Thread.sleep(100);
+        assertEquals(drops + 1, listener.successes.get());
+        assertEquals(1, listener.disconnects.get());
+        assertEquals(0, listener.failed.get());
+        assertEquals(BluetoothManager.ConnectionState.IDLE, manager.getConnectionState());
+    }
+
+    @Test
+    public void subscribers_allHearEventsAndASlowOneDoesNotStallTheReader() throws Exception {
+        CountingListener screen = new CountingListener();
+        CountingListener closedScreen = new CountingListener();
+        CountingListener service = new CountingListener();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(screen);
+        EventBus.Subscription closed = manager.subscribe(closedScreen);
+        manager.subscribe(new BluetoothManager.BluetoothConnectionListener() {
+            @Override
+            public void onConnectionSuccess(String deviceName) {
+                awaitQuietly(release); // Stuck, e.g. on disk
+                service.onConnectionSuccess(deviceName);
+            }
+
+            @Override
+            public void onConnectionFailed(String errorMessage) {
+                service.onConnectionFailed(errorMessage);
+            }
+
+            @Override
+            public void onDisconnected() {
+                service.onDisconnected();
+            }
+        }, background);
+        manager.setInboundFrameHandler((frame, offset, length) ->
+                messages.add(new String(frame, offset, length)));
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(screen.connected.tryAcquire(2, TimeUnit.SECONDS));
+        assertTrue(closedScreen.connected.tryAcquire(2, TimeUnit.SECONDS));
+        // Frames keep flowing while the service is still busy with the connect
+        transport.getPeerOutputStream().write("12345-1700000000000-2-0\n".getBytes());
+        assertEquals("12345-1700000000000-2-0", messages.poll(2, TimeUnit.SECONDS));
+        assertEquals(0, service.successes.get());
+
+        closed.unsubscribe();
+        transport.close();
+        assertTrue(screen.disconnected.tryAcquire(2, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(service.disconnected.tryAcquire(2, TimeUnit.SECONDS));
+        assertEquals(1, service.successes.get());
+        assertEquals(0, closedScreen.disconnects.get());
+        background.shutdown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
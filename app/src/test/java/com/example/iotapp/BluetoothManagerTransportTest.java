@@ -0,0 +1,396 @@
+package com.example.iotapp;
+
+import com.example.iotapp.codec.BinaryMessageCodec;
+import com.example.iotapp.codec.MessageFrame;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.transport.LoopbackTransport;
+import com.example.iotapp.transport.ReconnectSupervisor;
+import com.example.iotapp.transport.SocketTransport;
+import com.example.iotapp.transport.Transport;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the real BluetoothManager connect/listen/send path over in-process transports.
+ */
+public class BluetoothManagerTransportTest {
+
+    private static class RecordingListener implements BluetoothManager.BluetoothConnectionListener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onConnectionSuccess(String deviceName) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onConnectionFailed(String errorMessage) {}
+
+        @Override
+        public void onDisconnected() {}
+    }
+
+    private static BluetoothManager newManager(RecordingListener listener) {
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(listener);
+        manager.setInboundFrameHandler((frame, offset, length) ->
+                listener.messages.add(new String(frame, offset, length, StandardCharsets.UTF_8)));
+        return manager;
+    }
+
+    private static String readAvailable(InputStream in) throws Exception {
+        byte[] buffer = new byte[256];
+        int n = in.read(buffer);
+        return new String(buffer, 0, n, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void loopback_receivesAndSends() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BluetoothManager manager = newManager(listener);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+
+        transport.getPeerOutputStream().write("12345-1700000000000-2-14\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("12345-1700000000000-2-14", listener.messages.poll(2, TimeUnit.SECONDS));
+
+        assertEquals("@FMT?B1\n", readAvailable(transport.getPeerInputStream()));
+        manager.sendMessage(new Message("54321", 1700000000000L, "2", "0"));
+        assertEquals("54321-1700000000000-2-0\n", readAvailable(transport.getPeerInputStream()));
+
+        manager.disconnect();
+    }
+
+    @Test
+    public void localSocket_receivesFrames() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            RecordingListener listener = new RecordingListener();
+            BluetoothManager manager = newManager(listener);
+
+            manager.connect(new SocketTransport("127.0.0.1", server.getLocalPort()));
+            try (Socket node = server.accept()) {
+                assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+                OutputStream out = node.getOutputStream();
+                out.write("12345-1700000000000-1-45.1234-9.5678\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertEquals("12345-1700000000000-1-45.1234-9.5678", listener.messages.poll(2, TimeUnit.SECONDS));
+
+                InputStream in = node.getInputStream();
+                assertEquals("@FMT?B1\n", readAvailable(in));
+                manager.sendMessage(new Message("54321", 1700000000000L, "2", "0"));
+                assertEquals("54321-1700000000000-2-0\n", readAvailable(in));
+            }
+            manager.disconnect();
+        }
+    }
+
+    @Test
+    public void loopback_negotiatesBinaryFormat() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(listener);
+        manager.setInboundFrameHandler((frame, offset, length) ->
+                frames.add(Arrays.copyOfRange(frame, offset, offset + length)));
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+        assertEquals("@FMT?B1\n", readAvailable(transport.getPeerInputStream()));
+
+        // Accept, then immediately send a length prefixed binary frame in the same write
+        MessageFrame position = new MessageFrame();
+        position.nodeId = 12345;
+        position.timestamp = 1735689600000L;
+        position.type = MessageFrame.TYPE_POSITION;
+        position.setCoordinates(-33.86882, 151.20929);
+        byte[] encoded = new byte[BinaryMessageCodec.MAX_FRAME_LENGTH];
+        int length = BinaryMessageCodec.encode(position, encoded, 0);
+        byte[] accept = "@FMT:B1\n".getBytes(StandardCharsets.UTF_8);
+        byte[] burst = new byte[accept.length + 2 + length];
+        System.arraycopy(accept, 0, burst, 0, accept.length);
+        burst[accept.length] = (byte) (length >>> 8);
+        burst[accept.length + 1] = (byte) length;
+        System.arraycopy(encoded, 0, burst, accept.length + 2, length);
+        transport.getPeerOutputStream().write(burst);
+
+        byte[] received = frames.poll(2, TimeUnit.SECONDS);
+        assertArrayEquals(Arrays.copyOf(encoded, length), received);
+        assertEquals(BluetoothManager.WireFormat.BINARY, manager.getWireFormat());
+
+        manager.sendMessage(new Message("54321", 1735689600000L, "2", "14")).get(2, TimeUnit.SECONDS);
+        byte[] sent = new byte[64];
+        int n = transport.getPeerInputStream().read(sent);
+        assertEquals(n - 2, ((sent[0] & 0xFF) << 8) | (sent[1] & 0xFF));
+        MessageFrame decoded = new MessageFrame();
+        assertTrue(BinaryMessageCodec.decode(sent, 2, n - 2, decoded));
+        assertTrue(decoded.isSos());
+        assertEquals(54321, decoded.nodeId);
+
+        manager.disconnect();
+    }
+
+    @Test
+    public void loopback_reportsConnectAndAcks() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BluetoothManager manager = newManager(listener);
+        CountDownLatch linkUp = new CountDownLatch(1);
+        BlockingQueue<String> acks = new LinkedBlockingQueue<>();
+        manager.setDeliveryListener(new BluetoothManager.DeliveryListener() {
+            @Override
+            public void onConnected() {
+                linkUp.countDown();
+            }
+
+            @Override
+            public void onAcknowledged(String id, long timestamp, String type, boolean wholeSeconds) {
+                acks.add(id + "/" + timestamp + "/" + type + (wholeSeconds ? "/s" : ""));
+            }
+        });
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(linkUp.await(2, TimeUnit.SECONDS));
+
+        // Acks are control frames, they never reach the ingest pipeline
+        transport.getPeerOutputStream().write("@ACK:54321,1700000000000,2\n@ACK:bad\n12345-1700000000000-2-14\n"
+                .getBytes(StandardCharsets.UTF_8));
+        assertEquals("12345-1700000000000-2-14", listener.messages.poll(2, TimeUnit.SECONDS));
+        assertEquals("54321/1700000000000/2", acks.poll(2, TimeUnit.SECONDS));
+        assertTrue(acks.isEmpty());
+        assertTrue(listener.messages.isEmpty());
+
+        manager.disconnect();
+    }
+
+    @Test
+    public void binaryLoopback_acksStayControlFrames() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        BlockingQueue<String> acks = new LinkedBlockingQueue<>();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run);
+        manager.subscribe(listener);
+        manager.setInboundFrameHandler((frame, offset, length) ->
+                frames.add(Arrays.copyOfRange(frame, offset, offset + length)));
+        manager.setDeliveryListener(new BluetoothManager.DeliveryListener() {
+            @Override
+            public void onConnected() {
+            }
+
+            @Override
+            public void onAcknowledged(String id, long timestamp, String type, boolean wholeSeconds) {
+                acks.add(id + "/" + timestamp + "/" + type + (wholeSeconds ? "/s" : ""));
+            }
+        });
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+        assertEquals("@FMT?B1\n", readAvailable(transport.getPeerInputStream()));
+        OutputStream node = transport.getPeerOutputStream();
+        node.write("@FMT:B1\n".getBytes(StandardCharsets.UTF_8));
+
+        // After the switch the node sends its ack length prefixed, then a message
+        MessageFrame status = new MessageFrame();
+        status.nodeId = 12345;
+        status.timestamp = 1735689600000L;
+        status.type = MessageFrame.TYPE_STATUS;
+        byte[] encoded = new byte[BinaryMessageCodec.MAX_FRAME_LENGTH];
+        int length = BinaryMessageCodec.encode(status, encoded, 0);
+        node.write(lengthPrefixed("@ACK:54321,1735689600000,2".getBytes(StandardCharsets.UTF_8),
+                "@ACK:54321,1735689600000,2".length()));
+        node.write(lengthPrefixed(encoded, length));
+
+        assertArrayEquals(Arrays.copyOf(encoded, length), frames.poll(2, TimeUnit.SECONDS));
+        assertEquals("54321/1735689600000/2/s", acks.poll(2, TimeUnit.SECONDS));
+        assertTrue(frames.isEmpty());
+        assertEquals(BluetoothManager.WireFormat.BINARY, manager.getWireFormat());
+
+        manager.disconnect();
+    }
+
+    @Test
+    public void loopback_reportsTheSpreadingFactor() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BluetoothManager manager = newManager(listener);
+        BlockingQueue<Integer> factors = new LinkedBlockingQueue<>();
+        manager.setSpreadingFactorListener(factors::add);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        manager.connect(transport);
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+        transport.getPeerOutputStream().write("@CFG:SF12\n@CFG:SFx\n12345-1700000000000-2-14\n"
+                .getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("12345-1700000000000-2-14", listener.messages.poll(2, TimeUnit.SECONDS));
+        assertEquals(12, (int) factors.poll(2, TimeUnit.SECONDS));
+        assertTrue(factors.isEmpty());
+        assertTrue(listener.messages.isEmpty());
+
+        manager.disconnect();
+    }
+
+    private static byte[] lengthPrefixed(byte[] body, int length) {
+        byte[] frame = new byte[length + 2];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        System.arraycopy(body, 0, frame, 2, length);
+        return frame;
+    }
+
+    // Hands out loopback transports, refusing to open the ones listed as failing
+    private static class FlakyTransportFactory implements BluetoothManager.TransportFactory {
+        final BlockingQueue<LoopbackTransport> opened = new LinkedBlockingQueue<>();
+        final AtomicInteger created = new AtomicInteger();
+        final Set<Integer> failing;
+
+        FlakyTransportFactory(Integer... failing) {
+            this.failing = new HashSet<>(Arrays.asList(failing));
+        }
+
+        @Override
+        public Transport create() {
+            int number = created.incrementAndGet();
+            LoopbackTransport transport = new LoopbackTransport("flaky-" + number, 4096);
+            if (failing.contains(number)) {
+                transport.close(); // open() fails
+            } else {
+                opened.add(transport);
+            }
+            return transport;
+        }
+    }
+
+    @Test
+    public void flakyLink_reconnectsWithoutDisconnectingTheUi() throws Exception {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run, 5, 20);
+        manager.subscribe(new BluetoothManager.BluetoothConnectionListener() {
+            @Override
+            public void onConnectionSuccess(String deviceName) {
+                events.add("connected " + deviceName);
+            }
+
+            @Override
+            public void onConnectionFailed(String errorMessage) {
+                events.add("failed");
+            }
+
+            @Override
+            public void onDisconnected() {
+                disconnected.countDown();
+            }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                events.add("reconnecting " + attempt);
+            }
+        });
+        manager.setInboundFrameHandler((frame, offset, length) ->
+                messages.add(new String(frame, offset, length, StandardCharsets.UTF_8)));
+
+        // The 2nd and 3rd transports can't open, the 5th comes up after a second drop
+        FlakyTransportFactory factory = new FlakyTransportFactory(2, 3);
+        manager.connect(factory);
+        assertEquals("connected flaky-1", events.poll(2, TimeUnit.SECONDS));
+        LoopbackTransport link = factory.opened.poll(2, TimeUnit.SECONDS);
+
+        for (int drop = 1; drop <= 2; drop++) {
+            link.getPeerOutputStream().write(("12345-170000000000" + drop + "-2-0\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals("12345-170000000000" + drop + "-2-0", messages.poll(2, TimeUnit.SECONDS));
+            link.close(); // The node drops the link
+
+            String event;
+            while ((event = events.poll(2, TimeUnit.SECONDS)).startsWith("reconnecting")) {
+                assertFalse(manager.isConnected());
+            }
+            assertEquals("connected flaky-" + (drop == 1 ? 4 : 5), event);
+            link = factory.opened.poll(2, TimeUnit.SECONDS);
+            assertTrue(manager.isConnected());
+            // The new link carries traffic both ways
+            assertEquals("@FMT?B1\n", readAvailable(link.getPeerInputStream()));
+            manager.sendMessage(new Message("54321", 1700000000000L, "2", "0")).get(2, TimeUnit.SECONDS);
+            assertEquals("54321-1700000000000-2-0\n", readAvailable(link.getPeerInputStream()));
+        }
+
+        // Recorded right after the connection callback
+        long deadline = System.currentTimeMillis() + 2000;
+        while (manager.isReconnecting() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        ReconnectSupervisor.Metrics metrics = manager.getReconnectMetrics();
+        assertEquals(2, metrics.reconnects);
+        assertEquals(2, metrics.failedAttempts);
+        assertTrue(metrics.maxDowntimeMillis >= metrics.lastDowntimeMillis);
+        assertEquals(1, disconnected.getCount());
+
+        // A user disconnect is final
+        manager.disconnect();
+        assertTrue(disconnected.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(5, factory.created.get());
+        assertFalse(manager.isConnected());
+    }
+
+    @Test
+    public void restore_retriesTheFirstConnectionInsteadOfFailing() throws Exception {
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        BluetoothManager manager = new BluetoothManager(null, Runnable::run, 5, 20);
+        manager.subscribe(new BluetoothManager.BluetoothConnectionListener() {
+            @Override
+            public void onConnectionSuccess(String deviceName) {
+                events.add("connected " + deviceName);
+            }
+
+            @Override
+            public void onConnectionFailed(String errorMessage) {
+                events.add("failed");
+            }
+
+            @Override
+            public void onDisconnected() {
+                events.add("disconnected");
+            }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                events.add("reconnecting " + attempt);
+            }
+        });
+
+        // The node is not back yet when the process restarts
+        FlakyTransportFactory factory = new FlakyTransportFactory(1, 2);
+        manager.restore(factory);
+        assertEquals("reconnecting 1", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("reconnecting 2", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("reconnecting 3", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("connected flaky-3", events.poll(2, TimeUnit.SECONDS));
+        assertTrue(manager.isConnected());
+
+        manager.disconnect();
+        assertEquals("disconnected", events.poll(2, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertTrue(events.isEmpty());
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.iotapp;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.iotapp.transport.LoopbackTransport;
+import com.example.iotapp.utils.BeaconScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs LinkService under Robolectric with a BluetoothManager over loopback transports.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LinkServiceTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static class FakeComponents implements LinkService.Components {
+        // Callbacks go through the main looper like in the app, reconnects never come due
+        final BluetoothManager manager = new BluetoothManager(null,
+                new Handler(Looper.getMainLooper())::post, 60_000, 60_000);
+        final List<String> connects = new ArrayList<>();
+        final List<String> restores = new ArrayList<>();
+        // What a restore connects over, nothing if null
+        BluetoothManager.TransportFactory restoreFactory;
+        final List<BeaconScheduler.JobListener> beaconListeners = new CopyOnWriteArrayList<>();
+        int started;
+        int stopped;
+
+        // Called on a thread of its own, like the scheduler does
+        void setBeacons(BeaconScheduler.Job... jobs) throws InterruptedException {
+            Thread scheduler = new Thread(() -> {
+                for (BeaconScheduler.JobListener listener : beaconListeners) {
+                    listener.onJobsChanged(Arrays.asList(jobs));
+                }
+            }, "BeaconScheduler");
+            scheduler.start();
+            scheduler.join();
+        }
+
+        @Override
+        public BluetoothManager bluetoothManager() {
+            return manager;
+        }
+
+        @Override
+        public void startBackgroundWork(Context context) {
+            started++;
+        }
+
+        @Override
+        public void stopBackgroundWork(Context context) {
+            stopped++;
+        }
+
+        @Override
+        public void connect(Context context, BluetoothManager bluetoothManager, String deviceAddress) {
+            connects.add(deviceAddress);
+        }
+
+        @Override
+        public void restore(Context context, BluetoothManager bluetoothManager, String deviceAddress) {
+            restores.add(deviceAddress);
+            if (restoreFactory != null) {
+                bluetoothManager.restore(restoreFactory);
+            }
+        }
+
+        @Override
+        public void watchBeacons(Context context, BeaconScheduler.JobListener listener) {
+            beaconListeners.add(listener);
+            listener.onJobsChanged(Collections.emptyList());
+        }
+
+        @Override
+        public void unwatchBeacons(Context context, BeaconScheduler.JobListener listener) {
+            beaconListeners.remove(listener);
+        }
+    }
+
+    private static final int CONNECTED_DEVICE = ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE;
+    private static final int LOCATION = ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION;
+
+    private FakeComponents components;
+    private LinkService.Components defaults;
+    private Context context;
+
+    @Before
+    public void setUp() {
+        components = new FakeComponents();
+        defaults = LinkService.components;
+        LinkService.components = components;
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @After
+    public void tearDown() {
+        LinkService.components = defaults;
+        components.manager.disconnect();
+    }
+
+    private ServiceController<LinkService> start(String address) {
+        Intent intent = new Intent(context, LinkService.class);
+        if (address != null) {
+            intent.putExtra(LinkService.EXTRA_DEVICE_ADDRESS, address);
+        }
+        return Robolectric.buildService(LinkService.class, intent).create().startCommand(0, 1);
+    }
+
+    private SharedPreferences prefs() {
+        return context.getSharedPreferences(LinkService.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private String notificationText() {
+        NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
+        Notification notification = shadowOf(notificationManager).getNotification(LinkService.NOTIFICATION_ID);
+        if (notification == null) {
+            return null;
+        }
+        CharSequence text = notification.extras.getCharSequence(Notification.EXTRA_TEXT);
+        return text == null ? null : text.toString();
+    }
+
+    private static BeaconScheduler.Job beacon(String name, String type) {
+        return new BeaconScheduler.Job(name, "12345", type, "0", 60_000, 0, BeaconScheduler.FOREVER);
+    }
+
+    // Link events arrive on connection threads and are posted to the main looper
+    private static void idleUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (true) {
+            shadowOf(Looper.getMainLooper()).idle();
+            if (condition.getAsBoolean()) {
+                return;
+            }
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void pickingADevice_goesForegroundAndStartsTheBackgroundWork() {
+        LinkService service = start(ADDRESS).get();
+
+        Notification notification = shadowOf(service).getLastForegroundNotification();
+        assertNotNull(notification);
+        assertEquals(context.getString(R.string.connecting),
+                notification.extras.getCharSequence(Notification.EXTRA_TEXT).toString());
+        assertEquals(1, components.started);
+        assertEquals(1, components.connects.size());
+        assertEquals(ADDRESS, components.connects.get(0));
+        assertEquals(ADDRESS, prefs().getString(LinkService.KEY_DEVICE_ADDRESS, null));
+        assertFalse(shadowOf(service).isStoppedBySelf());
+    }
+
+    @Test
+    public void linkEvents_showInTheNotification() throws Exception {
+        LinkService service = start(ADDRESS).get();
+        List<LoopbackTransport> opened = new CopyOnWriteArrayList<>();
+        components.manager.connect(() -> {
+            LoopbackTransport transport = new LoopbackTransport("node-7", 4096);
+            opened.add(transport);
+            return transport;
+        });
+        String connected = context.getString(R.string.connected_to, "node-7");
+        idleUntil(() -> connected.equals(notificationText()));
+
+        // The node drops the link, the service stays up while it comes back
+        opened.get(0).close();
+        String reconnecting = context.getString(R.string.reconnecting, 1);
+        idleUntil(() -> reconnecting.equals(notificationText()));
+        assertFalse(shadowOf(service).isStoppedBySelf());
+        assertFalse(shadowOf(service).isForegroundStopped());
+    }
+
+    @Test
+    public void userDisconnect_stopsTheService() throws Exception {
+        LinkService service = start(ADDRESS).get();
+        components.manager.connect(new LoopbackTransport("node-7", 4096));
+        idleUntil(() -> components.manager.isConnected());
+
+        components.manager.disconnect();
+        idleUntil(() -> shadowOf(service).isStoppedBySelf());
+        assertTrue(shadowOf(service).isForegroundStopped());
+        // Not brought back after a restart either
+        assertNull(prefs().getString(LinkService.KEY_DEVICE_ADDRESS, null));
+    }
+
+    @Test
+    public void restartAfterProcessDeath_restoresTheLink() {
+        prefs().edit().putString(LinkService.KEY_DEVICE_ADDRESS, ADDRESS).commit();
+        LinkService service = start(null).get();
+
+        assertEquals(1, components.started);
+        assertTrue(components.connects.isEmpty());
+        assertEquals(1, components.restores.size());
+        assertEquals(ADDRESS, components.restores.get(0));
+        assertFalse(shadowOf(service).isStoppedBySelf());
+    }
+
+    @Test
+    public void failedRestore_keepsRetryingAndKeepsTheDevice() throws Exception {
+        prefs().edit().putString(LinkService.KEY_DEVICE_ADDRESS, ADDRESS).commit();
+        // The node is still out of range, no transport opens
+        components.restoreFactory = () -> {
+            LoopbackTransport transport = new LoopbackTransport("node-7", 4096);
+            transport.close();
+            return transport;
+        };
+        LinkService service = start(null).get();
+
+        String reconnecting = context.getString(R.string.reconnecting, 1);
+        idleUntil(() -> reconnecting.equals(notificationText()));
+        assertFalse(shadowOf(service).isStoppedBySelf());
+        assertEquals(ADDRESS, prefs().getString(LinkService.KEY_DEVICE_ADDRESS, null));
+        assertTrue(components.manager.isReconnecting());
+    }
+
+    @Test
+    public void failedConnect_stopsButKeepsTheDevice() throws Exception {
+        LinkService service = start(ADDRESS).get();
+        LoopbackTransport unreachable = new LoopbackTransport("node-7", 4096);
+        unreachable.close();
+        components.manager.connect(unreachable);
+
+        idleUntil(() -> shadowOf(service).isStoppedBySelf());
+        assertEquals(ADDRESS, prefs().getString(LinkService.KEY_DEVICE_ADDRESS, null));
+    }
+
+    @Test
+    public void restartWithNothingToRestore_stopsRightAway() {
+        LinkService service = start(null).get();
+
+        assertTrue(components.restores.isEmpty());
+        assertTrue(shadowOf(service).isStoppedBySelf());
+    }
+
+    @Test
+    public void positionBeacons_runTheServiceAsALocationService() throws Exception {
+        shadowOf(RuntimeEnvironment.getApplication()).grantPermissions(Manifest.permission.ACCESS_FINE_LOCATION);
+        LinkService service = start(ADDRESS).get();
+        assertEquals(CONNECTED_DEVICE, service.getForegroundServiceType());
+
+        components.setBeacons(beacon("position", "1"), beacon("status", "2"));
+        idleUntil(() -> service.getForegroundServiceType() == (CONNECTED_DEVICE | LOCATION));
+        assertEquals(LinkService.NOTIFICATION_ID, shadowOf(service).getLastForegroundNotificationId());
+        assertFalse(shadowOf(service).isForegroundStopped());
+
+        // Back to a plain connected device service once they stop
+        components.setBeacons(beacon("status", "2"));
+        idleUntil(() -> service.getForegroundServiceType() == CONNECTED_DEVICE);
+    }
+
+    @Test
+    public void positionBeaconsWithoutLocationPermission_keepTheConnectedDeviceType() throws Exception {
+        shadowOf(RuntimeEnvironment.getApplication()).denyPermissions(
+                Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION);
+        LinkService service = start(ADDRESS).get();
+
+        components.setBeacons(beacon("position", "1"));
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(CONNECTED_DEVICE, service.getForegroundServiceType());
+        assertFalse(shadowOf(service).isForegroundStopped());
+    }
+
+    @Test
+    public void destroy_flushesAndStopsListening() throws Exception {
+        ServiceController<LinkService> controller = start(ADDRESS);
+        LinkService service = controller.get();
+        controller.destroy();
+        assertEquals(1, components.stopped);
+        assertTrue(components.beaconListeners.isEmpty());
+
+        // A late disconnect no longer reaches the destroyed service
+        components.manager.connect(new LoopbackTransport("node-7", 4096));
+        idleUntil(() -> components.manager.isConnected());
+        components.manager.disconnect();
+        idleUntil(() -> components.manager.getConnectionState() == BluetoothManager.ConnectionState.IDLE);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertFalse(shadowOf(service).isStoppedBySelf());
+    }
+}
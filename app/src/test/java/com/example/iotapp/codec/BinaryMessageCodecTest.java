@@ -0,0 +1,67 @@
+package com.example.iotapp.codec;
+
+import com.example.iotapp.models.Message;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BinaryMessageCodecTest {
+
+    private static Message roundTrip(Message message) {
+        MessageFrame frame = new MessageFrame();
+        assertTrue(frame.fromMessage(message));
+        byte[] buffer = new byte[BinaryMessageCodec.MAX_FRAME_LENGTH];
+        int length = BinaryMessageCodec.encode(frame, buffer, 0);
+
+        MessageFrame decoded = new MessageFrame();
+        assertTrue(BinaryMessageCodec.decode(buffer, 0, length, decoded));
+        return decoded.toMessage();
+    }
+
+    @Test
+    public void positionRoundTripsWithNegativeCoordinates() {
+        Message decoded = roundTrip(new Message("12345", 1735689600000L, "1", "-33.86882--70.00001"));
+        assertEquals("12345", decoded.getId());
+        assertEquals(1735689600000L, decoded.getTimestamp());
+        assertEquals("1", decoded.getType());
+        assertEquals("-33.86882--70.00001", decoded.getPayload());
+    }
+
+    @Test
+    public void statusAndFreeTextRoundTrip() {
+        assertEquals("14", roundTrip(new Message("99999", 1735689600000L, "2", "14")).getPayload());
+        assertEquals("hello", roundTrip(new Message("7", 1735689600000L, "3", "hello")).getPayload());
+    }
+
+    @Test
+    public void binaryFrameIsAtMostHalfTheTextSize() {
+        Message beacon = new Message("12345", 1735689612345L, "1", "45.46421-9.19000");
+        MessageFrame frame = new MessageFrame();
+        assertTrue(frame.fromMessage(beacon));
+        int binary = BinaryMessageCodec.encode(frame, new byte[BinaryMessageCodec.MAX_FRAME_LENGTH], 0) + 2;
+        int text = beacon.toBluetoothMessage().getBytes(StandardCharsets.UTF_8).length + 1;
+        assertEquals(16, binary - 2);
+        assertTrue("binary " + binary + " text " + text, text >= 2 * binary);
+    }
+
+    @Test
+    public void rejectsTruncatedAndTrailingBytes() {
+        MessageFrame frame = new MessageFrame();
+        assertTrue(frame.fromMessage(new Message("12345", 1735689600000L, "1", "45.0-9.0")));
+        byte[] buffer = new byte[BinaryMessageCodec.MAX_FRAME_LENGTH];
+        int length = BinaryMessageCodec.encode(frame, buffer, 0);
+
+        MessageFrame decoded = new MessageFrame();
+        assertFalse(BinaryMessageCodec.decode(buffer, 0, length - 1, decoded));
+        assertFalse(BinaryMessageCodec.decode(buffer, 0, length + 1, decoded));
+        assertFalse(BinaryMessageCodec.isBinaryFrame("12345-1".getBytes(StandardCharsets.UTF_8), 0, 7));
+    }
+
+    @Test
+    public void nonNumericIdFallsBackToText() {
+        assertFalse(new MessageFrame().fromMessage(new Message("abc", 1735689600000L, "2", "1")));
+    }
+}
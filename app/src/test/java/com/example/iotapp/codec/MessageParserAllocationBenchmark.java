@@ -0,0 +1,81 @@
+package com.example.iotapp.codec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Microbenchmark comparing heap allocation per inbound frame for the old split based parsing
+ * and the cursor based TextMessageParser. Its results depend on the JIT, so it only runs when
+ * asked for with -Pbenchmarks, and it needs HotSpot's per-thread allocation counter.
+ */
+public class MessageParserAllocationBenchmark {
+    private static final int WARMUP = 50_000;
+    private static final int FRAMES = 200_000;
+
+    private static final byte[][] INPUT = {
+            "12345-1735689600000-1-45.4642-9.1900".getBytes(StandardCharsets.UTF_8),
+            "54321-1735689601000-2-14".getBytes(StandardCharsets.UTF_8),
+            "11111-1735689602000-1-45.4700-9.2000".getBytes(StandardCharsets.UTF_8),
+    };
+
+    private static long sink;
+
+    // What the receive path used to do: String per frame, split, boxed Double.valueOf
+    private static void legacyParse(byte[] frame) {
+        String text = new String(frame, 0, frame.length);
+        String[] parts = text.split("-");
+        if (parts.length >= 4 && parts[2].equals("1")) {
+            String[] coords = (parts[3] + (parts.length == 5 ? "-" + parts[4] : "")).split("-");
+            Double latitude = Double.valueOf(coords[0]);
+            Double longitude = Double.valueOf(coords[1]);
+            sink += latitude.hashCode() + longitude.hashCode();
+        }
+        sink += parts.length;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Before
+    public void onlyWhenAskedFor() {
+        assumeTrue(System.getProperty("benchmarks") != null);
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    }
+
+    @Test
+    public void cursorParserDoesNotAllocatePerFrame() {
+        TextMessageParser parser = new TextMessageParser();
+        MessageFrame frame = new MessageFrame();
+
+        for (int i = 0; i < WARMUP; i++) {
+            legacyParse(INPUT[i % INPUT.length]);
+            byte[] input = INPUT[i % INPUT.length];
+            parser.parse(input, 0, input.length, frame);
+        }
+
+        long bytesBefore = allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            legacyParse(INPUT[i % INPUT.length]);
+        }
+        long legacyBytes = allocatedBytes() - bytesBefore;
+
+        bytesBefore = allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] input = INPUT[i % INPUT.length];
+            assertTrue(parser.parse(input, 0, input.length, frame));
+            sink += frame.latitudeE5;
+        }
+        long cursorBytes = allocatedBytes() - bytesBefore;
+
+        assertTrue("cursor parser allocated " + cursorBytes + " bytes", cursorBytes < FRAMES);
+        assertTrue("legacy parser allocated " + legacyBytes + " bytes", legacyBytes > 100L * FRAMES);
+    }
+}
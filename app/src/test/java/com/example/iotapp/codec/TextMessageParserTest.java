@@ -0,0 +1,62 @@
+package com.example.iotapp.codec;
+
+import com.example.iotapp.models.Message;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TextMessageParserTest {
+
+    private final TextMessageParser parser = new TextMessageParser();
+    private final MessageFrame frame = new MessageFrame();
+
+    private boolean parse(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return parser.parse(bytes, 0, bytes.length, frame);
+    }
+
+    @Test
+    public void parsesPositionWithNegativeCoordinates() {
+        assertTrue(parse("12345-1735689600000-1--33.868823--70.5"));
+        assertEquals(12345, frame.nodeId);
+        assertEquals(1735689600000L, frame.timestamp);
+        assertEquals(MessageFrame.TYPE_POSITION, frame.type);
+        assertEquals(-3386882, frame.latitudeE5);
+        assertEquals(-7050000, frame.longitudeE5);
+    }
+
+    @Test
+    public void roundsOnSixthDecimal() {
+        assertTrue(parse("1-2-1-45.123456-9.000004"));
+        assertEquals(4512346, frame.latitudeE5);
+        assertEquals(900000, frame.longitudeE5);
+    }
+
+    @Test
+    public void parsesStatusAndFreeText() {
+        assertTrue(parse("99999-1735689600000-2-14"));
+        assertTrue(frame.isSos());
+        assertTrue(parse("7-1735689600000-3-free-text"));
+        assertEquals("free-text", new String(frame.payload, 0, frame.payloadLength, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        assertFalse(parse("12345-1735689600000-1-45.1"));
+        assertFalse(parse("12345-1735689600000-2-"));
+        assertFalse(parse("12345-abc-2-1"));
+        assertFalse(parse("12345-1735689600000-2-1-extra"));
+        assertFalse(parse(""));
+    }
+
+    @Test
+    public void messageFromBluetoothMessageUsesParser() {
+        Message message = Message.fromBluetoothMessage("12345-1735689600000-1-45.1234-9.5678");
+        assertNotNull(message);
+        assertEquals("45.12340-9.56780", message.getPayload());
+        assertNull(Message.fromBluetoothMessage("garbage"));
+    }
+}
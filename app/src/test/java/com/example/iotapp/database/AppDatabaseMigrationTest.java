@@ -0,0 +1,161 @@
+package com.example.iotapp.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.NonNull;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+
+import com.example.iotapp.models.Coordinates;
+import com.example.iotapp.models.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upgrades a database file as version 3 of the app left it to the current version. Room
+ * validates the migrated tables and indices against the entities when it opens the file, so
+ * a migration that produces a different schema fails here.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class AppDatabaseMigrationTest {
+
+    private static final String NAME = "migration-test.db";
+
+    private Context context;
+    private AppDatabase database;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase(NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (database != null) {
+            database.close();
+        }
+        context.deleteDatabase(NAME);
+    }
+
+    // The tables Room generated for the version 3 entities
+    private void createVersion3(VersionThreeRows rows) {
+        SupportSQLiteOpenHelper helper = new FrameworkSQLiteOpenHelperFactory().create(
+                SupportSQLiteOpenHelper.Configuration.builder(context)
+                        .name(NAME)
+                        .callback(new SupportSQLiteOpenHelper.Callback(3) {
+                            @Override
+                            public void onCreate(@NonNull SupportSQLiteDatabase db) {
+                                db.execSQL("CREATE TABLE IF NOT EXISTS `messages` (`uid` INTEGER PRIMARY KEY "
+                                        + "AUTOINCREMENT NOT NULL, `payload` TEXT, `id` TEXT, `timestamp` TEXT, `type` TEXT)");
+                                db.execSQL("CREATE TABLE IF NOT EXISTS `coordinates` (`uid` INTEGER PRIMARY KEY "
+                                        + "AUTOINCREMENT NOT NULL, `id` TEXT, `latitude` REAL NOT NULL, `longitude` REAL NOT NULL)");
+                            }
+
+                            @Override
+                            public void onUpgrade(@NonNull SupportSQLiteDatabase db, int oldVersion, int newVersion) {
+                            }
+                        })
+                        .build());
+        SupportSQLiteDatabase db = helper.getWritableDatabase();
+        rows.insert(db);
+        helper.close();
+    }
+
+    private interface VersionThreeRows {
+        void insert(SupportSQLiteDatabase db);
+    }
+
+    private static void message(SupportSQLiteDatabase db, int uid, String id, String timestamp, String type,
+                                String payload) {
+        ContentValues values = new ContentValues();
+        values.put("uid", uid);
+        values.put("id", id);
+        values.put("timestamp", timestamp);
+        values.put("type", type);
+        values.put("payload", payload);
+        db.insert("messages", SQLiteDatabase.CONFLICT_FAIL, values);
+    }
+
+    private static void position(SupportSQLiteDatabase db, int uid, String id, double latitude, double longitude) {
+        ContentValues values = new ContentValues();
+        values.put("uid", uid);
+        values.put("id", id);
+        values.put("latitude", latitude);
+        values.put("longitude", longitude);
+        db.insert("coordinates", SQLiteDatabase.CONFLICT_FAIL, values);
+    }
+
+    private AppDatabase openCurrent() {
+        database = AppDatabase.builder(context, NAME).allowMainThreadQueries().build();
+        return database;
+    }
+
+    @Test
+    public void version3_migratesToTheCurrentSchema() {
+        createVersion3(db -> {
+            message(db, 1, "42", "1700000000000", "2", "0");
+            // A relayed copy stored twice before the unique index existed
+            message(db, 2, "42", "1700000000000", "2", "0");
+            message(db, 3, "42", "1700000001000", "1", "45.0000-9.0000");
+            message(db, 4, "43", "not a number", "2", "3");
+            position(db, 1, "42", 45.0, 9.0);
+            position(db, 2, "42", 45.5, 9.5);
+            position(db, 3, null, 1.0, 1.0);
+            position(db, 4, "43", 46.0, 10.0);
+        });
+
+        AppDatabase current = openCurrent();
+
+        // Duplicates removed keeping the earliest row, timestamps are numbers now
+        List<Message> messages = current.messageDao().getAllMessages();
+        assertEquals(3, messages.size());
+        assertEquals(4, messages.get(0).getUid());
+        assertEquals(0, messages.get(0).getTimestamp());
+        assertEquals(1, messages.get(1).getUid());
+        assertEquals(1700000000000L, messages.get(1).getTimestamp());
+        assertEquals(3, messages.get(2).getUid());
+        assertEquals(2, current.messageDao().getMessagesSince(1700000000000L).size());
+
+        // The unique index now rejects another copy
+        List<Long> rowIds = current.messageDao().insertAll(Collections.singletonList(
+                new Message("42", 1700000000000L, "2", "0")));
+        assertEquals(-1L, (long) rowIds.get(0));
+
+        // One position per node, the most recent one, rows without a node dropped
+        List<Coordinates> positions = current.coordinateDao().getAllCoordinates();
+        assertEquals(2, positions.size());
+        Coordinates node42 = current.coordinateDao().getCoordinatesById("42");
+        assertEquals(45.5, node42.getLatitude(), 0);
+        assertEquals(9.5, node42.getLongitude(), 0);
+
+        // The outbox starts empty and takes new messages
+        assertEquals(0, current.outboxDao().countQueued());
+        current.outboxDao().enqueue(new Message("42", 1700000002000L, "2", "14"), 0);
+        assertEquals(1, current.outboxDao().countQueued());
+    }
+
+    @Test
+    public void version3WithoutData_migrates() {
+        createVersion3(db -> { });
+
+        AppDatabase current = openCurrent();
+        assertTrue(current.messageDao().getAllMessages().isEmpty());
+        assertTrue(current.coordinateDao().getAllCoordinates().isEmpty());
+    }
+}
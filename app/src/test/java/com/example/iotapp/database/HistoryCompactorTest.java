@@ -0,0 +1,175 @@
+package com.example.iotapp.database;
+
+import com.example.iotapp.daos.HistoryDao;
+import com.example.iotapp.models.Message;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class HistoryCompactorTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long NOW = 1_699_999_200_000L; // On an hour boundary
+
+    // Same semantics as the SQL in HistoryDao, over a list
+    private static final class FakeHistoryDao implements HistoryDao {
+        final List<Message> rows = new ArrayList<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        private int nextUid = 1;
+
+        void add(String id, long timestamp, String type) {
+            Message message = new Message(id, timestamp, type, "");
+            message.setUid(nextUid++);
+            rows.add(message);
+        }
+
+        private static boolean deletable(Message message) {
+            return !"2".equals(message.getType());
+        }
+
+        @Override
+        public int downsamplePositions(long before, long gridMillis, int limit) {
+            Map<String, Integer> keep = new HashMap<>();
+            for (Message message : rows) {
+                if ("1".equals(message.getType()) && message.getTimestamp() < before) {
+                    keep.merge(message.getId() + "/" + message.getTimestamp() / gridMillis, message.getUid(), Math::max);
+                }
+            }
+            return delete(limit, message -> "1".equals(message.getType()) && message.getTimestamp() < before
+                    && !keep.containsValue(message.getUid()));
+        }
+
+        @Override
+        public int deleteOlderThan(long before, int limit) {
+            return delete(limit, message -> message.getTimestamp() < before && deletable(message));
+        }
+
+        @Override
+        public int countDeletable() {
+            int count = 0;
+            for (Message message : rows) {
+                if (deletable(message)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int deleteOldest(int limit) {
+            rows.sort(Comparator.comparingLong(Message::getTimestamp).thenComparingInt(Message::getUid));
+            return delete(limit, FakeHistoryDao::deletable);
+        }
+
+        private int delete(int limit, Predicate<Message> match) {
+            batchSizes.add(limit);
+            int deleted = 0;
+            for (Iterator<Message> iterator = rows.iterator(); iterator.hasNext() && deleted < limit; ) {
+                if (match.test(iterator.next())) {
+                    iterator.remove();
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        int count(String type) {
+            int count = 0;
+            for (Message message : rows) {
+                if (type.equals(message.getType())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private final FakeHistoryDao dao = new FakeHistoryDao();
+    private final List<Integer> reclaimed = new ArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final HistoryCompactor compactor = new HistoryCompactor(dao, reclaimed::add, () -> NOW, executor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void downsamplesOldPositionsPerNodeAndKeepsRecentOnes() {
+        compactor.setPolicy(new HistoryCompactor.Policy(0, 0, 24 * HOUR, HOUR));
+        long start = NOW - 48 * HOUR;
+        // Two nodes beaconing every minute for two days
+        for (long t = start; t < NOW; t += 60_000) {
+            dao.add("1", t, "1");
+            dao.add("2", t, "1");
+        }
+        HistoryCompactor.Result result = compactor.compact();
+
+        // Old half: one per node and hour, recent half untouched
+        assertEquals(2 * 24 + 2 * 24 * 60, dao.count("1"));
+        assertEquals(2 * 24 * 59, result.downsampled);
+        assertEquals(0, result.expired + result.trimmed);
+        assertEquals(1, reclaimed.size());
+
+        // Nothing new to do the second time, and no vacuum either
+        assertEquals(0, compactor.compact().total());
+        assertEquals(1, reclaimed.size());
+    }
+
+    @Test
+    public void statusAndSosSurviveAgeAndSizeLimits() {
+        compactor.setPolicy(new HistoryCompactor.Policy(7 * 24 * HOUR, 10, 0, 0));
+        dao.add("1", NOW - 30 * 24 * HOUR, "2"); // Old status
+        dao.add("1", NOW - 30 * 24 * HOUR, "1");
+        for (int i = 0; i < 20; i++) {
+            dao.add("1", NOW - i * HOUR, "1");
+        }
+        dao.add("1", NOW - 60 * 24 * HOUR, "2"); // Old SOS
+
+        HistoryCompactor.Result result = compactor.compact();
+        assertEquals(1, result.expired);
+        assertEquals(10, result.trimmed);
+        assertEquals(2, dao.count("2"));
+        assertEquals(10, dao.count("1"));
+        // The newest positions are the ones kept
+        for (Message message : dao.rows) {
+            if ("1".equals(message.getType())) {
+                assertTrue(message.getTimestamp() > NOW - 10 * HOUR);
+            }
+        }
+    }
+
+    @Test
+    public void deletesInBoundedBatches() {
+        compactor.setPolicy(new HistoryCompactor.Policy(HOUR, 0, 0, 0));
+        for (int i = 0; i < HistoryCompactor.BATCH_SIZE * 2 + 10; i++) {
+            dao.add(String.valueOf(i % 7), NOW - 2 * HOUR - i, "1");
+        }
+        assertEquals(HistoryCompactor.BATCH_SIZE * 2 + 10, compactor.compact().expired);
+        assertEquals(3, dao.batchSizes.size());
+        for (int size : dao.batchSizes) {
+            assertEquals(HistoryCompactor.BATCH_SIZE, size);
+        }
+        assertEquals(HistoryCompactor.VACUUM_PAGES, (int) reclaimed.get(0));
+    }
+
+    @Test
+    public void compactNowRunsInTheBackground() throws Exception {
+        compactor.setPolicy(new HistoryCompactor.Policy(HOUR, 0, 0, 0));
+        dao.add("1", NOW - 2 * HOUR, "1");
+        assertEquals(1, compactor.compactNow().get(5, TimeUnit.SECONDS).expired);
+    }
+}
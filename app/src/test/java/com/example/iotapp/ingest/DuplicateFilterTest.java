@@ -0,0 +1,76 @@
+package com.example.iotapp.ingest;
+
+import com.example.iotapp.models.Message;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DuplicateFilterTest {
+
+    private final long[] now = {1_000_000L};
+
+    @Test
+    public void dropsRepeatsOfTheSameKey() {
+        DuplicateFilter filter = new DuplicateFilter(16, 60_000, () -> now[0]);
+        assertFalse(filter.isDuplicate(new Message("42", 1000, "1", "45.0000-9.0000")));
+        // A relayed copy, even with a different payload rendering, is the same message
+        assertTrue(filter.isDuplicate(new Message("42", 1000, "1", "45.00-9.00")));
+        assertFalse(filter.isDuplicate(new Message("42", 1000, "2", "3")));
+        assertFalse(filter.isDuplicate(new Message("42", 1001, "1", "45.0000-9.0000")));
+        assertFalse(filter.isDuplicate(new Message("43", 1000, "1", "45.0000-9.0000")));
+        assertFalse(filter.isDuplicate(new Message(null, 1000, "1", "45.0000-9.0000")));
+        assertTrue(filter.isDuplicate(new Message(null, 1000, "1", "45.0000-9.0000")));
+    }
+
+    @Test
+    public void fieldBoundariesMatter() {
+        assertNotEquals(DuplicateFilter.key("ab", 1, "c"), DuplicateFilter.key("a", 1, "bc"));
+        assertNotEquals(DuplicateFilter.key("1", 2, "3"), DuplicateFilter.key("1", 3, "2"));
+    }
+
+    @Test
+    public void remembersKeysForAtLeastOneWindow() {
+        DuplicateFilter filter = new DuplicateFilter(16, 60_000, () -> now[0]);
+        assertTrue(filter.add(1));
+        now[0] += 59_000;
+        assertFalse(filter.add(1));
+        // Rotated once, the key is still in the previous generation
+        now[0] += 2_000;
+        assertTrue(filter.add(2));
+        assertFalse(filter.add(1));
+        // Rotated twice, forgotten
+        now[0] += 61_000;
+        assertTrue(filter.add(3));
+        assertTrue(filter.add(1));
+    }
+
+    @Test
+    public void memoryStaysBoundedUnderHeavyTraffic() {
+        DuplicateFilter filter = new DuplicateFilter(100, 60_000, () -> now[0]);
+        for (long key = 1; key <= 10_000; key++) {
+            assertTrue(filter.add(key * 7919));
+        }
+        // The last full generation and the current one are remembered
+        for (long key = 9_901; key <= 10_000; key++) {
+            assertFalse(filter.add(key * 7919));
+        }
+        assertTrue(filter.add(7919));
+    }
+
+    @Test
+    public void noFalsePositivesAcrossManyDistinctMessages() {
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY, 60_000, () -> now[0]);
+        Set<Long> keys = new HashSet<>();
+        for (int node = 0; node < 64; node++) {
+            for (int i = 0; i < 60; i++) {
+                Message message = new Message(String.valueOf(10000 + node), 1_700_000_000_000L + i * 1000L, "1", "");
+                assertFalse(filter.isDuplicate(message));
+                assertTrue(keys.add(DuplicateFilter.key(message.getId(), message.getTimestamp(), message.getType())));
+            }
+        }
+    }
+}
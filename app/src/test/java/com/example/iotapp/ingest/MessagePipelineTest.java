@@ -0,0 +1,87 @@
+package com.example.iotapp.ingest;
+
+import com.example.iotapp.models.Message;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MessagePipelineTest {
+
+    private static final int QUEUE_CAPACITY = 4;
+
+    private final List<Message> stored = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    // Status frames only, so nothing reaches the peer registry
+    private MessagePipeline newPipeline() {
+        return new MessagePipeline(flushListener -> new WriteBehindBuffer((messages, coordinates) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stored.addAll(messages);
+            List<Long> rowIds = new ArrayList<>();
+            for (int i = 0; i < messages.size(); i++) {
+                rowIds.add((long) stored.size() - messages.size() + i + 1);
+            }
+            return rowIds;
+        }, 1000, 60_000, 10, flushListener), null, QUEUE_CAPACITY);
+    }
+
+    private static void send(MessagePipeline pipeline, long timestamp) {
+        byte[] frame = ("12345-" + timestamp + "-2-0").getBytes();
+        pipeline.onFrame(frame, 0, frame.length);
+    }
+
+    @Test
+    public void fullQueue_blocksTheReaderAndKeepsFrameOrder() throws Exception {
+        MessagePipeline pipeline = newPipeline();
+        send(pipeline, 1_700_000_000_000L);
+        // The worker gets stuck on the write behind this flush
+        Future<?> stuck = pipeline.flush();
+
+        int frames = QUEUE_CAPACITY * 10;
+        Thread reader = new Thread(() -> {
+            for (int i = 1; i <= frames; i++) {
+                send(pipeline, 1_700_000_000_000L + i);
+            }
+        }, "reader");
+        reader.start();
+        reader.join(200);
+        assertTrue("Reader should wait for room in the queue", reader.isAlive());
+
+        release.countDown();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        stuck.get(5, TimeUnit.SECONDS);
+        pipeline.flush().get(5, TimeUnit.SECONDS);
+
+        // Every frame stored once, in arrival order
+        assertEquals(frames + 1, stored.size());
+        for (int i = 0; i < stored.size(); i++) {
+            assertEquals(1_700_000_000_000L + i, stored.get(i).getTimestamp());
+        }
+    }
+
+    @Test
+    public void repeatedFrames_areStoredOnce() throws Exception {
+        release.countDown();
+        MessagePipeline pipeline = newPipeline();
+        for (int i = 0; i < 3; i++) {
+            send(pipeline, 1_700_000_000_000L);
+        }
+        send(pipeline, 1_700_000_000_001L);
+        pipeline.flush().get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, stored.size());
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.iotapp.ingest;
+
+import com.example.iotapp.models.Coordinates;
+import com.example.iotapp.models.Message;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindBufferTest {
+
+    // Stores what it is given, failing as told
+    private static final class FakeWriter implements WriteBehindBuffer.BatchWriter {
+        final List<Message> messages = new CopyOnWriteArrayList<>();
+        final List<Coordinates> coordinates = new CopyOnWriteArrayList<>();
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final AtomicInteger batchFailures = new AtomicInteger();
+        volatile String badId;
+
+        @Override
+        public List<Long> write(List<Message> batch, List<Coordinates> positions) {
+            batchSizes.add(batch.size());
+            if (batch.size() > 1 && batchFailures.getAndDecrement() > 0) {
+                throw new IllegalStateException("database is locked");
+            }
+            for (Message message : batch) {
+                if (message.getId().equals(badId)) {
+                    throw new IllegalStateException("constraint failed");
+                }
+            }
+            List<Long> rowIds = new ArrayList<>();
+            for (Message message : batch) {
+                messages.add(message);
+                rowIds.add((long) messages.size());
+            }
+            coordinates.addAll(positions);
+            return rowIds;
+        }
+    }
+
+    private final FakeWriter writer = new FakeWriter();
+    private final BlockingQueue<List<Message>> flushed = new LinkedBlockingQueue<>();
+
+    private WriteBehindBuffer newBuffer(int maxItems, long windowMillis) {
+        return new WriteBehindBuffer(writer, maxItems, windowMillis, 20, flushed::add);
+    }
+
+    private static Message status(String id, long timestamp) {
+        return new Message(id, timestamp, "2", "0");
+    }
+
+    @Test
+    public void fullBuffer_flushesWithoutWaitingForTheWindow() throws Exception {
+        WriteBehindBuffer buffer = newBuffer(3, 60_000);
+        buffer.add(status("1", 1000), null);
+        buffer.add(status("2", 1000), null);
+        assertNull(flushed.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, buffer.getPendingCount());
+
+        buffer.add(status("3", 1000), null);
+        assertEquals(3, flushed.poll(2, TimeUnit.SECONDS).size());
+        assertEquals(0, buffer.getPendingCount());
+        assertEquals(1, writer.batchSizes.size());
+    }
+
+    @Test
+    public void window_flushesWhatArrivedInIt() throws Exception {
+        WriteBehindBuffer buffer = newBuffer(64, 50);
+        buffer.add(status("1", 1000), null);
+        buffer.add(status("2", 1000), null);
+
+        List<Message> batch = flushed.poll(2, TimeUnit.SECONDS);
+        assertEquals(2, batch.size());
+        assertEquals(1, batch.get(0).getUid());
+        assertEquals(2, batch.get(1).getUid());
+        assertEquals(1, writer.batchSizes.size());
+    }
+
+    @Test
+    public void flush_writesNowAndKeepsOnlyTheNewestPosition() throws Exception {
+        WriteBehindBuffer buffer = newBuffer(64, 60_000);
+        buffer.add(status("1", 1000), new Coordinates("1", 45.0, 9.0, 1000));
+        buffer.add(status("1", 2000), new Coordinates("1", 45.1, 9.1, 2000));
+        buffer.flush().get(2, TimeUnit.SECONDS);
+
+        assertEquals(2, writer.messages.size());
+        assertEquals(1, writer.coordinates.size());
+        assertEquals(2000, writer.coordinates.get(0).getLastSeen());
+        assertEquals(0, buffer.getPendingCount());
+        // Nothing left for the window to write
+        buffer.flush().get(2, TimeUnit.SECONDS);
+        assertEquals(1, writer.batchSizes.size());
+    }
+
+    @Test
+    public void failedBatch_isRetriedWithWhatArrivedSince() throws Exception {
+        writer.batchFailures.set(WriteBehindBuffer.MAX_RETRIES);
+        WriteBehindBuffer buffer = newBuffer(2, 60_000);
+        buffer.add(status("1", 1000), null);
+        buffer.add(status("2", 1000), null);
+        buffer.add(status("3", 1000), null);
+
+        List<Message> batch = flushed.poll(2, TimeUnit.SECONDS);
+        assertEquals(3, batch.size());
+        assertEquals("1", batch.get(0).getId());
+        assertEquals("3", batch.get(2).getId());
+        assertEquals(3, writer.messages.size());
+        assertEquals(WriteBehindBuffer.MAX_RETRIES + 1, writer.batchSizes.size());
+    }
+
+    @Test
+    public void batchThatKeepsFailing_isWrittenRowByRow() throws Exception {
+        writer.batchFailures.set(Integer.MAX_VALUE);
+        writer.badId = "2";
+        WriteBehindBuffer buffer = newBuffer(3, 60_000);
+        buffer.add(status("1", 1000), null);
+        buffer.add(status("2", 1000), null);
+        buffer.add(status("3", 1000), null);
+
+        // Only the row that fails on its own is lost
+        List<Message> batch = flushed.poll(2, TimeUnit.SECONDS);
+        assertEquals(2, batch.size());
+        assertEquals("1", batch.get(0).getId());
+        assertEquals("3", batch.get(1).getId());
+        assertEquals(0, buffer.getPendingCount());
+    }
+
+    @Test
+    public void flush_doesNotWaitForRetries() throws Exception {
+        writer.batchFailures.set(Integer.MAX_VALUE);
+        WriteBehindBuffer buffer = newBuffer(64, 60_000);
+        buffer.add(status("1", 1000), null);
+        buffer.add(status("2", 1000), null);
+        buffer.flush().get(2, TimeUnit.SECONDS);
+
+        assertEquals(2, writer.messages.size());
+        assertEquals(2, flushed.poll(2, TimeUnit.SECONDS).size());
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.iotapp.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Scripted LocationSource: records every request and plays back fixes on demand
+class FakeLocationSource implements LocationSource {
+    final List<Long> requestedIntervals = new ArrayList<>();
+    boolean started;
+    boolean permissionGranted = true;
+    long intervalMillis;
+    float minDistanceMeters;
+    LocationFix lastKnownFix;
+    private Callback callback;
+
+    @Override
+    public boolean start(long intervalMillis, float minDistanceMeters, Callback callback) {
+        if (!permissionGranted) {
+            return false;
+        }
+        this.started = true;
+        this.intervalMillis = intervalMillis;
+        this.minDistanceMeters = minDistanceMeters;
+        this.callback = callback;
+        requestedIntervals.add(intervalMillis);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        callback = null;
+    }
+
+    @Override
+    public LocationFix getLastKnownFix() {
+        return lastKnownFix;
+    }
+
+    // Deliver a fix as the GPS would, only while started
+    void emit(LocationFix fix) {
+        if (callback != null) {
+            callback.onFix(fix);
+        }
+    }
+
+    // A straight walk north at the given speed, one fix per second without a reported speed
+    void walk(double startLatitude, float metersPerSecond, int seconds, long startTime) {
+        for (int i = 0; i < seconds; i++) {
+            double latitude = startLatitude + i * metersPerSecond / 111195.0;
+            emit(new LocationFix(latitude, 9.0, Float.NaN, startTime + i * 1000L));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.iotapp.location;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationProviderTest {
+
+    private final FakeLocationSource source = new FakeLocationSource();
+    private final LocationProvider provider = new LocationProvider(source);
+
+    @Test
+    public void idleUntilSomethingNeedsFixes() {
+        assertFalse(source.started);
+        LocationProvider.FixListener listener = fix -> { };
+        provider.addListener(listener);
+        assertTrue(source.started);
+        assertEquals(LocationProvider.STATIONARY_INTERVAL, source.intervalMillis);
+        provider.removeListener(listener);
+        assertFalse(source.started);
+    }
+
+    @Test
+    public void samplingFollowsMovementSpeed() {
+        provider.addListener(fix -> { });
+        source.emit(new LocationFix(45.0, 9.0, 5f, 1000));
+        source.emit(new LocationFix(45.0001, 9.0, 5f, 2000));
+        assertEquals(LocationProvider.FAST_INTERVAL, source.intervalMillis);
+        assertEquals(0f, source.minDistanceMeters, 0);
+
+        // Derived speed from positions alone: walking pace
+        source.walk(45.001, 1.2f, 10, 3000);
+        assertEquals(LocationProvider.WALKING_INTERVAL, source.intervalMillis);
+
+        source.walk(45.002, 0f, 10, 20000);
+        assertEquals(LocationProvider.STATIONARY_INTERVAL, source.intervalMillis);
+        assertEquals(LocationProvider.STATIONARY_MIN_DISTANCE, source.minDistanceMeters, 0);
+    }
+
+    @Test
+    public void beaconAloneSamplesAtBeaconPace() {
+        provider.setBeaconInterval(60_000);
+        assertEquals(60_000, source.intervalMillis);
+        source.emit(new LocationFix(45.0, 9.0, 2f, 1000));
+        source.emit(new LocationFix(45.0, 9.0, 2f, 2000));
+        assertEquals(30_000, source.intervalMillis);
+
+        // A visible screen wins over the slower beacon
+        LocationProvider.FixListener listener = fix -> { };
+        provider.addListener(listener);
+        assertEquals(LocationProvider.WALKING_INTERVAL, source.intervalMillis);
+        provider.removeListener(listener);
+        assertEquals(30_000, source.intervalMillis);
+        provider.setBeaconInterval(0);
+        assertFalse(source.started);
+    }
+
+    @Test
+    public void fansFixesOutToEveryListener() {
+        source.lastKnownFix = new LocationFix(1, 2, Float.NaN, 0);
+        List<LocationFix> first = new ArrayList<>();
+        List<LocationFix> second = new ArrayList<>();
+        provider.addListener(first::add);
+        provider.addListener(second::add);
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+
+        source.emit(new LocationFix(3, 4, 0f, 1000));
+        assertEquals(2, first.size());
+        assertEquals(2, second.size());
+        assertEquals(3.0, provider.getLastFix().latitude, 0);
+        assertEquals(1, source.requestedIntervals.size());
+    }
+
+    @Test
+    public void retriesWhenTheSourceCouldNotStart() {
+        source.permissionGranted = false;
+        LocationProvider.FixListener listener = fix -> { };
+        provider.addListener(listener);
+        assertFalse(source.started);
+        provider.removeListener(listener);
+
+        source.permissionGranted = true;
+        provider.addListener(listener);
+        assertTrue(source.started);
+    }
+
+    @Test
+    public void policyTable() {
+        assertEquals(0, LocationProvider.intervalFor(10f, 0, false));
+        assertEquals(LocationProvider.MIN_BEACON_SAMPLING_INTERVAL, LocationProvider.intervalFor(10f, 2000, false));
+        assertEquals(120_000, LocationProvider.intervalFor(0f, 120_000, false));
+        assertEquals(LocationProvider.FAST_INTERVAL, LocationProvider.intervalFor(10f, 120_000, true));
+    }
+}
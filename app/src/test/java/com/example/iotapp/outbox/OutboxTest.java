@@ -0,0 +1,357 @@
+package com.example.iotapp.outbox;
+
+import com.example.iotapp.daos.OutboxDao;
+import com.example.iotapp.models.Message;
+import com.example.iotapp.models.OutboxEntry;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+    // Same semantics as the SQL in OutboxDao, over a list
+    private static final class FakeOutboxDao implements OutboxDao {
+        final List<Message> history = new ArrayList<>();
+        final List<OutboxEntry> rows = new ArrayList<>();
+        private long nextUid = 1;
+
+        @Override
+        public long insertMessage(Message message) {
+            history.add(message);
+            return history.size();
+        }
+
+        @Override
+        public long insert(OutboxEntry entry) {
+            entry.setUid(nextUid++);
+            rows.add(entry);
+            return entry.getUid();
+        }
+
+        @Override
+        public List<OutboxEntry> getQueued(int limit) {
+            List<OutboxEntry> queued = new ArrayList<>();
+            for (OutboxEntry entry : rows) {
+                if (entry.getState() == OutboxEntry.STATE_QUEUED) {
+                    queued.add(entry);
+                }
+            }
+            queued.sort(Comparator.comparing((OutboxEntry entry) -> !entry.toMessage().isSos())
+                    .thenComparingLong(OutboxEntry::getUid));
+            return queued.subList(0, Math.min(limit, queued.size()));
+        }
+
+        @Override
+        public List<Long> getQueuedUids() {
+            List<Long> uids = new ArrayList<>();
+            for (OutboxEntry entry : rows) {
+                if (entry.getState() == OutboxEntry.STATE_QUEUED) {
+                    uids.add(entry.getUid());
+                }
+            }
+            return uids;
+        }
+
+        @Override
+        public int countQueued() {
+            return getQueuedUids().size();
+        }
+
+        @Override
+        public void setState(long uid, int state) {
+            OutboxEntry entry = find(uid);
+            if (entry != null) {
+                entry.setState(state);
+            }
+        }
+
+        @Override
+        public void recordFailure(long uid) {
+            OutboxEntry entry = find(uid);
+            if (entry != null) {
+                entry.setAttempts(entry.getAttempts() + 1);
+            }
+        }
+
+        @Override
+        public int markAcked(String id, long timestamp, String type) {
+            int acked = 0;
+            for (OutboxEntry entry : rows) {
+                if (entry.getState() == OutboxEntry.STATE_WRITTEN && entry.getId().equals(id)
+                        && entry.getTimestamp() == timestamp && entry.getType().equals(type)) {
+                    entry.setState(OutboxEntry.STATE_ACKED);
+                    acked++;
+                }
+            }
+            return acked;
+        }
+
+        @Override
+        public int markAckedInSecond(String id, long second, String type) {
+            int acked = 0;
+            for (OutboxEntry entry : rows) {
+                if (entry.getState() == OutboxEntry.STATE_WRITTEN && entry.getId().equals(id)
+                        && entry.getTimestamp() / 1000 == second && entry.getType().equals(type)) {
+                    entry.setState(OutboxEntry.STATE_ACKED);
+                    acked++;
+                }
+            }
+            return acked;
+        }
+
+        @Override
+        public int deleteStaleBeacons(long before) {
+            Map<String, Long> newest = new HashMap<>();
+            for (OutboxEntry entry : rows) {
+                if (isQueuedBeacon(entry)) {
+                    newest.merge(entry.getId(), entry.getUid(), Math::max);
+                }
+            }
+            int deleted = 0;
+            for (Iterator<OutboxEntry> iterator = rows.iterator(); iterator.hasNext(); ) {
+                OutboxEntry entry = iterator.next();
+                if (isQueuedBeacon(entry) && (entry.getQueuedAt() < before || newest.get(entry.getId()) != entry.getUid())) {
+                    iterator.remove();
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        @Override
+        public int deleteDeliveredBefore(long before) {
+            int deleted = 0;
+            for (Iterator<OutboxEntry> iterator = rows.iterator(); iterator.hasNext(); ) {
+                OutboxEntry entry = iterator.next();
+                if (entry.getState() != OutboxEntry.STATE_QUEUED && entry.getQueuedAt() < before) {
+                    iterator.remove();
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        private static boolean isQueuedBeacon(OutboxEntry entry) {
+            return entry.getState() == OutboxEntry.STATE_QUEUED && "1".equals(entry.getType());
+        }
+
+        OutboxEntry find(long uid) {
+            for (OutboxEntry entry : rows) {
+                if (entry.getUid() == uid) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final FakeOutboxDao dao = new FakeOutboxDao();
+    private final List<Message> sent = new ArrayList<>();
+    private final List<CompletableFuture<Void>> sends = new ArrayList<>();
+    private final boolean[] connected = {false};
+    private final long[] now = {1_700_000_000_000L};
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Outbox outbox = new Outbox(dao, message -> {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        sent.add(message);
+        sends.add(future);
+        return future;
+    }, () -> connected[0], () -> now[0], executor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    // Everything the outbox thread was asked to do so far is done
+    private void flush() throws Exception {
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    private void completeSends() throws Exception {
+        flush();
+        for (CompletableFuture<Void> future : new ArrayList<>(sends)) {
+            future.complete(null);
+        }
+        flush();
+    }
+
+    private static Message status(String id, int index) {
+        return new Message(id, 1000 + index, "2", "0");
+    }
+
+    @Test
+    public void queuesWhileDisconnectedAndDrainsOnConnect() throws Exception {
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(outbox.send(status("42", i)));
+        }
+        flush();
+        assertTrue(sent.isEmpty());
+        assertEquals(3, dao.history.size());
+        assertEquals(3, outbox.getQueuedCount());
+        assertFalse(results.get(0).isDone());
+
+        connected[0] = true;
+        outbox.onConnected();
+        flush();
+        assertEquals(3, sent.size());
+        completeSends();
+
+        for (CompletableFuture<Void> result : results) {
+            assertTrue(result.isDone());
+        }
+        for (OutboxEntry entry : dao.rows) {
+            assertEquals(OutboxEntry.STATE_WRITTEN, entry.getState());
+        }
+        assertEquals(0, outbox.getQueuedCount());
+    }
+
+    @Test
+    public void drainsOneBatchAtATime() throws Exception {
+        int total = Outbox.BATCH_SIZE * 2 + 3;
+        for (int i = 0; i < total; i++) {
+            outbox.send(status("42", i));
+        }
+        flush();
+        connected[0] = true;
+        outbox.onConnected();
+        flush();
+        assertEquals(Outbox.BATCH_SIZE, sent.size());
+
+        completeSends();
+        assertEquals(Outbox.BATCH_SIZE * 2, sent.size());
+        completeSends();
+        assertEquals(total, sent.size());
+        // In order
+        for (int i = 0; i < total; i++) {
+            assertEquals(1000 + i, sent.get(i).getTimestamp());
+        }
+    }
+
+    @Test
+    public void staleBeaconsExpireButSosNeverDoes() throws Exception {
+        CompletableFuture<Void> old = outbox.send(new Message("7", 1, "1", "45.0000-9.0000"));
+        CompletableFuture<Void> superseded = outbox.send(new Message("8", 1, "1", "45.0000-9.0000"));
+        outbox.send(new Message("42", 1, "2", "14"));
+        flush();
+        now[0] += Outbox.BEACON_TTL_MS + 1;
+        outbox.send(new Message("8", 2, "1", "45.1000-9.0000"));
+        outbox.send(status("42", 3));
+        flush();
+
+        connected[0] = true;
+        outbox.onConnected();
+        flush();
+        assertEquals(3, sent.size());
+        assertTrue(sent.get(0).isSos());
+        assertEquals("45.1000-9.0000", sent.get(1).getPayload());
+        assertEquals(1003, sent.get(2).getTimestamp());
+        assertTrue(isCancelled(old));
+        assertTrue(isCancelled(superseded));
+        // Dropped from the outbox only, the history keeps them
+        assertEquals(5, dao.history.size());
+    }
+
+    @Test
+    public void sosOvertakesABatchStillGoingOut() throws Exception {
+        connected[0] = true;
+        outbox.send(status("42", 0));
+        outbox.send(status("42", 1));
+        outbox.send(new Message("42", 2, "2", "14"));
+        flush();
+
+        // The first status is still waiting for airtime, the SOS doesn't wait behind it
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(1).isSos());
+        completeSends();
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void failedSendsStayQueuedUntilReconnect() throws Exception {
+        connected[0] = true;
+        CompletableFuture<Void> result = outbox.send(status("42", 0));
+        flush();
+        connected[0] = false;
+        sends.get(0).completeExceptionally(new IOException("Not connected"));
+        flush();
+
+        OutboxEntry entry = dao.rows.get(0);
+        assertEquals(OutboxEntry.STATE_QUEUED, entry.getState());
+        assertEquals(1, entry.getAttempts());
+        assertFalse(result.isDone());
+
+        connected[0] = true;
+        outbox.onConnected();
+        completeSends();
+        assertEquals(2, sent.size());
+        assertTrue(result.isDone());
+        assertEquals(OutboxEntry.STATE_WRITTEN, entry.getState());
+    }
+
+    @Test
+    public void acksMarkWrittenEntries() throws Exception {
+        connected[0] = true;
+        outbox.send(status("42", 0));
+        completeSends();
+        outbox.onAcknowledged("42", 1000, "2", false);
+        outbox.onAcknowledged("42", 9999, "2", false);
+        flush();
+        assertEquals(OutboxEntry.STATE_ACKED, dao.rows.get(0).getState());
+
+        // Delivered entries are pruned after a day
+        now[0] += Outbox.DELIVERED_RETENTION_MS + 1;
+        outbox.onConnected();
+        flush();
+        assertTrue(dao.rows.isEmpty());
+    }
+
+    @Test
+    public void acksFromABinaryLinkMatchTheWholeSecond() throws Exception {
+        connected[0] = true;
+        outbox.send(new Message("42", 1_735_689_600_250L, "2", "0"));
+        completeSends();
+        // A text link echoes the exact timestamp, the truncated one is someone else's
+        outbox.onAcknowledged("42", 1_735_689_600_000L, "2", false);
+        flush();
+        assertEquals(OutboxEntry.STATE_WRITTEN, dao.rows.get(0).getState());
+
+        outbox.onAcknowledged("42", 1_735_689_601_000L, "2", true);
+        flush();
+        assertEquals(OutboxEntry.STATE_WRITTEN, dao.rows.get(0).getState());
+        outbox.onAcknowledged("42", 1_735_689_600_000L, "2", true);
+        flush();
+        assertEquals(OutboxEntry.STATE_ACKED, dao.rows.get(0).getState());
+    }
+
+    private static boolean isCancelled(CompletableFuture<Void> future) throws InterruptedException {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof CancellationException;
+        } catch (CancellationException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+}
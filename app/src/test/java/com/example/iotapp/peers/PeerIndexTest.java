@@ -0,0 +1,95 @@
+package com.example.iotapp.peers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PeerIndexTest {
+
+    private final PeerIndex index = new PeerIndex();
+
+    @Test
+    public void nearestMatchesBruteForce() {
+        Random random = new Random(42);
+        double[][] positions = new double[2000][];
+        for (int i = 0; i < positions.length; i++) {
+            // Mostly a dense 20 km patch, a few stragglers far away
+            double spread = i % 100 == 0 ? 5 : 0.1;
+            positions[i] = new double[]{45.46 + (random.nextDouble() - 0.5) * spread,
+                    9.19 + (random.nextDouble() - 0.5) * spread};
+            index.update(Integer.toString(i), positions[i][0], positions[i][1]);
+        }
+        for (int query = 0; query < 50; query++) {
+            double lat = 45.46 + (random.nextDouble() - 0.5) * 0.3;
+            double lon = 9.19 + (random.nextDouble() - 0.5) * 0.3;
+            List<PeerIndex.Neighbor> nearest = index.nearest(lat, lon, 5);
+            List<Double> expected = bruteForceDistances(positions, lat, lon);
+            assertEquals(5, nearest.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(expected.get(i), nearest.get(i).distanceMeters, 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void withinRadiusMatchesBruteForce() {
+        Random random = new Random(7);
+        double[][] positions = new double[1000][];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new double[]{-33.86 + (random.nextDouble() - 0.5) * 0.05,
+                    151.2 + (random.nextDouble() - 0.5) * 0.05};
+            index.update(Integer.toString(i), positions[i][0], positions[i][1]);
+        }
+        List<PeerIndex.Neighbor> within = index.withinRadius(-33.86, 151.2, 500);
+        int expected = 0;
+        for (double distance : bruteForceDistances(positions, -33.86, 151.2)) {
+            if (distance <= 500) {
+                expected++;
+            }
+        }
+        assertEquals(expected, within.size());
+        for (int i = 1; i < within.size(); i++) {
+            assertTrue(within.get(i - 1).distanceMeters <= within.get(i).distanceMeters);
+        }
+    }
+
+    @Test
+    public void updatesMoveNodesBetweenCells() {
+        index.update("a", 10.0, 10.0);
+        index.update("b", 10.001, 10.001);
+        index.update("a", 50.0, 50.0);
+        assertEquals(2, index.size());
+        List<PeerIndex.Neighbor> nearby = index.withinRadius(10.0, 10.0, 1000);
+        assertEquals(1, nearby.size());
+        assertEquals("b", nearby.get(0).id);
+        assertEquals("a", index.nearest(50.0, 50.0, 1).get(0).id);
+        index.remove("b");
+        assertTrue(index.withinRadius(10.0, 10.0, 1000).isEmpty());
+    }
+
+    @Test
+    public void nearestToExcludesTheNodeAndWrapsTheAntimeridian() {
+        index.update("sos", 0.0, 179.999);
+        index.update("east", 0.0, -179.999);
+        index.update("west", 0.0, 179.9);
+        List<PeerIndex.Neighbor> nearest = index.nearestTo("sos", 5);
+        assertEquals(2, nearest.size());
+        assertEquals("east", nearest.get(0).id);
+        assertTrue(nearest.get(0).distanceMeters < 300);
+        assertEquals(2, index.withinRadius(0.0, 180.0, 1000).size());
+    }
+
+    private static List<Double> bruteForceDistances(double[][] positions, double lat, double lon) {
+        List<Double> distances = new ArrayList<>();
+        for (double[] position : positions) {
+            distances.add(PeerIndex.distanceMeters(lat, lon, position[0], position[1]));
+        }
+        Collections.sort(distances);
+        return distances;
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.iotapp.peers;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerRegistryTest {
+
+    // Stands in for the main looper: callbacks only run when the test drains it
+    private final Queue<Runnable> mainQueue = new ArrayDeque<>();
+    private final PeerRegistry registry = new PeerRegistry(mainQueue::add, new PeerIndex());
+    private final List<List<PeerRegistry.Peer>> deliveries = new ArrayList<>();
+
+    private void drainMain() {
+        Runnable task;
+        while ((task = mainQueue.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void coalescesUpdatesIntoOneSnapshot() {
+        registry.addListener((snapshot, changed) -> deliveries.add(changed));
+        registry.update(new PeerRegistry.Peer("a", 1, 1, 1));
+        registry.update(new PeerRegistry.Peer("b", 2, 2, 1));
+        registry.update(new PeerRegistry.Peer("a", 3, 3, 2));
+        assertEquals(1, mainQueue.size());
+        assertEquals(0, registry.getSnapshot().size());
+
+        drainMain();
+        assertEquals(1, deliveries.size());
+        assertEquals(2, deliveries.get(0).size());
+        PeerRegistry.Snapshot snapshot = registry.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(3.0, snapshot.get("a").latitude, 0);
+        assertEquals("a", snapshot.getPeers().get(0).id);
+    }
+
+    @Test
+    public void snapshotsAreImmutableWhileUpdatesArrive() {
+        registry.update(new PeerRegistry.Peer("a", 1, 1, 1));
+        drainMain();
+        PeerRegistry.Snapshot first = registry.getSnapshot();
+
+        registry.update(new PeerRegistry.Peer("a", 5, 5, 2));
+        registry.update(new PeerRegistry.Peer("c", 6, 6, 2));
+        drainMain();
+
+        assertEquals(1, first.size());
+        assertEquals(1.0, first.get("a").latitude, 0);
+        assertEquals(2, registry.getSnapshot().size());
+        assertEquals(5.0, registry.getSnapshot().getPeers().get(0).latitude, 0);
+        assertTrue(registry.getSnapshot().getVersion() > first.getVersion());
+        try {
+            first.getPeers().add(new PeerRegistry.Peer("x", 0, 0, 0));
+            fail("snapshot list should be read only");
+        } catch (UnsupportedOperationException expected) {
+            // read only
+        }
+    }
+
+    @Test
+    public void updatesFromManyThreadsAreAllPublished() throws Exception {
+        PeerRegistry threaded = new PeerRegistry(Runnable::run, new PeerIndex());
+        int threads = 4;
+        int perThread = 500;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    threaded.update(new PeerRegistry.Peer(thread + "-" + i, i * 1e-4, i * 1e-4, i));
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(threads * perThread, threaded.getSnapshot().size());
+        assertEquals(threads * perThread, threaded.getIndex().size());
+    }
+}
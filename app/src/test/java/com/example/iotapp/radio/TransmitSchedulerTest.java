@@ -0,0 +1,124 @@
+package com.example.iotapp.radio;
+
+import com.example.iotapp.models.Message;
+import com.example.iotapp.transport.FrameWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class TransmitSchedulerTest {
+
+    private static final LoRaAirtime SF9 = new LoRaAirtime(9, 125000);
+    private static final int PAYLOAD = 20;
+
+    private final List<Message> sent = new ArrayList<>();
+    private final List<FrameWriter.Priority> priorities = new ArrayList<>();
+    private final long[] now = {1_000_000L};
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    // Budget for exactly three 20 byte frames per window
+    private final double dutyCycle = 3 * SF9.airtimeMillis(PAYLOAD) / TransmitScheduler.WINDOW_MILLIS;
+    private final TransmitScheduler scheduler = new TransmitScheduler((message, priority) -> {
+        sent.add(message);
+        priorities.add(priority);
+        return CompletableFuture.completedFuture(null);
+    }, message -> PAYLOAD, SF9, dutyCycle, () -> now[0], timer);
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private static Message beacon(String payload) {
+        return new Message("42", 0, "1", payload);
+    }
+
+    @Test
+    public void airtimeMatchesDatasheet() {
+        // SF7/125 kHz, 20 bytes: 56.6 ms; SF12/125 kHz, 20 bytes: 1318.9 ms
+        assertEquals(56.6, new LoRaAirtime(7, 125000).airtimeMillis(20), 0.1);
+        assertEquals(1318.9, new LoRaAirtime(12, 125000).airtimeMillis(20), 0.1);
+    }
+
+    @Test
+    public void defersOverBudgetAndReleasesAsTheWindowSlides() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(scheduler.submit(new Message("42", i, "3", "text" + i)).isDone());
+        }
+        CompletableFuture<Void> deferred = scheduler.submit(new Message("42", 3, "3", "text3"));
+        assertFalse(deferred.isDone());
+        assertEquals(1, scheduler.getQueueDepth());
+        assertEquals(now[0] + TransmitScheduler.WINDOW_MILLIS, scheduler.getProjectedSendTimeMillis());
+
+        now[0] += TransmitScheduler.WINDOW_MILLIS;
+        scheduler.drain();
+        assertTrue(deferred.isDone());
+        assertEquals(4, sent.size());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void sosBypassesTheBudget() {
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(new Message("42", i, "3", "text" + i));
+        }
+        assertEquals(1, scheduler.getQueueDepth());
+        CompletableFuture<Void> sos = scheduler.submit(new Message("42", 9, "2", "14"));
+        assertTrue(sos.isDone());
+        assertEquals("14", sent.get(sent.size() - 1).getPayload());
+        assertEquals(FrameWriter.Priority.URGENT, priorities.get(priorities.size() - 1));
+        assertTrue(scheduler.getAirtimeUsedMillis() > scheduler.getBudgetMillis());
+    }
+
+    @Test
+    public void queuedBeaconsAreMergedToTheNewestPosition() {
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(beacon("45.0-9.0"));
+        }
+        CompletableFuture<Void> first = scheduler.submit(beacon("45.1-9.1"));
+        CompletableFuture<Void> second = scheduler.submit(beacon("45.2-9.2"));
+        assertEquals(1, scheduler.getQueueDepth());
+
+        now[0] += TransmitScheduler.WINDOW_MILLIS;
+        scheduler.drain();
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(4, sent.size());
+        assertEquals("45.2-9.2", sent.get(3).getPayload());
+    }
+
+    @Test
+    public void reportedSpreadingFactorSetsTheAirtime() {
+        scheduler.setSpreadingFactor(12);
+        scheduler.submit(new Message("42", 0, "3", "text"));
+        assertEquals(new LoRaAirtime(12, 125000).airtimeMillis(PAYLOAD), scheduler.getAirtimeUsedMillis(), 0.001);
+        // SF12 frames take the budget of three SF9 ones
+        assertFalse(scheduler.submit(new Message("42", 1, "3", "text")).isDone());
+
+        try {
+            scheduler.setSpreadingFactor(13);
+            fail("Accepted SF13");
+        } catch (IllegalArgumentException expected) {
+            // Keeps the last good one
+        }
+    }
+
+    @Test
+    public void failedSendsGiveTheAirtimeBack() {
+        TransmitScheduler offline = new TransmitScheduler((message, priority) -> {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new java.io.IOException("Not connected"));
+            return failed;
+        }, message -> PAYLOAD, SF9, dutyCycle, () -> now[0], timer);
+        CompletableFuture<Void> result = offline.submit(new Message("42", 0, "3", "hi"));
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0.0, offline.getAirtimeUsedMillis(), 1e-9);
+    }
+}
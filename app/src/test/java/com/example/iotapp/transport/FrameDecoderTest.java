@@ -0,0 +1,91 @@
+package com.example.iotapp.transport;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<String> frames = new ArrayList<>();
+    private final FrameDecoder.FrameListener collector =
+            (buffer, offset, length) -> frames.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+
+    private void feed(FrameDecoder decoder, String chunk) {
+        byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+        decoder.feed(bytes, 0, bytes.length, collector);
+    }
+
+    @Test
+    public void delimited_splitsMergedFrames() {
+        FrameDecoder decoder = FrameDecoder.delimited();
+        feed(decoder, "1-100-2-14\n2-200-1-45.1-9.2\r\n3-300");
+        assertEquals(2, frames.size());
+        assertEquals("1-100-2-14", frames.get(0));
+        assertEquals("2-200-1-45.1-9.2", frames.get(1));
+        assertEquals(5, decoder.getBufferedBytes());
+    }
+
+    @Test
+    public void delimited_reassemblesFramesAcrossReadsAndWraparound() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 16);
+        for (int i = 0; i < 200; i++) {
+            String frame = "node" + i + "-x";
+            feed(decoder, frame.substring(0, 3));
+            feed(decoder, frame.substring(3) + "\n");
+        }
+        assertEquals(200, frames.size());
+        assertEquals("node199-x", frames.get(199));
+        assertEquals(0, decoder.getDroppedBytes());
+    }
+
+    @Test
+    public void delimited_dropsOversizedFrameAndResynchronises() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 8);
+        feed(decoder, "0123456789ABCDEF");
+        feed(decoder, "GHIJ\nok\n");
+        assertEquals(1, frames.size());
+        assertEquals("ok", frames.get(0));
+        assertTrue(decoder.getDroppedBytes() >= 20);
+    }
+
+    @Test
+    public void delimited_dropsFrameOneByteOverTheMaximum() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 8);
+        feed(decoder, "012345678\n01234567\r\nok\n");
+        assertEquals(2, frames.size());
+        assertEquals("01234567", frames.get(0));
+        assertEquals("ok", frames.get(1));
+        assertEquals(9, decoder.getDroppedBytes());
+    }
+
+    @Test
+    public void delimited_dropsWrappingFrameOneByteOverTheMaximum() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 8);
+        // The partial byte left behind makes the next frame wrap around the ring
+        feed(decoder, "ab\nc");
+        feed(decoder, "d2345678");
+        feed(decoder, "\nok\n");
+        assertEquals(2, frames.size());
+        assertEquals("ab", frames.get(0));
+        assertEquals("ok", frames.get(1));
+        assertEquals(9, decoder.getDroppedBytes());
+    }
+
+    @Test
+    public void lengthPrefixed_emitsCompleteFramesOnly() {
+        FrameDecoder decoder = FrameDecoder.lengthPrefixed(32);
+        byte[] stream = {0, 3, 'a', 'b', 'c', 0, 2, 'd', 'e', 0, 4, 'f'};
+        decoder.feed(stream, 0, 4, collector);
+        assertEquals(0, frames.size());
+        decoder.feed(stream, 4, stream.length - 4, collector);
+        assertEquals(2, frames.size());
+        assertEquals("abc", frames.get(0));
+        assertEquals("de", frames.get(1));
+        decoder.feed(new byte[]{'g', 'h', 'i'}, 0, 3, collector);
+        assertEquals("fghi", frames.get(2));
+    }
+}
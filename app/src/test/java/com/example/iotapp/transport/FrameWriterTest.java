@@ -0,0 +1,102 @@
+package com.example.iotapp.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    // Records every write call and blocks the first one until released
+    private static class GatedOutputStream extends ByteArrayOutputStream {
+        final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        int writeCalls;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writeCalls++;
+            firstWriteStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    private static byte[] frame(String text) {
+        return (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void coalescesQueuedFramesAndWritesUrgentFirst() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        FrameWriter writer = new FrameWriter(out, 8);
+
+        writer.submit(frame("first"), FrameWriter.Priority.NORMAL);
+        assertTrue(out.firstWriteStarted.await(2, TimeUnit.SECONDS));
+        writer.submit(frame("beacon"), FrameWriter.Priority.NORMAL);
+        CompletableFuture<Void> last = writer.submit(frame("sos"), FrameWriter.Priority.URGENT);
+        out.release.countDown();
+
+        last.get(2, TimeUnit.SECONDS);
+        assertEquals("first\nsos\nbeacon\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, out.writeCalls);
+        writer.close();
+    }
+
+    @Test
+    public void rejectsNormalFramesWhenFullButAdmitsUrgent() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        FrameWriter writer = new FrameWriter(out, 2);
+
+        writer.submit(frame("in-flight"), FrameWriter.Priority.NORMAL);
+        assertTrue(out.firstWriteStarted.await(2, TimeUnit.SECONDS));
+        CompletableFuture<Void> oldest = writer.submit(frame("a"), FrameWriter.Priority.NORMAL);
+        writer.submit(frame("b"), FrameWriter.Priority.NORMAL);
+
+        CompletableFuture<Void> rejected = writer.submit(frame("c"), FrameWriter.Priority.NORMAL);
+        assertTrue(rejected.isCompletedExceptionally());
+
+        CompletableFuture<Void> sos = writer.submit(frame("sos"), FrameWriter.Priority.URGENT);
+        assertTrue(oldest.isCompletedExceptionally());
+        try {
+            oldest.get();
+            fail("evicted frame should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        out.release.countDown();
+        sos.get(2, TimeUnit.SECONDS);
+        writer.close();
+    }
+
+    @Test
+    public void closeFailsPendingFrames() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        FrameWriter writer = new FrameWriter(out, 4);
+        writer.submit(frame("in-flight"), FrameWriter.Priority.NORMAL);
+        assertTrue(out.firstWriteStarted.await(2, TimeUnit.SECONDS));
+        CompletableFuture<Void> pending = writer.submit(frame("pending"), FrameWriter.Priority.NORMAL);
+
+        writer.close();
+        out.release.countDown();
+        try {
+            pending.get(2, TimeUnit.SECONDS);
+            fail("pending frame should fail on close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
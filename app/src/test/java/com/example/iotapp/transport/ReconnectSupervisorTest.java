@@ -0,0 +1,114 @@
+package com.example.iotapp.transport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReconnectSupervisorTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<Long> delays = new CopyOnWriteArrayList<>();
+    private final CountDownLatch reconnected = new CountDownLatch(1);
+    private final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 8, new Random(1),
+            System::currentTimeMillis, executor, new ReconnectSupervisor.Listener() {
+        @Override
+        public void onReconnecting(int attempt, long delayMillis) {
+            delays.add(delayMillis);
+        }
+
+        @Override
+        public void onReconnected(int attempts, long downtimeMillis) {
+            reconnected.countDown();
+        }
+    });
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void delaysGrowExponentiallyWithJitterUpToTheCap() {
+        Random random = new Random(7);
+        for (int attempt = 1; attempt <= 40; attempt++) {
+            long step = Math.min(30_000, 500L << Math.min(attempt - 1, 20));
+            long delay = ReconnectSupervisor.delayFor(attempt, 500, 30_000, random);
+            assertTrue(delay >= step / 2);
+            assertTrue(delay <= step);
+        }
+        // Not all the same, so nodes spread out
+        Random spread = new Random(3);
+        long first = ReconnectSupervisor.delayFor(5, 500, 30_000, spread);
+        boolean differs = false;
+        for (int i = 0; i < 10; i++) {
+            differs |= ReconnectSupervisor.delayFor(5, 500, 30_000, spread) != first;
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void retriesUntilAnAttemptSucceeds() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        supervisor.linkLost(() -> {
+            if (calls.incrementAndGet() < 4) {
+                throw new IOException("Node out of range");
+            }
+        });
+        assertTrue(supervisor.isReconnecting());
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+
+        assertEquals(4, calls.get());
+        assertFalse(supervisor.isReconnecting());
+        ReconnectSupervisor.Metrics metrics = supervisor.getMetrics();
+        assertEquals(1, metrics.reconnects);
+        assertEquals(3, metrics.failedAttempts);
+        assertEquals(metrics.lastDowntimeMillis, metrics.averageDowntimeMillis());
+        assertEquals(4, delays.size());
+    }
+
+    @Test
+    public void onlyOneReconnectLoopPerOutage() throws Exception {
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        supervisor.linkLost(() -> {
+            first.incrementAndGet();
+            release.await();
+        });
+        // Reported again, e.g. by the writer, while the first attempt is connecting
+        supervisor.linkLost(second::incrementAndGet);
+        release.countDown();
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, first.get());
+        assertEquals(0, second.get());
+    }
+
+    @Test
+    public void cancelStopsRetrying() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        supervisor.linkLost(() -> {
+            calls.incrementAndGet();
+            throw new IOException("Node out of range");
+        });
+        Thread.sleep(50);
+        supervisor.cancel();
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        int afterCancel = calls.get();
+        Thread.sleep(50);
+
+        assertEquals(afterCancel, calls.get());
+        assertFalse(supervisor.isReconnecting());
+        assertEquals(0, supervisor.getMetrics().reconnects);
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.iotapp.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BeaconSchedulerTest {
+
+    private static final class MemoryStore implements BeaconScheduler.JobStore {
+        volatile List<BeaconScheduler.Job> saved = Collections.emptyList();
+
+        @Override
+        public List<BeaconScheduler.Job> load() {
+            return saved;
+        }
+
+        @Override
+        public void save(List<BeaconScheduler.Job> jobs) {
+            saved = new ArrayList<>(jobs);
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final MemoryStore store = new MemoryStore();
+    private final List<String> runs = new CopyOnWriteArrayList<>();
+    private final List<Long> runTimes = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private BeaconScheduler newScheduler(Random random) {
+        return new BeaconScheduler(job -> {
+            runs.add(job.name);
+            runTimes.add(System.currentTimeMillis());
+        }, store, System::currentTimeMillis, random, executor);
+    }
+
+    private static BeaconScheduler.Job job(String name, long interval, long jitter, int repetitions) {
+        return new BeaconScheduler.Job(name, "42", "2", "3", interval, jitter, repetitions);
+    }
+
+    // Waits until the scheduler has no jobs left
+    private static void awaitIdle(BeaconScheduler scheduler) throws InterruptedException {
+        CountDownLatch idle = new CountDownLatch(1);
+        BeaconScheduler.JobListener listener = jobs -> {
+            if (jobs.isEmpty()) {
+                idle.countDown();
+            }
+        };
+        scheduler.addListener(listener);
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        scheduler.removeListener(listener);
+    }
+
+    private void flush() throws Exception {
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void runsTheRequestedNumberOfTimesThenFinishes() throws Exception {
+        BeaconScheduler scheduler = newScheduler(new Random(1));
+        scheduler.schedule(job("status", 20, 0, 3));
+        flush();
+        assertTrue(scheduler.isScheduled("status"));
+
+        awaitIdle(scheduler);
+        assertEquals(3, runs.size());
+        assertFalse(scheduler.isScheduled("status"));
+        assertTrue(store.saved.isEmpty());
+        for (int i = 1; i < runTimes.size(); i++) {
+            assertTrue(runTimes.get(i) - runTimes.get(i - 1) >= 15);
+        }
+    }
+
+    @Test
+    public void cancelStopsFurtherRuns() throws Exception {
+        BeaconScheduler scheduler = newScheduler(new Random(1));
+        scheduler.schedule(job("position", 60_000, 0, BeaconScheduler.FOREVER));
+        flush();
+        assertEquals(1, runs.size()); // First run is immediate
+
+        scheduler.cancel("position");
+        flush();
+        assertFalse(scheduler.isScheduled("position"));
+        assertTrue(store.saved.isEmpty());
+    }
+
+    @Test
+    public void schedulingTheSameNameReplacesTheJob() throws Exception {
+        BeaconScheduler scheduler = newScheduler(new Random(1));
+        scheduler.schedule(job("status", 60_000, 0, 3));
+        scheduler.schedule(job("status", 30_000, 0, 3));
+        flush();
+
+        assertEquals(1, scheduler.getJobs().size());
+        assertEquals(30_000, scheduler.getJobs().get(0).intervalMillis);
+        assertEquals(2, scheduler.getJobs().get(0).getRemaining());
+    }
+
+    @Test
+    public void jitterStaysWithinBounds() throws Exception {
+        // Extreme draws on both sides
+        Random extremes = new Random() {
+            private boolean high;
+
+            @Override
+            public double nextDouble() {
+                high = !high;
+                return high ? 0.999999 : 0;
+            }
+        };
+        BeaconScheduler scheduler = newScheduler(extremes);
+        long start = System.currentTimeMillis();
+        scheduler.schedule(job("status", 60_000, 6_000, 3));
+        flush();
+        long after = System.currentTimeMillis();
+        long firstDelay = store.saved.get(0).getNextRunAt() - start;
+        assertTrue(firstDelay <= 66_000 + (after - start));
+        assertTrue(firstDelay >= 65_000);
+
+        // Second draw goes to the low end
+        scheduler.schedule(job("status", 60_000, 6_000, 3));
+        flush();
+        long secondDelay = store.saved.get(0).getNextRunAt() - after;
+        assertTrue(secondDelay >= 54_000);
+        assertTrue(secondDelay <= 55_000);
+    }
+
+    @Test
+    public void pendingJobsSurviveARestart() throws Exception {
+        BeaconScheduler first = newScheduler(new Random(1));
+        first.schedule(new BeaconScheduler.Job("position", "42", "1", "45.0000-9.0000", 60_000, 0, 5));
+        flush();
+        assertEquals(1, runs.size());
+
+        // Round trip through the encoded form a real store keeps
+        List<BeaconScheduler.Job> reloaded = new ArrayList<>();
+        for (BeaconScheduler.Job job : store.saved) {
+            reloaded.add(BeaconScheduler.Job.decode(job.encode()));
+        }
+        store.saved = reloaded;
+
+        BeaconScheduler second = newScheduler(new Random(1));
+        flush();
+        assertTrue(second.isScheduled("position"));
+        BeaconScheduler.Job restored = second.getJobs().get(0);
+        assertEquals("45.0000-9.0000", restored.payload);
+        assertEquals("1", restored.type);
+        assertEquals(4, restored.getRemaining());
+        assertEquals(1, runs.size()); // Not run again until it is due
+    }
+
+    @Test
+    public void repetitionsMustBePositiveOrForever() {
+        for (int repetitions : new int[]{0, -2}) {
+            try {
+                job("bad", 10, 0, repetitions);
+                fail("Accepted " + repetitions + " repetitions");
+            } catch (IllegalArgumentException expected) {
+                // Zero used to run forever
+            }
+        }
+        assertEquals(BeaconScheduler.FOREVER, job("forever", 10, 0, BeaconScheduler.FOREVER).getRemaining());
+        assertEquals(1, job("once", 10, 0, 1).getRemaining());
+    }
+
+    @Test
+    public void decodeRejectsGarbage() {
+        assertNull(BeaconScheduler.Job.decode(""));
+        assertNull(BeaconScheduler.Job.decode("a,b,c,d,x,0,0,0"));
+        BeaconScheduler.Job odd = new BeaconScheduler.Job("a,b", "4 2", "2", "x\ny%", 10, 1, 2);
+        BeaconScheduler.Job decoded = BeaconScheduler.Job.decode(odd.encode());
+        assertEquals("a,b", decoded.name);
+        assertEquals("4 2", decoded.nodeId);
+        assertEquals("x\ny%", decoded.payload);
+    }
+
+    @Test
+    public void manyJobsShareOneThreadAndAFailureDoesNotStopOthers() throws Exception {
+        List<String> threads = new CopyOnWriteArrayList<>();
+        BeaconScheduler scheduler = new BeaconScheduler(job -> {
+            threads.add(Thread.currentThread().getName());
+            runs.add(job.name);
+            if (job.name.equals("bad")) {
+                throw new IllegalStateException("boom");
+            }
+        }, store, System::currentTimeMillis, new Random(1), executor);
+        scheduler.schedule(job("bad", 10, 0, 2));
+        for (int i = 0; i < 10; i++) {
+            scheduler.schedule(job("job" + i, 10, 2, 2));
+        }
+        awaitIdle(scheduler);
+
+        assertEquals(22, runs.size());
+        assertEquals(1, new HashSet<>(threads).size());
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.iotapp.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventBusTest {
+
+    private interface Listener {
+        void onEvent(int value);
+    }
+
+    private final EventBus<Listener> bus = new EventBus<>();
+    private final ExecutorService slow = Executors.newSingleThreadExecutor();
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        slow.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    private static void publishAll(EventBus<Listener> bus, int count) {
+        for (int i = 0; i < count; i++) {
+            int value = i;
+            bus.publish(listener -> listener.onEvent(value));
+        }
+    }
+
+    @Test
+    public void everySubscriberGetsEveryEventInOrder() {
+        List<Integer> first = new ArrayList<>();
+        List<Integer> second = new ArrayList<>();
+        bus.subscribe(first::add, Runnable::run);
+        bus.subscribe(second::add, Runnable::run);
+        publishAll(bus, 5);
+
+        assertEquals(5, first.size());
+        assertEquals(first, second);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) first.get(i));
+        }
+    }
+
+    @Test
+    public void unsubscribeStopsDeliveryToThatSubscriberOnly() {
+        List<Integer> kept = new ArrayList<>();
+        List<Integer> gone = new ArrayList<>();
+        bus.subscribe(kept::add, Runnable::run);
+        EventBus.Subscription subscription = bus.subscribe(gone::add, Runnable::run);
+        publishAll(bus, 2);
+        subscription.unsubscribe();
+        subscription.unsubscribe(); // Twice is harmless
+        publishAll(bus, 2);
+
+        assertEquals(4, kept.size());
+        assertEquals(2, gone.size());
+        assertEquals(1, bus.getSubscriberCount());
+    }
+
+    @Test
+    public void slowSubscriberHoldsUpNeitherPublisherNorOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> slowEvents = new CopyOnWriteArrayList<>();
+        List<Integer> fastEvents = new ArrayList<>();
+        bus.subscribe(value -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            slowEvents.add(value);
+        }, slow);
+        bus.subscribe(fastEvents::add, Runnable::run);
+
+        long start = System.nanoTime();
+        publishAll(bus, 1000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(1000, fastEvents.size());
+        assertTrue(slowEvents.isEmpty());
+
+        release.countDown();
+        slow.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        assertEquals(fastEvents, slowEvents);
+    }
+
+    @Test
+    public void eventsStayInOrderOnAThreadPool() throws Exception {
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        bus.subscribe(value -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            received.add(value);
+            running.decrementAndGet();
+            if (value == 9_999) {
+                done.countDown();
+            }
+        }, pool);
+
+        // Publishers on several threads, each one's events must keep their order
+        Thread[] publishers = new Thread[4];
+        for (int t = 0; t < publishers.length; t++) {
+            int base = t * 2_500;
+            publishers[t] = new Thread(() -> {
+                for (int i = 0; i < 2_500; i++) {
+                    int value = base + i;
+                    bus.publish(listener -> listener.onEvent(value));
+                }
+            });
+        }
+        // The last publisher only starts once the others are done, so 9999 comes last
+        for (int t = 0; t < 3; t++) {
+            publishers[t].start();
+        }
+        for (int t = 0; t < 3; t++) {
+            publishers[t].join();
+        }
+        publishers[3].start();
+        publishers[3].join();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(10_000, received.size());
+        assertEquals(0, overlaps.get());
+        int[] last = {-1, -1, -1, -1};
+        for (int value : received) {
+            assertTrue(value > last[value / 2_500]);
+            last[value / 2_500] = value;
+        }
+    }
+
+    @Test
+    public void aFailingEventDoesNotStopLaterOnes() {
+        List<Integer> received = new ArrayList<>();
+        bus.subscribe(value -> {
+            if (value == 1) {
+                throw new IllegalStateException("Boom");
+            }
+            received.add(value);
+        }, Runnable::run);
+        publishAll(bus, 3);
+
+        assertEquals(2, received.size());
+        assertEquals(2, (int) received.get(1));
+    }
+}